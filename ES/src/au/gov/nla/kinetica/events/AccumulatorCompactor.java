@@ -0,0 +1,247 @@
+package au.gov.nla.kinetica.events;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import au.gov.nla.kinetica.events.jfr.StatementEvent;
+
+/**
+ * Folds accumulator_shd rows into accumulator in batches, in place of the
+ * row-level TRG_INS_ACCUMSHD trigger.
+ *
+ * With AccumulatorCompaction=true the trigger is expected to have been
+ * dropped, so an accumulator_shd row is a pending addition to its tote
+ * rather than a record of one. The EventCollector on the host named by
+ * CompactionOwner then, every CompactionInterval ms, takes the rows older
+ * than CompactionLag ms in (interval, username, service) order,
+ * CompactionBatch totes at a time, and for each batch:
+ *
+ *   merges their sums into accumulator with one MERGE,
+ *   deletes the rows it summed,
+ *   commits.
+ *
+ * Each batch is one serializable transaction, so the merge and the delete
+ * read the same snapshot: a row committed between them, whatever its
+ * last_status_change, is neither added nor deleted, and waits for the next
+ * batch. A row is added exactly once. The lag only keeps compaction away
+ * from the rows being written now. If an accumulator row the merge updates
+ * changed after the batch began the db refuses the batch ("can't
+ * serialize access"), and it is rolled back and done again next time.
+ * Only one process may compact, hence the owner.
+ *
+ * While it is on, ToteCache adds the rows not yet compacted to the totes it
+ * reads.
+ */
+class AccumulatorCompactor {
+	static final String COMPACTION_PROPERTY = "AccumulatorCompaction";
+	private static final long DEFAULT_INTERVAL = 60000;
+	private static final long DEFAULT_LAG = 5 * 60 * 1000;
+	private static final int DEFAULT_BATCH = 1000;
+
+	private static final String KEY = "interval, username, service";
+	// keyset bounds on (interval, username, service)
+	private static final String AFTER = "(interval > ? or (interval = ? and (username > ? "
+			+ "or (username = ? and service > ?))))";
+	private static final String UP_TO = "(interval < ? or (interval = ? and (username < ? "
+			+ "or (username = ? and service <= ?))))";
+
+	private static Logger debugLog = Logger.getLogger(AccumulatorCompactor.class);
+	private static ScheduledExecutorService scheduler;
+
+	private final long lag;
+	private final int batch;
+	private final int timeout;
+
+	AccumulatorCompactor(long lag, int batch, int timeout) {
+		this.lag = lag;
+		this.batch = batch;
+		this.timeout = timeout;
+	}
+
+	static boolean isEnabled(Properties props) {
+		return "true".equalsIgnoreCase(props.getProperty(COMPACTION_PROPERTY, "false").trim());
+	}
+
+	/**
+	 * Start compacting in the background if compaction is on and this host
+	 * is the CompactionOwner.
+	 */
+	static synchronized void start(Properties props, int timeout) {
+		if (scheduler != null || !isEnabled(props)) {
+			return;
+		}
+		String owner = props.getProperty("CompactionOwner", "").trim();
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "localhost";
+		}
+		if (!owner.equalsIgnoreCase(host)) {
+			debugLog.info("[AccumulatorCompactor] " + host + " is not the CompactionOwner (" + owner
+					+ "), not compacting");
+			return;
+		}
+
+		final AccumulatorCompactor c = new AccumulatorCompactor(
+				Long.parseLong(props.getProperty("CompactionLag", "" + DEFAULT_LAG).trim()),
+				Integer.parseInt(props.getProperty("CompactionBatch", "" + DEFAULT_BATCH).trim()),
+				timeout);
+		long interval = Long.parseLong(props.getProperty("CompactionInterval", "" + DEFAULT_INTERVAL).trim());
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AccumulatorCompactor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					c.compact();
+				} catch (Exception e) {
+					debugLog.warn("[AccumulatorCompactor] compaction failed, will retry: " + e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		debugLog.info("[AccumulatorCompactor] compacting accumulator_shd every " + interval + "ms");
+	}
+
+	/**
+	 * Compact every row older than the lag. Returns the number of rows.
+	 */
+	long compact() throws SQLException {
+		Timestamp watermark = new Timestamp(System.currentTimeMillis() - lag);
+		long start = System.currentTimeMillis();
+		long rows = 0;
+		int totes = 0;
+
+		Connection conn = EventLogger.openConnection();
+		try {
+			conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			Object[] after = null;
+			while (true) {
+				Object[] last = lastKey(conn, watermark, after);
+				if (last == null) {
+					break;
+				}
+				int merged = merge(conn, watermark, after, last);
+				rows += delete(conn, watermark, after, last);
+				StatementEvent jfr = StatementEvent.start();
+				conn.commit();
+				jfr.done("commit", 0);
+				totes += merged;
+				after = last;
+			}
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.close();
+		}
+
+		if (rows > 0) {
+			debugLog.info("[AccumulatorCompactor] folded " + rows + " accumulator_shd rows into " + totes
+					+ " totes in " + (System.currentTimeMillis() - start) + "ms");
+		}
+		return rows;
+	}
+
+	/**
+	 * The last key of the next batch, or null if there are no more rows.
+	 */
+	private Object[] lastKey(Connection conn, Timestamp watermark, Object[] after) throws SQLException {
+		String sql = "select " + KEY + " from (select distinct " + KEY + " from accumulator_shd "
+				+ where(after, null) + " order by " + KEY + ") where rownum <= ?";
+		PreparedStatement ps = conn.prepareStatement(sql);
+		try {
+			ps.setQueryTimeout(timeout);
+			int i = bind(ps, watermark, after, null);
+			ps.setInt(i, batch);
+			ResultSet rs = ps.executeQuery();
+			Object[] last = null;
+			while (rs.next()) {
+				last = new Object[] { rs.getInt(1), rs.getString(2), rs.getString(3) };
+			}
+			rs.close();
+			return last;
+		} finally {
+			ps.close();
+		}
+	}
+
+	private int merge(Connection conn, Timestamp watermark, Object[] after, Object[] last) throws SQLException {
+		String sql = "merge into accumulator a using (select " + KEY + ", sum(accumnum) n "
+				+ "from accumulator_shd " + where(after, last) + " group by " + KEY + ") s "
+				+ "on (a.interval = s.interval and a.username = s.username and a.service = s.service) "
+				+ "when matched then update set a.tote = a.tote + s.n "
+				+ "when not matched then insert (username, service, interval, tote) "
+				+ "values (s.username, s.service, s.interval, s.n)";
+		PreparedStatement ps = conn.prepareStatement(sql);
+		try {
+			ps.setQueryTimeout(timeout);
+			bind(ps, watermark, after, last);
+			StatementEvent jfr = StatementEvent.start();
+			int n = ps.executeUpdate();
+			jfr.done("accumulator merge", n);
+			return n;
+		} finally {
+			ps.close();
+		}
+	}
+
+	private int delete(Connection conn, Timestamp watermark, Object[] after, Object[] last) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("delete from accumulator_shd " + where(after, last));
+		try {
+			ps.setQueryTimeout(timeout);
+			bind(ps, watermark, after, last);
+			StatementEvent jfr = StatementEvent.start();
+			int n = ps.executeUpdate();
+			jfr.done("accumulator_shd delete", n);
+			return n;
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static String where(Object[] after, Object[] upTo) {
+		// a row without a full key cannot be bounded, it is left to rotaccum
+		return "where last_status_change < ? and interval is not null and username is not null"
+				+ " and service is not null" + ((after == null) ? "" : " and " + AFTER)
+				+ ((upTo == null) ? "" : " and " + UP_TO);
+	}
+
+	/**
+	 * Bind the watermark and bounds in the order where() uses them, and
+	 * return the next parameter index.
+	 */
+	private static int bind(PreparedStatement ps, Timestamp watermark, Object[] after, Object[] upTo)
+			throws SQLException {
+		int i = 1;
+		ps.setTimestamp(i++, watermark);
+		for (Object[] key : new Object[][] { after, upTo }) {
+			if (key == null) {
+				continue;
+			}
+			ps.setInt(i++, (Integer) key[0]);
+			ps.setInt(i++, (Integer) key[0]);
+			ps.setString(i++, (String) key[1]);
+			ps.setString(i++, (String) key[1]);
+			ps.setString(i++, (String) key[2]);
+		}
+		return i;
+	}
+}
@@ -0,0 +1,51 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The file sink for SinkFanout: appends each event to a local file as an
+ * EventCodec line, the format of the spool and the producer cache, flushing
+ * after every batch. The line is built once per event and shared with any
+ * other sink that asks for it.
+ *
+ * Settings: file, the file to append to (/var/tmp/qevents.log by default).
+ * The file is never truncated or rolled here, leave that to logrotate with
+ * copytruncate.
+ */
+class AppendFileSink implements EventSink {
+	private static final String DEFAULT_FILE = "/var/tmp/qevents.log";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private Writer writer;
+
+	public void open(Properties props) throws IOException {
+		File file = new File(props.getProperty("file", DEFAULT_FILE));
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create " + dir);
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8), BUFFER_SIZE);
+	}
+
+	public void write(List<EventExt> batch) throws IOException {
+		for (EventExt item : batch) {
+			writer.write(item.encoded());
+		}
+		writer.flush();
+	}
+
+	public void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One file of archived event rows, written by EventArchiver.
+ *
+ * Rows are written in blocks, each block a separate gzip member holding
+ * its rows a column at a time: the row count, then every etime, then
+ * every username, and so on through the event table's columns. Times are
+ * stored as the first value followed by deltas, so a day of rows in etime
+ * order packs down well. Strings are a presence byte then writeUTF.
+ *
+ * Each block gets a line in the partition's index file:
+ *
+ *   part file, byte offset, rows, first etime, last etime
+ *
+ * with times in ms, so a reader can seek straight to the blocks covering
+ * a time range and start a GZIPInputStream there.
+ */
+class ArchivePart {
+	static final String PART_PREFIX = "part-";
+	static final String PART_SUFFIX = ".col.gz";
+	static final String INDEX_NAME = "index";
+	static final int COLUMNS = 8;
+
+	private final File file;
+	private final FileOutputStream out;
+	private final StringBuilder index = new StringBuilder();
+	private long offset;
+	private long rows;
+
+	/**
+	 * Start a new part file in a partition directory.
+	 */
+	ArchivePart(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create " + dir);
+		}
+		File f;
+		long n = System.currentTimeMillis();
+		while ((f = new File(dir, PART_PREFIX + n + PART_SUFFIX)).exists()) {
+			n++;
+		}
+		file = f;
+		out = new FileOutputStream(file);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Write rows (username, service, etime, address, input, output, status,
+	 * last_status_change) as one block. The rows must be in etime order.
+	 */
+	void writeBlock(List<Object[]> block) throws IOException {
+		if (block.isEmpty()) {
+			return;
+		}
+		CountingStream counted = new CountingStream(out);
+		GZIPOutputStream gz = new GZIPOutputStream(counted, 64 * 1024);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gz, 64 * 1024));
+
+		data.writeInt(block.size());
+		writeTimes(data, block, 2);
+		for (int col : new int[] { 0, 1, 3, 4, 5, 6 }) {
+			for (Object[] row : block) {
+				writeString(data, (String) row[col]);
+			}
+		}
+		writeTimes(data, block, 7);
+		// finishes the gzip member, leaving the part file open
+		data.close();
+
+		long first = ((Timestamp) block.get(0)[2]).getTime();
+		long last = ((Timestamp) block.get(block.size() - 1)[2]).getTime();
+		index.append(file.getName()).append(',').append(offset).append(',').append(block.size())
+				.append(',').append(first).append(',').append(last).append('\n');
+		offset += counted.count;
+		rows += block.size();
+	}
+
+	/**
+	 * Close the part and make sure it is on disk. A part with no rows is
+	 * removed.
+	 */
+	void close() throws IOException {
+		out.getFD().sync();
+		out.close();
+		if (rows == 0) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Add the closed part's blocks to the partition index, once it is known
+	 * to read back.
+	 */
+	void index() throws IOException {
+		if (rows == 0) {
+			return;
+		}
+		Writer w = new FileWriter(new File(file.getParentFile(), INDEX_NAME), true);
+		try {
+			w.write(index.toString());
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Remove a part that could not be written or read back, leaving the
+	 * index as it was.
+	 */
+	void discard() {
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		file.delete();
+		index.setLength(0);
+		rows = 0;
+	}
+
+	/**
+	 * Read a part back, returning the number of rows in it. Each block is
+	 * decoded in full, so a damaged file fails here.
+	 */
+	static long countRows(File part) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(part), 64 * 1024);
+		long total = 0;
+		try {
+			// GZIPInputStream reads on through concatenated members
+			DataInputStream data = new DataInputStream(new GZIPInputStream(in, 64 * 1024));
+			while (true) {
+				int n;
+				try {
+					n = data.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				readTimes(data, n);
+				for (int col = 0; col < COLUMNS - 2; col++) {
+					for (int i = 0; i < n; i++) {
+						if (data.readBoolean()) {
+							data.readUTF();
+						}
+					}
+				}
+				readTimes(data, n);
+				total += n;
+			}
+		} finally {
+			in.close();
+		}
+		return total;
+	}
+
+	private static void writeTimes(DataOutputStream data, List<Object[]> block, int col) throws IOException {
+		long prev = 0;
+		for (Object[] row : block) {
+			Timestamp t = (Timestamp) row[col];
+			long ms = (t == null) ? prev : t.getTime();
+			writeVarLong(data, ms - prev);
+			prev = ms;
+		}
+	}
+
+	private static long[] readTimes(DataInputStream data, int n) throws IOException {
+		long[] times = new long[n];
+		long prev = 0;
+		for (int i = 0; i < n; i++) {
+			prev += readVarLong(data);
+			times[i] = prev;
+		}
+		return times;
+	}
+
+	private static void writeString(DataOutputStream data, String s) throws IOException {
+		data.writeBoolean(s != null);
+		if (s != null) {
+			data.writeUTF(s);
+		}
+	}
+
+	// zig-zag, 7 bits a byte
+	private static void writeVarLong(DataOutputStream data, long v) throws IOException {
+		long z = (v << 1) ^ (v >> 63);
+		while ((z & ~0x7fL) != 0) {
+			data.writeByte((int) ((z & 0x7f) | 0x80));
+			z >>>= 7;
+		}
+		data.writeByte((int) z);
+	}
+
+	private static long readVarLong(DataInputStream data) throws IOException {
+		long z = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = data.readUnsignedByte();
+			z |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (z >>> 1) ^ -(z & 1);
+	}
+
+	private static class CountingStream extends FilterOutputStream {
+		long count;
+
+		CountingStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		public void close() {
+			// the part file stays open for the next block
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * DedupWindow remembers the ids of the last N events written, so that an
+ * event replayed from the spool or the producer cache is only written once.
+ * 
+ * The ids are kept in a primitive open-addressing hash set (linear probing)
+ * alongside a ring of the same ids in arrival order. When the window is full
+ * the oldest id is dropped from the set. At the default of 131072 ids the
+ * window takes about 3MB and needs no allocation per event.
+ *
+ * The window is saved at shutdown and, while it changes, every
+ * DedupCheckpointInterval ms, so after a crash only the ids added since
+ * the last checkpoint are forgotten. Each save replaces the file whole.
+ */
+class DedupWindow {
+	private static final long EMPTY = 0;
+
+	private final long[] table;
+	private final int mask;
+	private final long[] ring;
+	private int head;
+	private int size;
+	// added to since the last save
+	private boolean dirty;
+
+	DedupWindow(int capacity) {
+		int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+		table = new long[tableSize];
+		mask = tableSize - 1;
+		ring = new long[Math.max(1, capacity)];
+	}
+
+	synchronized boolean contains(long id) {
+		if (id == EMPTY) {
+			return false;
+		}
+		for (int i = slot(id); table[i] != EMPTY; i = (i + 1) & mask) {
+			if (table[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	synchronized void add(long id) {
+		if (id == EMPTY || contains(id)) {
+			return;
+		}
+
+		if (size == ring.length) {
+			// drop the oldest id
+			remove(ring[head]);
+			head = (head + 1) % ring.length;
+			size--;
+		}
+		ring[(head + size) % ring.length] = id;
+		size++;
+		insert(id);
+		dirty = true;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Write the ids, oldest first, so the window survives a restart.
+	 */
+	synchronized void save(File file) throws IOException {
+		// written aside and renamed over the last save, so a crash part way
+		// through leaves the last save as it was
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeLong(ring[(head + i) % ring.length]);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+
+	synchronized void load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				add(in.readLong());
+			}
+			// the same ids as the file
+			dirty = false;
+		} finally {
+			in.close();
+		}
+	}
+
+	private int slot(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void insert(long id) {
+		int i = slot(id);
+		while (table[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		table[i] = id;
+	}
+
+	/**
+	 * Remove id, shifting later entries of the probe run back so that
+	 * lookups never stop early at the hole.
+	 */
+	private void remove(long id) {
+		int i = slot(id);
+		while (table[i] != id) {
+			if (table[i] == EMPTY) {
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+
+		int hole = i;
+		for (int j = (hole + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(table[j]);
+			// move table[j] into the hole unless its home lies in (hole, j]
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				table[hole] = table[j];
+				hole = j;
+			}
+		}
+		table[hole] = EMPTY;
+	}
+}
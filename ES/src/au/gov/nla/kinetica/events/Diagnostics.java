@@ -0,0 +1,170 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.Enumeration;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Category;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Diagnostic logging for the events package, set up once however many of
+ * EventSender, EventSenderThread and EventLogger are loaded, and kept off
+ * the threads that send events.
+ *
+ * Messages from au.gov.nla.kinetica.events loggers go through a
+ * non-blocking log4j AsyncAppender holding DiagnosticsBuffer messages
+ * (1024 by default). When the buffer is full a message is dropped rather
+ * than making the sender wait, and the appender logs how many were dropped
+ * once it has room again. The background thread hands each message to the
+ * appenders the package would otherwise have logged to, looked up as it is
+ * written, so appenders log4j adds or replaces later still get it; if
+ * there are none it goes to the console. If the package logger has
+ * appenders of its own, e.g. an AsyncAppender defined in log4j.xml, it is
+ * left as it is. close, at drain, writes out the buffer and puts the
+ * package logger back as it was.
+ *
+ * The debug methods only build the message if debug is enabled, filling
+ * each {} in the pattern with the next argument.
+ */
+final class Diagnostics {
+	static final String PACKAGE_LOGGER = "au.gov.nla.kinetica.events";
+	private static final int DEFAULT_BUFFER = 1024;
+	private static final String LAYOUT = "%r [%t] %p %c %x - %m%n";
+
+	private static boolean configured;
+	private static AsyncAppender async;
+
+	private Diagnostics() {
+	}
+
+	static synchronized void configure() {
+		if (configured) {
+			return;
+		}
+		configured = true;
+
+		Logger pkg = Logger.getLogger(PACKAGE_LOGGER);
+		if (pkg.getAllAppenders().hasMoreElements()) {
+			return;
+		}
+
+		async = new AsyncAppender();
+		async.setName("EventsDiagnostics");
+		async.setBlocking(false);
+		async.setBufferSize(bufferSize());
+		async.addAppender(new ParentAppender(pkg));
+		pkg.addAppender(async);
+		// the parents' appenders are behind the buffer now
+		pkg.setAdditivity(false);
+	}
+
+	/**
+	 * Write out the buffered messages and log straight to the parents'
+	 * appenders from now on.
+	 */
+	static synchronized void close() {
+		if (async == null) {
+			return;
+		}
+		Logger pkg = Logger.getLogger(PACKAGE_LOGGER);
+		pkg.removeAppender(async);
+		pkg.setAdditivity(true);
+		async.close();
+		async = null;
+	}
+
+	/**
+	 * Hands a message to the appenders of the package logger's parents, as
+	 * log4j would have with the package logger additive.
+	 */
+	private static final class ParentAppender extends AppenderSkeleton {
+		private final Logger pkg;
+		private Appender console;
+
+		ParentAppender(Logger pkg) {
+			this.pkg = pkg;
+		}
+
+		protected void append(LoggingEvent event) {
+			boolean written = false;
+			for (Category c = pkg.getParent(); c != null; c = c.getParent()) {
+				for (Enumeration<?> e = c.getAllAppenders(); e.hasMoreElements();) {
+					((Appender) e.nextElement()).doAppend(event);
+					written = true;
+				}
+				if (!c.getAdditivity()) {
+					break;
+				}
+			}
+			if (!written) {
+				if (console == null) {
+					console = new ConsoleAppender(new PatternLayout(LAYOUT));
+				}
+				console.doAppend(event);
+			}
+		}
+
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		public void close() {
+			if (console != null) {
+				console.close();
+			}
+			closed = true;
+		}
+	}
+
+	private static int bufferSize() {
+		try {
+			String size = EventConfig.get().getProperty("DiagnosticsBuffer");
+			return (size == null) ? DEFAULT_BUFFER : Math.max(1, Integer.parseInt(size.trim()));
+		} catch (NumberFormatException e) {
+			return DEFAULT_BUFFER;
+		}
+	}
+
+	static void debug(Logger log, String pattern, Object a) {
+		if (log.isDebugEnabled()) {
+			log.debug(format(pattern, a));
+		}
+	}
+
+	static void debug(Logger log, String pattern, Object a, Object b) {
+		if (log.isDebugEnabled()) {
+			log.debug(format(pattern, a, b));
+		}
+	}
+
+	static void debug(Logger log, String pattern, Object a, Object b, Object c) {
+		if (log.isDebugEnabled()) {
+			log.debug(format(pattern, a, b, c));
+		}
+	}
+
+	static void debug(Logger log, String pattern, Object... args) {
+		if (log.isDebugEnabled()) {
+			log.debug(format(pattern, args));
+		}
+	}
+
+	static String format(String pattern, Object... args) {
+		StringBuilder s = new StringBuilder(pattern.length() + 16 * args.length);
+		int from = 0;
+		for (Object arg : args) {
+			int at = pattern.indexOf("{}", from);
+			if (at < 0) {
+				break;
+			}
+			s.append(pattern, from, at).append(arg);
+			from = at + 2;
+		}
+		return s.append(pattern, from, pattern.length()).toString();
+	}
+}
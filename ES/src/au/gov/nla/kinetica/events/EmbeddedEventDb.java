@@ -0,0 +1,250 @@
+package au.gov.nla.kinetica.events;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.h2.api.Trigger;
+
+/**
+ * An in-memory H2 database in Oracle mode standing in for the events db,
+ * for EventLoadTest and for trying the pipeline out on a machine without
+ * access to Oracle.
+ *
+ * It has the event, interval, accumulator, accumulator_shd, user_sketch and
+ * payload tables the EventLogger statements use, a p_check_missing_intervals
+ * function that adds the day and month intervals for a point in time, and
+ * a trigger on accumulator_shd that adds each row to its accumulator tote
+ * the way TRG_INS_ACCUMSHD does.
+ *
+ * Connect to it through DBurl=jdbc:eventdb:mem once start() has been
+ * called. H2 reads a bare interval as the start of an interval literal,
+ * so connections made that way quote the word in every statement before
+ * passing it on; none of the EventLogger statements use interval literals.
+ */
+public class EmbeddedEventDb implements Trigger {
+	public static final String URL = "jdbc:eventdb:mem";
+	public static final String USER = "sa";
+	public static final String PASSWORD = "";
+
+	private static final String URL_PREFIX = "jdbc:eventdb:";
+	private static final String H2_URL = "jdbc:h2:mem:events;MODE=Oracle;DB_CLOSE_DELAY=-1";
+	private static final Pattern INTERVAL = Pattern.compile("(?i)\\binterval\\b");
+
+	private static boolean registered;
+
+	static final String DAY = "day";
+	static final String MONTH = "month";
+
+	private static final String[] SCHEMA = {
+		"create table event (username varchar(255), service varchar(255), etime timestamp,"
+				+ " address varchar(255), input varchar(4000), output varchar(4000),"
+				+ " status varchar(20), last_status_change timestamp)",
+		"create index event_etime on event (etime)",
+		"create sequence interval_seq",
+		"create table interval (id int primary key, type varchar(20), istart timestamp, iend timestamp)",
+		"create index interval_istart on interval (istart)",
+		"create table accumulator (username varchar(255), service varchar(255), interval int, tote int,"
+				+ " primary key (interval, username, service))",
+		"create table accumulator_shd (username varchar(255), service varchar(255), interval int,"
+				+ " accumnum int, last_status_change timestamp)",
+		"create table payload (hash varchar(64) primary key, content varchar(4000), last_status_change timestamp)",
+		"create table user_sketch (interval int, service varchar(255), sketch blob,"
+				+ " last_status_change timestamp, primary key (interval, service))",
+		"create alias p_check_missing_intervals for \"" + EmbeddedEventDb.class.getName() + ".checkMissingIntervals\"",
+		"create trigger trg_ins_accumshd after insert on accumulator_shd for each row call \""
+				+ EmbeddedEventDb.class.getName() + "\"",
+	};
+
+	/**
+	 * Create the schema, if it is not there already, and return the url to
+	 * connect to it with. The db lasts until the JVM exits.
+	 */
+	public static synchronized String start() throws SQLException {
+		if (!registered) {
+			DriverManager.registerDriver(new EventDbDriver());
+			registered = true;
+		}
+		Connection conn = DriverManager.getConnection(URL, USER, PASSWORD);
+		try {
+			ResultSet rs = conn.getMetaData().getTables(null, null, "ACCUMULATOR_SHD", null);
+			boolean exists = rs.next();
+			rs.close();
+			if (!exists) {
+				Statement st = conn.createStatement();
+				for (String sql : SCHEMA) {
+					st.execute(sql);
+				}
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+		return URL;
+	}
+
+	/**
+	 * p_check_missing_intervals: add the day and month intervals holding
+	 * ptInTime (yyyy-MM-dd HH:mm:ss) if they are missing. Returns the number
+	 * of intervals added.
+	 */
+	public static int checkMissingIntervals(Connection conn, String ptInTime) throws SQLException {
+		Calendar cal = Calendar.getInstance();
+		try {
+			cal.setTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(ptInTime));
+		} catch (ParseException e) {
+			throw new SQLException("bad point in time " + ptInTime);
+		}
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+
+		int added = 0;
+		Calendar end = (Calendar) cal.clone();
+		end.add(Calendar.DAY_OF_MONTH, 1);
+		added += addInterval(conn, DAY, cal, end);
+
+		cal.set(Calendar.DAY_OF_MONTH, 1);
+		end = (Calendar) cal.clone();
+		end.add(Calendar.MONTH, 1);
+		added += addInterval(conn, MONTH, cal, end);
+
+		return added;
+	}
+
+	private static int addInterval(Connection conn, String type, Calendar start, Calendar end)
+			throws SQLException {
+		Timestamp istart = new Timestamp(start.getTimeInMillis());
+		PreparedStatement ps = conn.prepareStatement(sql(
+				"select count(*) from interval where type = ? and istart = ?"));
+		try {
+			ps.setString(1, type);
+			ps.setTimestamp(2, istart);
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			if (rs.getInt(1) > 0) {
+				return 0;
+			}
+		} finally {
+			ps.close();
+		}
+
+		ps = conn.prepareStatement(sql(
+				"insert into interval values (interval_seq.nextval, ?, ?, ?)"));
+		try {
+			ps.setString(1, type);
+			ps.setTimestamp(2, istart);
+			ps.setTimestamp(3, new Timestamp(end.getTimeInMillis()));
+			return ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	// the TRG_INS_ACCUMSHD stand-in
+
+	public void init(Connection conn, String schemaName, String triggerName,
+			String tableName, boolean before, int type) {
+	}
+
+	public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(sql("update accumulator set tote = tote + ?"
+				+ " where interval = ? and username = ? and service = ?"));
+		try {
+			ps.setObject(1, newRow[3]);
+			ps.setObject(2, newRow[2]);
+			ps.setObject(3, newRow[0]);
+			ps.setObject(4, newRow[1]);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	public void close() {
+	}
+
+	public void remove() {
+	}
+
+	static String sql(String sql) {
+		return INTERVAL.matcher(sql).replaceAll("\"INTERVAL\"");
+	}
+
+	/**
+	 * Hands out H2 connections whose statements go through sql() first.
+	 */
+	static class EventDbDriver implements Driver {
+		public boolean acceptsURL(String url) {
+			return url != null && url.startsWith(URL_PREFIX);
+		}
+
+		public Connection connect(String url, Properties info) throws SQLException {
+			if (!acceptsURL(url)) {
+				return null;
+			}
+			return (Connection) rewriting(Connection.class, DriverManager.getConnection(H2_URL, info));
+		}
+
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		private static Object rewriting(final Class<?> type, final Object target) {
+			return Proxy.newProxyInstance(EmbeddedEventDb.class.getClassLoader(), new Class<?>[] { type },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+							String name = m.getName();
+							if (args != null && args.length > 0 && args[0] instanceof String
+									&& (name.startsWith("prepare") || name.startsWith("execute")
+											|| name.equals("addBatch") || name.equals("nativeSQL"))) {
+								args[0] = sql((String) args[0]);
+							}
+							try {
+								Object result = m.invoke(target, args);
+								if (name.equals("createStatement")) {
+									return rewriting(Statement.class, result);
+								}
+								return result;
+							} catch (InvocationTargetException e) {
+								throw e.getCause();
+							}
+						}
+					});
+		}
+	}
+}
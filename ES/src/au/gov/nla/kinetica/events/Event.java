@@ -161,7 +161,7 @@ public class Event implements Serializable {
      * Set the input.
      */
     public String input (String i) {
-    	if (i.length() > 4000) {
+    	if (i != null && i.length() > 4000) {
     		_input = i.substring(0, 4000);
     	} else {
     		_input = i;
@@ -184,7 +184,7 @@ public class Event implements Serializable {
      * Set the output.
      */
     public String output (String o) {
-    	if (o.length() > 4000) {
+    	if (o != null && o.length() > 4000) {
     		_output = o.substring(0, 4000);
     	} else {
     		_output = o;
@@ -199,6 +199,23 @@ public class Event implements Serializable {
 	return _status;
     }
 
+    /**
+     * Put back the status an event had when it was written out, e.g. to the
+     * spool, without counting it as a change.
+     */
+    void restoreStatus (String status) {
+	_status = status;
+    }
+
+    /**
+     * Put back the status an event had and when it last changed, e.g. when
+     * it is passed on to another process.
+     */
+    void restoreStatus (String status, Date lastStatusChange) {
+	_status = status;
+	_lastStatusChange = lastStatusChange;
+    }
+
     /**
      * Get the time of the last change to the event's status.
      */
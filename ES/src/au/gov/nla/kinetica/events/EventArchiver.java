@@ -0,0 +1,388 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * EventArchiver moves logged events older than a cutoff out of the event
+ * table into compressed files, taking them from logged to archived, so the
+ * table only holds recent events.
+ *
+ *   java au.gov.nla.kinetica.events.EventArchiver [days]
+ *
+ * Events older than days (ArchiveAfterDays in RDC.properties, 90 by
+ * default) are archived a day at a time, oldest first, into
+ * ArchiveDir/yyyy/MM/dd as ArchivePart files with an index. Each day is
+ * first marked archived, then read in etime order in pages of
+ * ArchiveFetchSize rows, each page starting where the last one ended
+ * rather than at an offset, and each page is written as one block. Once
+ * the day's part is on disk and reads back with the right number of rows
+ * its blocks go in the index and the marked rows are deleted. Marking and
+ * deleting are done ArchiveDeleteBatch rows at a time, committing after
+ * each batch so undo and locks stay small.
+ *
+ * The event table has no key, so the status is what picks out the rows
+ * being archived: a late event logged for the day while it is archived
+ * is left for the next run rather than deleted unread. If the part can't
+ * be written it is removed, and the marked rows are archived by the next
+ * run; a run stopped after the index is written but before the deletes
+ * are done archives those rows a second time.
+ *
+ * With PayloadDedup=true the pages join the payload table, so the archive
+ * holds the values rather than references, and once the days are done the
+ * payload rows no event references any more are swept. The unreferenced
+ * rows are found in one pass over the event table and deleted
+ * ArchiveDeleteBatch at a time, and only those no writer has touched since
+ * the cutoff or, if that is later, PayloadDedupTtl and an hour ago, since
+ * a writer goes on using a hash for PayloadDedupTtl without touching its
+ * row. Without PayloadDedup, a reference in a page stops the run.
+ */
+public class EventArchiver {
+	private static final int DEFAULT_AFTER_DAYS = 90;
+	private static final int DEFAULT_FETCH_SIZE = 5000;
+	private static final int DEFAULT_DELETE_BATCH = 5000;
+	private static final String DEFAULT_ARCHIVE_DIR = "/var/tmp/qarchive";
+
+	private static final String COLUMNS = "e.username, e.service, e.etime, e.address, e.input, e.output, "
+			+ "e.status, e.last_status_change";
+	private static final String REFERENCE = "'" + PayloadStore.PREFIX + "%'";
+	private static final int HASH_FROM = PayloadStore.PREFIX.length() + 1;
+	// the input and output payloads, if they are references
+	private static final String RESOLVED = COLUMNS + ", pi.hash, pi.content, po.hash, po.content from event e "
+			+ "left join payload pi on (e.input like " + REFERENCE
+			+ " and pi.hash = substr(e.input, " + HASH_FROM + ")) "
+			+ "left join payload po on (e.output like " + REFERENCE
+			+ " and po.hash = substr(e.output, " + HASH_FROM + "))";
+	private static final String OLDEST = "select min(etime) from event where etime < ? and status in (?, ?)";
+	private static final String PAGE_FROM = "where e.etime >= ? and e.etime < ? and e.status = ? order by e.etime";
+	private static final String PAGE_AFTER = "where e.etime > ? and e.etime < ? and e.status = ? order by e.etime";
+	private static final String AT = "where e.etime = ? and e.status = ?";
+	private static final String MARK = "update event set status = ? "
+			+ "where etime >= ? and etime < ? and status = ? and rownum <= ?";
+	private static final String DELETE = "delete from event "
+			+ "where etime >= ? and etime < ? and status = ? and rownum <= ?";
+	private static final String UNREFERENCED = "select hash from payload "
+			+ "where last_status_change < ? and hash not in ("
+			+ "select substr(input, " + HASH_FROM + ") from event where input like " + REFERENCE + " union all "
+			+ "select substr(output, " + HASH_FROM + ") from event where output like " + REFERENCE + ")";
+	// the row may have been touched since it was found
+	private static final String SWEEP = "delete from payload where hash = ? and last_status_change < ?";
+	// for writers' clocks and transactions still open at the ttl
+	private static final long SWEEP_MARGIN = 60 * 60 * 1000L;
+
+	private static Logger debugLog = Logger.getLogger(EventArchiver.class);
+
+	private final File dir;
+	private final int fetchSize;
+	private final int deleteBatch;
+	private final boolean payloads;
+
+	EventArchiver(File dir, int fetchSize, int deleteBatch, boolean payloads) {
+		this.dir = dir;
+		this.fetchSize = fetchSize;
+		this.deleteBatch = deleteBatch;
+		this.payloads = payloads;
+	}
+
+	/**
+	 * Archive every logged event before cutoff. Returns the number archived.
+	 */
+	long archive(Connection conn, long cutoff) throws SQLException, IOException {
+		Timestamp oldest;
+		PreparedStatement ps = conn.prepareStatement(OLDEST);
+		try {
+			ps.setTimestamp(1, new Timestamp(cutoff));
+			ps.setString(2, Event.STATUS_LOGGED);
+			// left marked by a run that did not finish
+			ps.setString(3, Event.STATUS_ARCHIVED);
+			ResultSet rs = ps.executeQuery();
+			oldest = rs.next() ? rs.getTimestamp(1) : null;
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		if (oldest == null) {
+			return 0;
+		}
+
+		Calendar day = Calendar.getInstance();
+		day.setTime(oldest);
+		day.set(Calendar.HOUR_OF_DAY, 0);
+		day.set(Calendar.MINUTE, 0);
+		day.set(Calendar.SECOND, 0);
+		day.set(Calendar.MILLISECOND, 0);
+
+		long total = 0;
+		while (day.getTimeInMillis() < cutoff) {
+			long from = day.getTimeInMillis();
+			day.add(Calendar.DAY_OF_MONTH, 1);
+			long to = Math.min(day.getTimeInMillis(), cutoff);
+			total += archiveDay(conn, from, to);
+		}
+		return total;
+	}
+
+	private long archiveDay(Connection conn, long from, long to) throws SQLException, IOException {
+		File partition = new File(dir, new SimpleDateFormat("yyyy/MM/dd").format(from));
+		long start = System.currentTimeMillis();
+		mark(conn, from, to);
+
+		ArchivePart part = new ArchivePart(partition);
+		boolean written = false;
+		try {
+			Timestamp end = new Timestamp(to);
+			Timestamp next = new Timestamp(from);
+			boolean after = false;
+			while (true) {
+				List<Object[]> page = readPage(conn, after ? PAGE_AFTER : PAGE_FROM, next, end);
+				if (page.size() < fetchSize) {
+					part.writeBlock(page);
+					break;
+				}
+
+				// the page may have stopped part way through the rows for its
+				// last etime, so leave those to the next page
+				Timestamp last = (Timestamp) page.get(page.size() - 1)[2];
+				int keep = page.size();
+				while (keep > 0 && last.equals(page.get(keep - 1)[2])) {
+					keep--;
+				}
+				if (keep > 0) {
+					part.writeBlock(page.subList(0, keep));
+					next = last;
+					after = false;
+				} else {
+					// a whole page at one time, take all of them at once
+					part.writeBlock(readAt(conn, last));
+					next = last;
+					after = true;
+				}
+			}
+			part.close();
+
+			if (part.getRowCount() > 0) {
+				long check = ArchivePart.countRows(part.getFile());
+				if (check != part.getRowCount()) {
+					throw new IOException(part.getFile() + " reads back " + check + " rows, expected "
+							+ part.getRowCount());
+				}
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				// the marked rows stay for the next run
+				part.discard();
+			}
+		}
+
+		long rows = part.getRowCount();
+		if (rows == 0) {
+			return 0;
+		}
+		part.index();
+
+		long deleted = delete(conn, from, to);
+		debugLog.info("archived " + rows + " events to " + part.getFile() + " and deleted " + deleted
+				+ " in " + (System.currentTimeMillis() - start) + "ms");
+		return rows;
+	}
+
+	private List<Object[]> readPage(Connection conn, String sql, Timestamp from, Timestamp to)
+			throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(select(sql));
+		try {
+			ps.setFetchSize(fetchSize);
+			ps.setMaxRows(fetchSize);
+			ps.setTimestamp(1, from);
+			ps.setTimestamp(2, to);
+			ps.setString(3, Event.STATUS_ARCHIVED);
+			return readRows(ps.executeQuery());
+		} finally {
+			ps.close();
+		}
+	}
+
+	private List<Object[]> readAt(Connection conn, Timestamp at) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(select(AT));
+		try {
+			ps.setFetchSize(fetchSize);
+			ps.setTimestamp(1, at);
+			ps.setString(2, Event.STATUS_ARCHIVED);
+			return readRows(ps.executeQuery());
+		} finally {
+			ps.close();
+		}
+	}
+
+	private String select(String where) {
+		return "select " + (payloads ? RESOLVED : COLUMNS + " from event e") + " " + where;
+	}
+
+	private List<Object[]> readRows(ResultSet rs) throws SQLException {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		while (rs.next()) {
+			rows.add(new Object[] { rs.getString(1), rs.getString(2), rs.getTimestamp(3),
+					rs.getString(4), value(rs, 5, 9), value(rs, 6, 11),
+					Event.STATUS_ARCHIVED, rs.getTimestamp(8) });
+		}
+		rs.close();
+		return rows;
+	}
+
+	/**
+	 * Archives hold the values, the payload rows may be shared: the column
+	 * value, or the payload it references from the hash and content
+	 * columns at payload.
+	 */
+	private String value(ResultSet rs, int column, int payload) throws SQLException {
+		String v = rs.getString(column);
+		if (!PayloadStore.isReference(v)) {
+			return v;
+		}
+		if (!payloads) {
+			throw new SQLException("event refers to " + v + ", archive with PayloadDedup=true");
+		}
+		if (rs.getString(payload) == null) {
+			throw new SQLException("no payload for " + v);
+		}
+		return rs.getString(payload + 1);
+	}
+
+	private long mark(Connection conn, long from, long to) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(MARK);
+		long total = 0;
+		try {
+			ps.setString(1, Event.STATUS_ARCHIVED);
+			ps.setTimestamp(2, new Timestamp(from));
+			ps.setTimestamp(3, new Timestamp(to));
+			ps.setString(4, Event.STATUS_LOGGED);
+			ps.setInt(5, deleteBatch);
+			int n;
+			do {
+				n = ps.executeUpdate();
+				conn.commit();
+				total += n;
+			} while (n > 0);
+		} finally {
+			ps.close();
+		}
+		return total;
+	}
+
+	private long delete(Connection conn, long from, long to) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(DELETE);
+		long total = 0;
+		try {
+			ps.setTimestamp(1, new Timestamp(from));
+			ps.setTimestamp(2, new Timestamp(to));
+			ps.setString(3, Event.STATUS_ARCHIVED);
+			ps.setInt(4, deleteBatch);
+			int n;
+			do {
+				n = ps.executeUpdate();
+				conn.commit();
+				total += n;
+			} while (n > 0);
+		} finally {
+			ps.close();
+		}
+		return total;
+	}
+
+	/**
+	 * Delete the payload rows no event refers to that have not been stored
+	 * or touched since before, or since PayloadDedupTtl and SWEEP_MARGIN
+	 * ago if that is earlier. Returns the number deleted.
+	 */
+	long sweep(Connection conn, long before) throws SQLException {
+		if (!payloads) {
+			return 0;
+		}
+		long start = System.currentTimeMillis();
+		long inUse = start - PayloadStore.getTtl() - SWEEP_MARGIN;
+		if (inUse < before) {
+			debugLog.warn("sweeping payloads untouched since " + new Timestamp(inUse) + " rather than "
+					+ new Timestamp(before) + ", writers may still be using later ones");
+			before = inUse;
+		}
+		Timestamp until = new Timestamp(before);
+
+		List<String> hashes = new ArrayList<String>();
+		PreparedStatement ps = conn.prepareStatement(UNREFERENCED);
+		try {
+			ps.setFetchSize(fetchSize);
+			ps.setTimestamp(1, until);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				hashes.add(rs.getString(1));
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+
+		ps = conn.prepareStatement(SWEEP);
+		long total = 0;
+		try {
+			for (int i = 0; i < hashes.size(); i++) {
+				ps.setString(1, hashes.get(i));
+				ps.setTimestamp(2, until);
+				ps.addBatch();
+				if ((i + 1) % deleteBatch == 0 || i == hashes.size() - 1) {
+					for (int n : ps.executeBatch()) {
+						// SUCCESS_NO_INFO is negative
+						total += Math.max(n, 0);
+					}
+					conn.commit();
+				}
+			}
+		} finally {
+			ps.close();
+		}
+		debugLog.info("swept " + total + " unused payloads in " + (System.currentTimeMillis() - start) + "ms");
+		return total;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties props = EventConfig.get().getProperties();
+		PayloadStore.configure(props);
+		int days = Integer.parseInt((args.length > 0) ? args[0]
+				: props.getProperty("ArchiveAfterDays", "" + DEFAULT_AFTER_DAYS).trim());
+		EventArchiver archiver = new EventArchiver(
+				new File(props.getProperty("ArchiveDir", DEFAULT_ARCHIVE_DIR).trim()),
+				Integer.parseInt(props.getProperty("ArchiveFetchSize", "" + DEFAULT_FETCH_SIZE).trim()),
+				Integer.parseInt(props.getProperty("ArchiveDeleteBatch", "" + DEFAULT_DELETE_BATCH).trim()),
+				PayloadStore.isEnabled());
+
+		Calendar cutoff = Calendar.getInstance();
+		cutoff.set(Calendar.HOUR_OF_DAY, 0);
+		cutoff.set(Calendar.MINUTE, 0);
+		cutoff.set(Calendar.SECOND, 0);
+		cutoff.set(Calendar.MILLISECOND, 0);
+		cutoff.add(Calendar.DAY_OF_MONTH, -days);
+
+		Connection conn = EventLogger.openConnection();
+		try {
+			long n = archiver.archive(conn, cutoff.getTimeInMillis());
+			System.out.println("archived " + n + " events logged before " + cutoff.getTime());
+			long swept = archiver.sweep(conn, cutoff.getTimeInMillis());
+			if (swept > 0) {
+				System.out.println("swept " + swept + " unused payloads");
+			}
+		} finally {
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * EventBulkLoader loads closed EventFileSink segments into the event table.
+ *
+ * If SinkLoadCommand is set in RDC.properties it is run once per segment
+ * through /bin/sh, with %f replaced by the segment path and %b by a path
+ * for rows the command rejects, e.g. a SQL*Loader direct path load:
+ *
+ *   SinkLoadCommand=gunzip -c %f | sqlldr laevents2/... control=event.ctl data=/dev/stdin bad=%b direct=true
+ *
+ * Exit status 2, SQL*Loader's warning that some rows were rejected and the
+ * rest committed, counts as loaded, so those rows are not loaded twice;
+ * the rejected rows are left in the segment's .bad file.
+ *
+ * Otherwise each segment is inserted over JDBC with array batches in a
+ * single transaction. A segment is claimed by renaming it to .loading, so
+ * more than one loader can share a directory, and it is deleted once
+ * loaded. A failed load puts the segment back to be tried again and the
+ * loader goes on to the next one. A segment that fails MAX_FAILURES times
+ * while others in the same runs load, so the fault is its own rather than
+ * the db's, is renamed to .failed and left for someone to look at.
+ *
+ * java au.gov.nla.kinetica.events.EventBulkLoader [sinkDir]
+ */
+class EventBulkLoader implements Runnable {
+	private static final String LOADING_SUFFIX = ".loading";
+	private static final String FAILED_SUFFIX = ".failed";
+	private static final String BAD_SUFFIX = ".bad";
+	private static final int MAX_FAILURES = 3;
+	// SQL*Loader: some rows rejected, the rest loaded
+	private static final int EXIT_WARN = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BATCH_SIZE = 5000;
+	private static final int COLUMNS = 8;
+
+	private static Logger debugLog = Logger.getLogger(EventBulkLoader.class);
+
+	private final File dir;
+	private final String loadCommand;
+	private ScheduledExecutorService scheduler;
+	// segment name to failed runs, while other segments loaded
+	private final Map<String, Integer> failures = new HashMap<String, Integer>();
+
+	EventBulkLoader(File dir, String loadCommand) {
+		this.dir = dir;
+		this.loadCommand = loadCommand;
+	}
+
+	synchronized void start(long interval) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EventBulkLoader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Load every closed segment currently in the directory, oldest first.
+	 */
+	public void run() {
+		try {
+			EventLogger.rollSinkIfDue();
+		} catch (IOException e) {
+			debugLog.warn("problem rolling event sink: " + e);
+		}
+
+		File[] segments = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.startsWith(EventFileSink.SEGMENT_PREFIX)
+						&& name.endsWith(EventFileSink.SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return;
+		}
+		Arrays.sort(segments);
+
+		List<File> failed = new ArrayList<File>();
+		boolean loaded = false;
+		for (File segment : segments) {
+			File claimed = new File(dir, segment.getName() + LOADING_SUFFIX);
+			if (!segment.renameTo(claimed)) {
+				// another loader got there first
+				continue;
+			}
+
+			try {
+				long start = System.currentTimeMillis();
+				int rows = (loadCommand == null) ? loadWithJdbc(claimed) : loadWithCommand(claimed);
+				if (!claimed.delete()) {
+					debugLog.warn("unable to delete loaded segment " + claimed);
+				}
+				debugLog.info("loaded " + (rows < 0 ? "" : rows + " rows from ") + segment.getName()
+						+ " in " + (System.currentTimeMillis() - start) + "ms");
+				failures.remove(segment.getName());
+				loaded = true;
+			} catch (Exception e) {
+				debugLog.error("problem loading " + segment + ", will retry: " + e);
+				claimed.renameTo(segment);
+				failed.add(segment);
+			}
+		}
+
+		// with nothing loaded the db may be down, so no segment is to blame
+		if (!loaded) {
+			return;
+		}
+		for (File segment : failed) {
+			Integer n = failures.get(segment.getName());
+			n = (n == null) ? 1 : n + 1;
+			if (n < MAX_FAILURES) {
+				failures.put(segment.getName(), n);
+				continue;
+			}
+			failures.remove(segment.getName());
+			File aside = new File(dir, segment.getName() + FAILED_SUFFIX);
+			if (segment.renameTo(aside)) {
+				debugLog.error("unable to load " + segment + " in " + n + " tries, setting it aside as " + aside);
+			}
+		}
+	}
+
+	private int loadWithCommand(File segment) throws IOException, InterruptedException {
+		File bad = new File(dir, segment.getName().substring(0,
+				segment.getName().length() - LOADING_SUFFIX.length()) + BAD_SUFFIX);
+		String command = loadCommand.replace("%f", segment.getPath()).replace("%b", bad.getPath());
+		Process p = new ProcessBuilder("/bin/sh", "-c", command).redirectErrorStream(true).start();
+
+		BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		String line;
+		while ((line = out.readLine()) != null) {
+			debugLog.debug("[SinkLoadCommand] " + line);
+		}
+		int exit = p.waitFor();
+		if (exit == EXIT_WARN) {
+			debugLog.warn("SinkLoadCommand rejected some rows of " + segment + ", see " + bad);
+		} else if (exit != 0) {
+			throw new IOException("SinkLoadCommand exited with " + exit);
+		}
+		return -1;
+	}
+
+	private int loadWithJdbc(File segment) throws Exception {
+		Reader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+				new FileInputStream(segment), 64 * 1024), UTF8), 64 * 1024);
+		Connection conn = EventLogger.openConnection();
+		int total = 0;
+		try {
+			List<String[]> rows = new ArrayList<String[]>(BATCH_SIZE);
+			String[] row;
+			while ((row = readRow(in)) != null) {
+				rows.add(row);
+				if (rows.size() == BATCH_SIZE) {
+					total += EventLogger.insertEventRows(conn, rows);
+					rows.clear();
+				}
+			}
+			total += EventLogger.insertEventRows(conn, rows);
+			conn.commit();
+			return total;
+		} catch (Exception e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			in.close();
+			conn.close();
+		}
+	}
+
+	/**
+	 * Read one CSV row as written by EventFileSink. Quoted values may hold
+	 * commas, doubled quotes and newlines. Returns null at end of input.
+	 */
+	static String[] readRow(Reader in) throws IOException {
+		String[] row = new String[COLUMNS];
+		StringBuilder value = new StringBuilder();
+		int col = 0;
+		boolean quoted = false;
+		int c = in.read();
+
+		if (c == -1) {
+			return null;
+		}
+
+		while (true) {
+			if (quoted) {
+				if (c == '"') {
+					c = in.read();
+					if (c != '"') {
+						quoted = false;
+						continue;
+					}
+				}
+				if (c == -1) {
+					throw new IOException("unterminated quoted value");
+				}
+				value.append((char) c);
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',' || c == '\n' || c == -1) {
+				if (col < COLUMNS) {
+					row[col] = value.toString();
+				}
+				col++;
+				value.setLength(0);
+				if (c != ',') {
+					break;
+				}
+			} else {
+				value.append((char) c);
+			}
+			c = in.read();
+		}
+
+		if (col != COLUMNS) {
+			throw new IOException("expected " + COLUMNS + " values but found " + col);
+		}
+		return row;
+	}
+
+	public static void main(String[] args) throws Exception {
+		EventLogger.verbose = true;
+		String dir = (args.length > 0) ? args[0] : EventLogger.getSinkDir();
+		new EventBulkLoader(new File(dir), EventLogger.getSinkLoadCommand()).run();
+	}
+}
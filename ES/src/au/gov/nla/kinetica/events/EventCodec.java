@@ -0,0 +1,212 @@
+package au.gov.nla.kinetica.events;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * EventCodec turns an EventExt into a single line of text and back again.
+ *
+ * The line layout is the one the EventSenderThread producer and consumer
+ * caches have always used:
+ *
+ *   user::service::time::status::input::output::address::accumNum::id[::d]
+ *
+ * where a trailing d marks an event that is only counted towards the
+ * accumulator. Lines written before events had ids have no id field, and
+ * are given a new id when read. Field values are escaped so that a "::", a newline or
+ * a backslash in the input or output of an event can no longer break the
+ * line apart, and a null field is written as \N, so it reads back as null
+ * rather than "". The status is read back as it was written.
+ *
+ * An input or output that PayloadCodec deflated while queued is written as
+ * \z followed by the deflated bytes in base64, and stays deflated when it
+ * is read back.
+ */
+final class EventCodec {
+	static final String DELIMITER = "::";
+	static final String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+	private static final String COMPRESSED = "\\z";
+	private static final String NULL = "\\N";
+
+	private static final int USR = 0;
+	private static final int SRV = 1;
+	private static final int TIM = 2;
+	private static final int STA = 3;
+	private static final int IN = 4;
+	private static final int OUT = 5;
+	private static final int ADR = 6;
+	private static final int TOT = 7;
+	private static final int ID = 8;
+	private static final int FIELDS = 9;
+	private static final String DISCARD = "d";
+
+	private static final ThreadLocal<SimpleDateFormat> sdf = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(TIME_FORMAT);
+		}
+	};
+
+	private EventCodec() {
+	}
+
+	/**
+	 * Append the line for item, terminated by a newline, to data.
+	 */
+	static StringBuilder encode(EventExt item, StringBuilder data) {
+		Event e = item.peekEvent();
+
+		escape(e.user(), data).append(DELIMITER);
+		escape(e.service(), data).append(DELIMITER);
+		data.append(sdf.get().format(e.time())).append(DELIMITER);
+		escape(e.status(), data).append(DELIMITER);
+		payload(e.input(), item.getCompressedInput(), data).append(DELIMITER);
+		payload(e.output(), item.getCompressedOutput(), data).append(DELIMITER);
+		escape(e.address(), data).append(DELIMITER);
+		data.append(item.getAccumNum()).append(DELIMITER);
+		data.append(item.getId());
+		if (item.isDiscard()) {
+			data.append(DELIMITER).append(DISCARD);
+		}
+		data.append('\n');
+
+		return data;
+	}
+
+	/**
+	 * Parse a line produced by encode (without its trailing newline).
+	 * Returns null if the line is not a complete event.
+	 */
+	static EventExt decode(String line) {
+		if (line == null) {
+			return null;
+		}
+
+		List<String> tokens = new ArrayList<String>(FIELDS);
+		int compressed = split(line, tokens);
+		boolean discard = (tokens.size() == FIELDS + 1) && DISCARD.equals(tokens.get(FIELDS));
+		if (tokens.size() != FIELDS && tokens.size() != FIELDS - 1 && !discard) {
+			return null;
+		}
+
+		Date etime;
+		try {
+			etime = sdf.get().parse(tokens.get(TIM));
+		} catch (ParseException pe) {
+			return null;
+		} catch (NullPointerException npe) {
+			return null;
+		}
+
+		Event e = new Event(tokens.get(USR), tokens.get(SRV), etime);
+		e.address(tokens.get(ADR));
+		e.input(isCompressed(compressed, IN) ? "" : tokens.get(IN));
+		e.output(isCompressed(compressed, OUT) ? "" : tokens.get(OUT));
+		String status = tokens.get(STA);
+		if (status == null || status.length() == 0) {
+			e.validate();
+		} else {
+			e.restoreStatus(status);
+		}
+
+		EventExt item;
+		try {
+			if (tokens.get(TOT) == null || (tokens.size() >= FIELDS && tokens.get(ID) == null)) {
+				return null;
+			}
+			int accumNum = Integer.parseInt(tokens.get(TOT).trim());
+			if (tokens.size() >= FIELDS) {
+				item = new EventExt(e, accumNum, Long.parseLong(tokens.get(ID).trim()));
+			} else {
+				item = new EventExt(e, accumNum);
+			}
+			item.setDiscard(discard);
+			if (compressed != 0) {
+				item.setCompressed(
+						isCompressed(compressed, IN) ? Base64.getDecoder().decode(tokens.get(IN)) : null,
+						isCompressed(compressed, OUT) ? Base64.getDecoder().decode(tokens.get(OUT)) : null);
+			}
+		} catch (IllegalArgumentException iae) {
+			// a bad number or bad base64
+			return null;
+		}
+		return item;
+	}
+
+	private static boolean isCompressed(int compressed, int field) {
+		return (compressed & (1 << field)) != 0;
+	}
+
+	private static StringBuilder payload(String s, byte[] compressed, StringBuilder data) {
+		if (compressed == null) {
+			return escape(s, data);
+		}
+		return data.append(COMPRESSED).append(Base64.getEncoder().encodeToString(compressed));
+	}
+
+	private static StringBuilder escape(String s, StringBuilder data) {
+		if (s == null) {
+			return data.append(NULL);
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '\\':
+				data.append("\\\\");
+				break;
+			case ':':
+				data.append("\\:");
+				break;
+			case '\n':
+				data.append("\\n");
+				break;
+			case '\r':
+				data.append("\\r");
+				break;
+			default:
+				data.append(c);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Split line into unescaped fields, null for a field written as null,
+	 * returning a bit set of the fields that were written compressed.
+	 */
+	private static int split(String line, List<String> tokens) {
+		StringBuilder field = new StringBuilder();
+		int len = line.length();
+		int compressed = 0;
+
+		for (int i = 0; i < len; i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && field.length() == 0 && line.startsWith(COMPRESSED, i)) {
+				compressed |= 1 << tokens.size();
+				i++;
+			} else if (c == '\\' && field.length() == 0 && line.startsWith(NULL, i)
+					&& (i + NULL.length() == len || line.startsWith(DELIMITER, i + NULL.length()))) {
+				tokens.add(null);
+				i += NULL.length() + DELIMITER.length() - 1;
+				if (i >= len) {
+					return compressed;
+				}
+			} else if (c == '\\' && i + 1 < len) {
+				char n = line.charAt(++i);
+				field.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+			} else if (c == ':' && i + 1 < len && line.charAt(i + 1) == ':') {
+				tokens.add(field.toString());
+				field.setLength(0);
+				i++;
+			} else {
+				field.append(c);
+			}
+		}
+		tokens.add(field.toString());
+
+		return compressed;
+	}
+}
@@ -0,0 +1,187 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * EventCollector is a standalone process that takes the events of every
+ * EventSender on the host and owns the writes to the events db, so a host
+ * needs one db session however many Tomcat JVMs and cron loggers it runs,
+ * and they no longer contend for the same accumulator rows.
+ *
+ *   java au.gov.nla.kinetica.events.EventCollector [RDC.properties]
+ *
+ * It listens on CollectorAddress (127.0.0.1:7071 by default) for the
+ * EventWire frames sent by EventForwarder, and puts each event on its own
+ * EventSenderThread queue. From there they are batched, spooled while the
+ * db is down, deduplicated by id and drained at shutdown like any other
+ * events, with the settings in the collector's RDC.properties. A frame is
+ * acknowledged once every one of its events is committed or flushed to the
+ * spool, so an acknowledged event survives the collector dying. If any was
+ * dropped by the overflow policy, or they are not all done within half of
+ * CollectorTimeout, the sender gets NAK, spools the batch and sends it
+ * again. Senders forward to it when their RDC.properties has
+ * ForwardToCollector=true. Unless its RDC.properties sets ConsumerBatchSize
+ * the collector writes up to DEFAULT_BATCH_SIZE events per transaction,
+ * rather than the sender default of one, since batching the writes of
+ * every JVM on the host is what it is for.
+ *
+ * Ids alone tell events apart, as EventIds gives every live sender on the
+ * host its own node.
+ *
+ * With AccumulatorCompaction=true, the collector on the CompactionOwner
+ * host also folds accumulator_shd into accumulator, see
+ * AccumulatorCompactor.
+ */
+public class EventCollector {
+	static final int DEFAULT_BATCH_SIZE = 500;
+
+	private static Logger debugLog = Logger.getLogger(EventCollector.class);
+
+	private final InetSocketAddress address;
+	private final long ackTimeout;
+	private final AtomicLong received = new AtomicLong();
+	private ServerSocket server;
+
+	EventCollector(String address, long ackTimeout) {
+		this.address = EventForwarder.parseAddress(address);
+		this.ackTimeout = ackTimeout;
+	}
+
+	void start() throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(address);
+		debugLog.info("[EventCollector] listening on " + address);
+
+		Thread acceptor = new Thread("EventCollector-accept") {
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						Socket s = server.accept();
+						serve(s);
+					} catch (IOException e) {
+						if (!server.isClosed()) {
+							debugLog.warn("[EventCollector] accept failed: " + e);
+						}
+					}
+				}
+			}
+		};
+		acceptor.start();
+	}
+
+	void stop() {
+		try {
+			server.close();
+		} catch (IOException e) {
+		}
+	}
+
+	long getReceivedCount() {
+		return received.get();
+	}
+
+	private void serve(final Socket s) {
+		Thread t = new Thread("EventCollector-" + s.getRemoteSocketAddress()) {
+			public void run() {
+				try {
+					s.setTcpNoDelay(true);
+					DataInputStream in = new DataInputStream(s.getInputStream());
+					OutputStream out = s.getOutputStream();
+					ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+					while (true) {
+						int len;
+						try {
+							len = in.readInt();
+						} catch (EOFException e) {
+							break;
+						}
+						if (len <= 0 || len > EventWire.MAX_FRAME) {
+							throw new IOException("bad frame length " + len);
+						}
+						if (buf.capacity() < len) {
+							buf = ByteBuffer.allocate(Math.max(len, buf.capacity() * 2));
+						}
+						in.readFully(buf.array(), 0, len);
+						buf.clear();
+						buf.limit(len);
+						out.write(take(EventWire.decode(buf)));
+						out.flush();
+					}
+				} catch (Exception e) {
+					debugLog.warn("[EventCollector] dropping connection from " + s.getRemoteSocketAddress() + ": " + e);
+				} finally {
+					try {
+						s.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Queue a batch and wait for it to be written or spooled, returning the
+	 * status to send back. A sender that gets NAK spools the batch and sends
+	 * it again later, and the ids of any events already written keep them
+	 * from being written twice.
+	 */
+	private int take(List<EventExt> batch) {
+		CountDownLatch done = new CountDownLatch(batch.size());
+		try {
+			for (EventExt item : batch) {
+				item.notifyDelivery(done);
+				EventSenderThread.getStats().record(item);
+				EventSenderThread.log(item);
+			}
+			if (!done.await(ackTimeout, TimeUnit.MILLISECONDS)) {
+				debugLog.warn("[EventCollector] " + done.getCount() + " of " + batch.size()
+						+ " events not written in " + ackTimeout + "ms");
+				return EventWire.NAK;
+			}
+			for (EventExt item : batch) {
+				if (item.isDropped()) {
+					debugLog.warn("[EventCollector] queue full, refusing a batch of " + batch.size());
+					return EventWire.NAK;
+				}
+			}
+			received.addAndGet(batch.size());
+			return EventWire.ACK;
+		} catch (Exception e) {
+			debugLog.warn("[EventCollector] unable to queue " + batch.size() + " events: " + e);
+			return EventWire.NAK;
+		}
+	}
+
+	public static void main(String[] argv) throws Exception {
+		EventConfig config = EventConfig.get((argv.length > 0) ? argv[0] : EventSender.DEFAULT_PROPERTIES);
+		Properties props = config.getProperties();
+		// the collector writes to the db itself
+		props.remove(EventSenderThread.FORWARD_PROPERTY);
+		props.setProperty("UseLinkedQ", "true");
+		EventSenderThread.setDefaultBatchSize(DEFAULT_BATCH_SIZE);
+
+		EventSenderThread.getHelper();
+		AccumulatorCompactor.start(props, EventLogger.getQueryTimeout());
+		long timeout = Long.parseLong(props.getProperty("CollectorTimeout",
+				"" + EventSenderThread.DEFAULT_COLLECTOR_TIMEOUT).trim());
+		new EventCollector(props.getProperty("CollectorAddress", EventForwarder.DEFAULT_ADDRESS),
+				Math.max(1, timeout / 2)).start();
+	}
+}
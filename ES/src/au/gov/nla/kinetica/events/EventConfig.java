@@ -0,0 +1,269 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * EventConfig is the RDC.properties shared by EventSender,
+ * EventSenderThread and EventLogger. It is loaded once, by whichever of
+ * them is used first, and the file it came from is then watched so that
+ * an edit is picked up without restarting Tomcat.
+ *
+ * The file is looked for as a class path resource, then as a file, first
+ * under the requested name and then as RDC.properties, the same order the
+ * EventSender constructor has always used. Only a file on disk (including
+ * a class path resource that is one) can be watched. The watcher thread
+ * runs until stopWatching, which EventSenderThread.drain calls at
+ * shutdown.
+ *
+ * Settings read once at start up, such as DBurl or track, keep their
+ * first value. Settings that can be tuned live are applied by the
+ * listeners that each class registers; see RDC.properties for the list.
+ */
+class EventConfig {
+	private static final String ALTERNATE_PROPERTIES = "RDC.properties";
+	// editors often write a file in more than one step
+	private static final long SETTLE_TIME = 200;
+
+	private static Logger debugLog = Logger.getLogger(EventConfig.class);
+	private static EventConfig config;
+
+	/**
+	 * Called with the new properties after the file has changed.
+	 */
+	interface Listener {
+		void configChanged(Properties props);
+	}
+
+	private volatile Properties props;
+	private final File file;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private Thread watcher;
+	private WatchService watchService;
+
+	private EventConfig(Properties props, File file) {
+		this.props = props;
+		this.file = file;
+	}
+
+	static EventConfig get() {
+		return get(EventSender.DEFAULT_PROPERTIES);
+	}
+
+	/**
+	 * The shared config, loading it from propFile if this is the first call.
+	 * A later call with a different propFile gets the config already loaded.
+	 */
+	static synchronized EventConfig get(String propFile) {
+		if (config == null) {
+			Properties p = new Properties();
+			File source = load(propFile, p);
+			config = new EventConfig(p, source);
+			config.watch();
+		}
+		return config;
+	}
+
+	Properties getProperties() {
+		return props;
+	}
+
+	String getProperty(String name) {
+		return props.getProperty(name);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Read the file again and, if anything in it has changed, pass the new
+	 * properties to every listener. A file that cannot be read is ignored
+	 * and the current settings are kept.
+	 */
+	synchronized void reload() {
+		if (file == null) {
+			return;
+		}
+
+		Properties p = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			debugLog.warn("unable to reload " + file + ", keeping the current settings: " + e);
+			return;
+		}
+		if (p.equals(props)) {
+			return;
+		}
+
+		props = p;
+		debugLog.info("reloaded " + file);
+		for (Listener listener : listeners) {
+			try {
+				listener.configChanged(p);
+			} catch (RuntimeException e) {
+				debugLog.error("problem applying new settings from " + file + ": " + e);
+			}
+		}
+	}
+
+	private void watch() {
+		if (file == null) {
+			debugLog.info("RDC.properties is not a file on disk, settings will not be reloaded");
+			return;
+		}
+
+		final WatchService ws;
+		final Path dir = file.getAbsoluteFile().getParentFile().toPath();
+		try {
+			ws = FileSystems.getDefault().newWatchService();
+			dir.register(ws, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+		} catch (IOException e) {
+			debugLog.warn("unable to watch " + file + ", settings will not be reloaded: " + e);
+			return;
+		}
+
+		watcher = new Thread("EventConfig-watcher") {
+			public void run() {
+				while (true) {
+					WatchKey key;
+					try {
+						key = ws.take();
+					} catch (InterruptedException e) {
+						return;
+					} catch (ClosedWatchServiceException e) {
+						return;
+					}
+
+					boolean changed = false;
+					for (WatchEvent<?> event : key.pollEvents()) {
+						Object name = event.context();
+						if (name != null && name.toString().equals(file.getName())) {
+							changed = true;
+						}
+					}
+					if (!key.reset()) {
+						debugLog.warn("stopped watching " + file);
+						return;
+					}
+
+					if (changed) {
+						try {
+							Thread.sleep(SETTLE_TIME);
+						} catch (InterruptedException e) {
+							return;
+						}
+						// fold in the events from the rest of the write
+						WatchKey more;
+						try {
+							more = ws.poll();
+						} catch (ClosedWatchServiceException e) {
+							return;
+						}
+						if (more != null) {
+							more.pollEvents();
+							more.reset();
+						}
+						reload();
+					}
+				}
+			}
+		};
+		watcher.setDaemon(true);
+		watchService = ws;
+		watcher.start();
+	}
+
+	/**
+	 * Stop the watcher thread; the file is not reloaded after this.
+	 */
+	synchronized void stopWatching() {
+		if (watcher == null) {
+			return;
+		}
+		watcher.interrupt();
+		try {
+			// wakes a take() that has not seen the interrupt yet
+			watchService.close();
+		} catch (IOException e) {
+		}
+		watcher = null;
+		watchService = null;
+	}
+
+	/**
+	 * Load propFile into p, returning the file it was read from, or null if
+	 * it came from somewhere that cannot be watched.
+	 */
+	private static File load(String propFile, Properties p) {
+		String[] names = { propFile, ALTERNATE_PROPERTIES };
+		for (String name : names) {
+			URL url = EventConfig.class.getClassLoader().getResource(
+					name.startsWith("/") ? name.substring(1) : name);
+			if (url != null && loadFrom(url, p)) {
+				return "file".equals(url.getProtocol()) ? new File(url.getPath()) : null;
+			}
+
+			File f = new File(name);
+			if (f.isFile() && loadFrom(f, p)) {
+				return f;
+			}
+		}
+
+		debugLog.error("unable to find " + propFile + " or " + ALTERNATE_PROPERTIES + ", using defaults");
+		return null;
+	}
+
+	private static boolean loadFrom(URL url, Properties p) {
+		try {
+			InputStream in = url.openStream();
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean loadFrom(File f, Properties p) {
+		try {
+			InputStream in = new FileInputStream(f);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -1,23 +1,205 @@
 package au.gov.nla.kinetica.events;
 
 import java.io.Serializable;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class EventExt implements Serializable {
 
 	private Event _e;
 	private int _accumNum;
+	// unique id assigned at send time, kept through spooling and replay
+	private long _id;
+	// end offset of this event in the producer cache, 0 if not cached
+	private transient long _cacheEnd;
+	// a discarded event only counts towards the accumulator, it gets no
+	// event row
+	private boolean _discard;
+	// input and output deflated by PayloadCodec while queued, null if not
+	private byte[] _input;
+	private byte[] _output;
+	// the EventCodec line, built once for the sinks that write it
+	private transient String _encoded;
+	// counted down once the event is committed or spooled, for a collector
+	// that acknowledges its sender only then
+	private transient AtomicReference<CountDownLatch> _delivery;
+	private transient volatile boolean _dropped;
 
 	public EventExt(Event e, int accumNum) {
+		this(e, accumNum, EventIds.next());
+	}
+
+	EventExt(Event e, int accumNum, long id) {
 		_e = e;
 		_accumNum = accumNum;
+		_id = id;
+	}
+
+	/**
+	 * An event that is only to be counted towards the accumulator.
+	 */
+	static EventExt discarded(Event e, int accumNum) {
+		EventExt item = new EventExt(e, accumNum);
+		item._discard = true;
+		return item;
+	}
+
+	boolean isDiscard() {
+		return _discard;
+	}
+
+	/**
+	 * Count latch down when the event has been committed, spooled or
+	 * dropped.
+	 */
+	void notifyDelivery(CountDownLatch latch) {
+		_delivery = new AtomicReference<CountDownLatch>(latch);
+	}
+
+	boolean awaitsDelivery() {
+		return _delivery != null && _delivery.get() != null;
+	}
+
+	/**
+	 * The event is in the db, or flushed to the spool, or was already
+	 * written, so it will not be lost.
+	 */
+	void delivered() {
+		AtomicReference<CountDownLatch> delivery = _delivery;
+		if (delivery != null) {
+			CountDownLatch latch = delivery.getAndSet(null);
+			if (latch != null) {
+				latch.countDown();
+			}
+		}
+	}
+
+	/**
+	 * The event was dropped by the overflow policy.
+	 */
+	void dropped() {
+		_dropped = true;
+		delivered();
+	}
+
+	boolean isDropped() {
+		return _dropped;
+	}
+
+	void setDiscard(boolean discard) {
+		_discard = discard;
+	}
+
+	public long getId() {
+		return _id;
 	}
 	
 	public int getAccumNum() {
 		return _accumNum;
 	}
 
+	/**
+	 * The event, with any compressed input and output inflated back into it.
+	 * Throws IllegalStateException if they cannot be inflated, leaving them
+	 * compressed, so the event is rejected with them rather than logged
+	 * without them.
+	 */
 	public Event getEvent() {
+		if (_input != null || _output != null) {
+			inflate();
+		}
+		return _e;
+	}
+
+	/**
+	 * The event without inflating its payload, for callers that only need
+	 * the user, service, time or address.
+	 */
+	Event peekEvent() {
 		return _e;
 	}
+
+	/**
+	 * Deflate large input and output values while the event is queued. The
+	 * event is copied first, so the caller's Event is left as it was.
+	 */
+	void compact() {
+		byte[] in = PayloadCodec.compress(_e.input());
+		byte[] out = PayloadCodec.compress(_e.output());
+		if (in == null && out == null) {
+			return;
+		}
+
+		Event copy = new Event(_e.user(), _e.service(), _e.time());
+		copy.address(_e.address());
+		copy.input((in == null) ? _e.input() : "");
+		copy.output((out == null) ? _e.output() : "");
+		copy.validate();
+		_e = copy;
+		_input = in;
+		_output = out;
+	}
+
+	/**
+	 * A copy for the sinks, which the consumer logging or inflating this
+	 * event afterwards does not change. Compressed payloads are shared, they
+	 * are never changed.
+	 */
+	synchronized EventExt snapshot() {
+		Event copy = new Event(_e.user(), _e.service(), new Date(_e.time().getTime()));
+		copy.address(_e.address());
+		copy.input(_e.input());
+		copy.output(_e.output());
+		copy.restoreStatus(_e.status());
+		EventExt item = new EventExt(copy, _accumNum, _id);
+		item._discard = _discard;
+		item._input = _input;
+		item._output = _output;
+		return item;
+	}
+
+	byte[] getCompressedInput() {
+		return _input;
+	}
+
+	byte[] getCompressedOutput() {
+		return _output;
+	}
+
+	void setCompressed(byte[] input, byte[] output) {
+		_input = input;
+		_output = output;
+	}
+
+	/**
+	 * The EventCodec line for this event, newline included. Built on first
+	 * use and shared after that; compressed payloads stay compressed.
+	 */
+	synchronized String encoded() {
+		if (_encoded == null) {
+			_encoded = EventCodec.encode(this, new StringBuilder(256)).toString();
+		}
+		return _encoded;
+	}
+
+	private synchronized void inflate() {
+		if (_input != null) {
+			_e.input(PayloadCodec.inflate(_input));
+			_input = null;
+		}
+		if (_output != null) {
+			_e.output(PayloadCodec.inflate(_output));
+			_output = null;
+		}
+	}
+
+	long getCacheEnd() {
+		return _cacheEnd;
+	}
+
+	void setCacheEnd(long cacheEnd) {
+		_cacheEnd = cacheEnd;
+	}
 	
 }
@@ -0,0 +1,247 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * EventFileSink writes detail events to gzipped CSV segment files that are
+ * ready to be bulk loaded into the event table.
+ *
+ * Each row has the event table columns in EVENT_INSERT order:
+ *
+ *   username,service,time,address,input,output,status,last_status_change
+ *
+ * with every text value in double quotes (quotes inside doubled) and times
+ * as yyyy-MM-dd HH:mm:ss, which suits SQL*Loader or an external table with
+ * OPTIONALLY ENCLOSED BY '"'. A segment is written as
+ * events-&lt;time&gt;-&lt;node&gt;-&lt;seq&gt;.csv.gz.open and renamed to drop the .open
+ * once it is closed, either because it has reached the size limit or
+ * because it has been open for the roll interval. Only closed segments are
+ * picked up by EventBulkLoader.
+ *
+ * A segment left .open by a crash is recovered when the next sink opens on
+ * the directory, once it has not been written to for two roll intervals,
+ * so a segment another process is still writing is left alone. Its rows up
+ * to the last complete one are written to a closed segment and the .open
+ * file is deleted.
+ *
+ * Once closed the sink refuses further events.
+ */
+class EventFileSink {
+	static final String SEGMENT_PREFIX = "events-";
+	static final String SEGMENT_SUFFIX = ".csv.gz";
+	private static final String OPEN_SUFFIX = ".open";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static Logger debugLog = Logger.getLogger(EventFileSink.class);
+
+	private final File dir;
+	private final long segmentSize;
+	private final long rollInterval;
+	private final String node = Integer.toHexString(new SecureRandom().nextInt());
+	private final SimpleDateFormat sdf = new SimpleDateFormat(EventCodec.TIME_FORMAT);
+	private final SimpleDateFormat nameFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+	private final StringBuilder row = new StringBuilder();
+
+	private File segment;
+	private Writer writer;
+	private long written;
+	private long opened;
+	private int seq;
+	private boolean closed;
+
+	EventFileSink(File dir, long segmentSize, long rollInterval) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.rollInterval = rollInterval;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create event sink directory " + dir);
+		}
+		recover();
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	synchronized void append(Event e) throws IOException {
+		if (closed) {
+			throw new IOException("event sink " + dir + " is closed");
+		}
+		long now = System.currentTimeMillis();
+		if (writer != null && now - opened >= rollInterval) {
+			roll();
+		}
+		if (writer == null) {
+			open(now);
+		}
+
+		row.setLength(0);
+		quote(e.user()).append(',');
+		quote(e.service()).append(',');
+		row.append(sdf.format(e.time())).append(',');
+		quote(e.address()).append(',');
+		quote(e.input()).append(',');
+		quote(e.output()).append(',');
+		quote(e.status()).append(',');
+		row.append(sdf.format(e.lastStatusChange())).append('\n');
+
+		writer.write(row.toString());
+		written += row.length();
+		if (written >= segmentSize) {
+			roll();
+		}
+	}
+
+	/**
+	 * Close the current segment if it has been open for the roll interval,
+	 * so that a quiet period does not hold events back from the loader.
+	 */
+	synchronized void rollIfDue() throws IOException {
+		if (writer != null && System.currentTimeMillis() - opened >= rollInterval) {
+			roll();
+		}
+	}
+
+	synchronized void close() throws IOException {
+		closed = true;
+		roll();
+	}
+
+	/**
+	 * Close the .open segments that have been abandoned, keeping their
+	 * complete rows.
+	 */
+	private void recover() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long stale = System.currentTimeMillis() - 2 * rollInterval;
+		for (File open : files) {
+			String name = open.getName();
+			if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX + OPEN_SUFFIX)
+					|| open.lastModified() > stale) {
+				continue;
+			}
+			File closed = new File(dir, name.substring(0, name.length() - OPEN_SUFFIX.length()));
+			try {
+				long rows = salvage(open, closed);
+				if (!open.delete()) {
+					debugLog.error("unable to remove recovered event sink segment " + open);
+				}
+				debugLog.info("recovered " + rows + " events from event sink segment " + open);
+			} catch (IOException e) {
+				debugLog.error("unable to recover event sink segment " + open + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Copy the complete rows of a segment cut short into a closed one. A
+	 * row ends at a newline outside quotes, so a value holding a newline
+	 * does not end it.
+	 */
+	private long salvage(File open, File closed) throws IOException {
+		File tmp = new File(dir, closed.getName() + ".recovering");
+		long rows = 0;
+		Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(open),
+				BUFFER_SIZE), UTF8);
+		try {
+			Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp),
+					BUFFER_SIZE), UTF8);
+			try {
+				StringBuilder current = new StringBuilder();
+				boolean quoted = false;
+				char[] buf = new char[BUFFER_SIZE];
+				int n;
+				try {
+					while ((n = in.read(buf)) > 0) {
+						for (int i = 0; i < n; i++) {
+							char c = buf[i];
+							current.append(c);
+							if (c == '"') {
+								quoted = !quoted;
+							} else if (c == '\n' && !quoted) {
+								out.write(current.toString());
+								current.setLength(0);
+								rows++;
+							}
+						}
+					}
+				} catch (EOFException e) {
+					// cut short, the rest is lost
+				} catch (ZipException e) {
+					// cut short, the rest is lost
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		if (rows == 0) {
+			tmp.delete();
+		} else if (!tmp.renameTo(closed)) {
+			throw new IOException("unable to rename " + tmp + " to " + closed);
+		}
+		return rows;
+	}
+
+	private void open(long now) throws IOException {
+		String name = SEGMENT_PREFIX + nameFormat.format(new Date(now)) + "-" + node
+				+ "-" + (seq++) + SEGMENT_SUFFIX;
+		segment = new File(dir, name);
+		writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+				new FileOutputStream(new File(dir, name + OPEN_SUFFIX)), BUFFER_SIZE), UTF8),
+				BUFFER_SIZE);
+		written = 0;
+		opened = now;
+	}
+
+	private void roll() throws IOException {
+		if (writer == null) {
+			return;
+		}
+		writer.close();
+		writer = null;
+		if (!new File(dir, segment.getName() + OPEN_SUFFIX).renameTo(segment)) {
+			debugLog.error("unable to close event sink segment " + segment);
+		}
+		segment = null;
+	}
+
+	private StringBuilder quote(String s) {
+		row.append('"');
+		if (s != null) {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"') {
+					row.append('"');
+				}
+				row.append(c);
+			}
+		}
+		return row.append('"');
+	}
+}
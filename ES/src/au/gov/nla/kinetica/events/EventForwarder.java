@@ -0,0 +1,97 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Sends the events of an EventSenderThread to the host's EventCollector
+ * instead of writing them to the db, when ForwardToCollector=true.
+ *
+ * Each batch is encoded into one reused buffer and written as a single
+ * frame, and send returns once the collector has acknowledged it. Any
+ * failure closes the connection and is thrown to the caller, which treats
+ * it like a db failure and spools the batch; the next send reconnects.
+ */
+class EventForwarder {
+	static final String DEFAULT_ADDRESS = "127.0.0.1:7071";
+	private static final int CONNECT_TIMEOUT = 2000;
+	private static final int INITIAL_BUFFER = 64 * 1024;
+
+	private final InetSocketAddress address;
+	private final int timeout;
+	private Socket socket;
+	private OutputStream out;
+	private DataInputStream in;
+	private ByteBuffer buf = ByteBuffer.allocate(INITIAL_BUFFER);
+
+	EventForwarder(String address, int timeout) {
+		this.address = parseAddress(address);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * host:port, or just a port on the loopback address.
+	 */
+	static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0) {
+			return new InetSocketAddress("127.0.0.1", Integer.parseInt(address.trim()));
+		}
+		return new InetSocketAddress(address.substring(0, colon).trim(),
+				Integer.parseInt(address.substring(colon + 1).trim()));
+	}
+
+	synchronized void send(List<EventExt> batch) throws IOException {
+		try {
+			if (socket == null) {
+				connect();
+			}
+			buf = EventWire.encode(batch, buf);
+			out.write(buf.array(), 0, buf.limit());
+			out.flush();
+			byte status = in.readByte();
+			if (status != EventWire.ACK) {
+				throw new IOException("collector at " + address + " refused " + batch.size() + " events");
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void connect() throws IOException {
+		Socket s = new Socket();
+		try {
+			s.connect(address, CONNECT_TIMEOUT);
+			s.setSoTimeout(timeout);
+			s.setTcpNoDelay(true);
+			out = s.getOutputStream();
+			in = new DataInputStream(s.getInputStream());
+			socket = s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	synchronized void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			socket = null;
+			out = null;
+			in = null;
+		}
+	}
+
+	public String toString() {
+		return address.toString();
+	}
+}
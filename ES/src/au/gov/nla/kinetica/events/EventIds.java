@@ -0,0 +1,92 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Generates compact unique ids for events at send time.
+ * 
+ * An id is a positive long made of the milliseconds since 2012-01-01 (41
+ * bits), a node number taken once per EventSender class loader (10 bits)
+ * and a sequence within the millisecond (12 bits). Ids from one node only
+ * ever increase, and the node number keeps webapps and JVMs on the same
+ * host apart, which the EventCollector relies on to deduplicate the events
+ * of every sender on the host by id alone.
+ *
+ * Nodes are handed out by locking one byte of /var/tmp/eventIds.nodes, the
+ * first free one from a random start, and the lock is held for the life of
+ * the JVM, so no two live class loaders on the host share a node. Only if
+ * the file cannot be locked at all is the node left to chance.
+ */
+final class EventIds {
+	private static final long EPOCH = 1325376000000L; // 2012-01-01T00:00:00Z
+	private static final int NODE_BITS = 10;
+	private static final int SEQ_BITS = 12;
+	private static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+
+	private static final String NODE_FILE = "/var/tmp/eventIds.nodes";
+
+	private static Logger debugLog = Logger.getLogger(EventIds.class);
+
+	// held open, closing it would release the node
+	private static FileChannel nodeChannel;
+	private static final long node = takeNode();
+	private static final AtomicLong last = new AtomicLong();
+
+	private EventIds() {
+	}
+
+	private static long takeNode() {
+		int start = new SecureRandom().nextInt(1 << NODE_BITS);
+		try {
+			FileChannel channel = new RandomAccessFile(NODE_FILE, "rw").getChannel();
+			for (int i = 0; i < (1 << NODE_BITS); i++) {
+				int n = (start + i) & ((1 << NODE_BITS) - 1);
+				FileLock lock;
+				try {
+					lock = channel.tryLock(n, 1, false);
+				} catch (OverlappingFileLockException e) {
+					// held by another class loader in this JVM
+					lock = null;
+				}
+				if (lock != null) {
+					nodeChannel = channel;
+					return n;
+				}
+			}
+			channel.close();
+			debugLog.warn("every event id node in " + NODE_FILE + " is taken, using " + start + " unlocked");
+		} catch (IOException e) {
+			debugLog.warn("unable to lock an event id node in " + NODE_FILE + ", using " + start + " unlocked: " + e);
+		}
+		return start;
+	}
+
+	static long next() {
+		long base = ((System.currentTimeMillis() - EPOCH) << (NODE_BITS + SEQ_BITS))
+				| (node << SEQ_BITS);
+		while (true) {
+			long prev = last.get();
+			long id;
+			if (base > prev) {
+				id = base;
+			} else if ((prev & SEQ_MASK) != SEQ_MASK) {
+				id = prev + 1;
+			} else {
+				// sequence used up for this millisecond, borrow the next one
+				id = (((prev >>> (NODE_BITS + SEQ_BITS)) + 1) << (NODE_BITS + SEQ_BITS))
+						| (node << SEQ_BITS);
+			}
+			if (last.compareAndSet(prev, id)) {
+				return id;
+			}
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package au.gov.nla.kinetica.events;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventLoadTest drives the EventSender pipeline at a fixed rate and reports
+ * throughput, queue depth and send latency, for capacity planning and soak
+ * tests.
+ *
+ *   java au.gov.nla.kinetica.events.EventLoadTest rate=2000 threads=8 duration=300
+ *
+ * Settings, all optional, as name=value arguments:
+ * <ul>
+ * <li>rate - events per second across all threads (1000)
+ * <li>threads - sending threads (4)
+ * <li>duration - seconds to run for (60)
+ * <li>users - distinct users (1000)
+ * <li>services - distinct services, named la:sN:dbld (20)
+ * <li>skew - how strongly traffic favours the first users and services,
+ *     1 for uniform (2)
+ * <li>payload - input/output length range in chars, as min-max (0-500)
+ * <li>accum - largest accumNum, each event gets 1 to accum (1)
+ * <li>report - seconds between progress lines (10)
+ * <li>db - embedded to run against an in-memory stand-in for the events
+ *     db, or config to use DBurl from RDC.properties (embedded)
+ * </ul>
+ *
+ * Each thread sends on a fixed schedule. EventSender.send is synchronized
+ * and blocks, so a thread cannot send again until its last send has
+ * returned, and a slow send makes the sends after it late. Latency is
+ * measured from when a send was due rather than when it started, so that
+ * lateness is counted in the percentiles instead of only lowering the
+ * rate. Any other RDC.properties setting (MaxQSize, ConsumerBatchSize,
+ * ...) applies as usual.
+ */
+public class EventLoadTest {
+
+	private final int rate;
+	private final int threads;
+	private final long duration;
+	private final int users;
+	private final int services;
+	private final double skew;
+	private final int payloadMin;
+	private final int payloadMax;
+	private final int accumMax;
+	private final long reportInterval;
+	private final boolean embedded;
+
+	private final Histogram latency = new Histogram();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong accumSent = new AtomicLong();
+
+	EventLoadTest(Map<String, String> args) {
+		rate = Integer.parseInt(setting(args, "rate", "1000"));
+		threads = Integer.parseInt(setting(args, "threads", "4"));
+		duration = Long.parseLong(setting(args, "duration", "60")) * 1000;
+		users = Integer.parseInt(setting(args, "users", "1000"));
+		services = Integer.parseInt(setting(args, "services", "20"));
+		skew = Double.parseDouble(setting(args, "skew", "2"));
+		String[] payload = setting(args, "payload", "0-500").split("-");
+		payloadMin = Integer.parseInt(payload[0]);
+		payloadMax = Integer.parseInt(payload[payload.length - 1]);
+		accumMax = Integer.parseInt(setting(args, "accum", "1"));
+		reportInterval = Long.parseLong(setting(args, "report", "10")) * 1000;
+		embedded = setting(args, "db", "embedded").equalsIgnoreCase("embedded");
+	}
+
+	private static String setting(Map<String, String> args, String name, String def) {
+		String value = args.get(name);
+		return (value == null) ? def : value;
+	}
+
+	void run() throws Exception {
+		Properties props = EventConfig.get().getProperties();
+		props.setProperty("UseLinkedQ", "true");
+		if (embedded) {
+			// before EventLogger connects
+			props.setProperty("DBurl", EmbeddedEventDb.start());
+			props.setProperty("DBuser", EmbeddedEventDb.USER);
+			props.setProperty("DBpass", EmbeddedEventDb.PASSWORD);
+		}
+
+		final EventSender es = EventSender.getInstance();
+		final EventSenderThread est = EventSenderThread.getHelper();
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		// each thread sends every period ns, offset so they interleave
+		final long period = TimeUnit.SECONDS.toNanos(threads) / rate;
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		System.out.println("sending " + rate + " events/s from " + threads + " threads for "
+				+ (duration / 1000) + "s to " + (embedded ? "the embedded db" : props.getProperty("DBurl")));
+
+		for (int t = 0; t < threads; t++) {
+			final long offset = period * t / threads;
+			final Random random = new Random(t);
+			new Thread("EventLoadTest-" + t) {
+				public void run() {
+					try {
+						for (long due = start + offset; due < end; due += period) {
+							long wait = due - System.nanoTime();
+							if (wait > 0) {
+								LockSupport.parkNanos(wait);
+							}
+							sendOne(es, random);
+							latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		long lastSent = 0;
+		long lastReport = System.nanoTime();
+		while (!done.await(reportInterval, TimeUnit.MILLISECONDS)) {
+			long now = System.nanoTime();
+			long total = sent.get();
+			report(String.format("%6ds", TimeUnit.NANOSECONDS.toSeconds(now - start)),
+					(total - lastSent) * 1.0e9 / (now - lastReport), est.getItemCount());
+			lastSent = total;
+			lastReport = now;
+		}
+
+		double seconds = (System.nanoTime() - start) / 1.0e9;
+		long queued = est.getItemCount();
+		report(" total", sent.get() / seconds, queued);
+
+		long drainStart = System.currentTimeMillis();
+		EventSender.shutdown();
+		System.out.println("drained " + queued + " queued events in "
+				+ (System.currentTimeMillis() - drainStart) + "ms, " + failed.get() + " sends failed");
+
+		if (embedded) {
+			check();
+		}
+	}
+
+	private void sendOne(EventSender es, Random random) {
+		String user = "user" + pick(random, users);
+		String service = "la:s" + pick(random, services) + ":dbld";
+		int accumNum = 1 + random.nextInt(accumMax);
+		try {
+			es.send(user, service, new Date(), "10.0.0." + random.nextInt(256),
+					payload(random), payload(random), accumNum);
+			sent.incrementAndGet();
+			accumSent.addAndGet(accumNum);
+		} catch (Exception e) {
+			failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 0 to n-1, favouring low numbers more the higher the skew.
+	 */
+	private int pick(Random random, int n) {
+		return (int) (n * Math.pow(random.nextDouble(), skew));
+	}
+
+	private String payload(Random random) {
+		int len = payloadMin + random.nextInt(payloadMax - payloadMin + 1);
+		StringBuilder s = new StringBuilder(len);
+		// a query string, repetitive like the real ones
+		while (s.length() < len) {
+			s.append("query=dc.title%3D%22term").append(random.nextInt(1000))
+					.append("%22&maximumRecords=20&startRecord=").append(random.nextInt(100)).append('&');
+		}
+		s.setLength(len);
+		return s.toString();
+	}
+
+	private void report(String label, double throughput, long depth) {
+		System.out.println(String.format("%s %10.0f events/s  queue %8d  send latency us p50 %d p90 %d p99 %d p99.9 %d max %d",
+				label, throughput, depth, latency.percentile(50), latency.percentile(90),
+				latency.percentile(99), latency.percentile(99.9), latency.max()));
+	}
+
+	/**
+	 * Compare what reached the embedded db with what was sent. Every event
+	 * counts towards one day and one month interval.
+	 */
+	private void check() throws Exception {
+		Connection conn = DriverManager.getConnection(EmbeddedEventDb.URL,
+				EmbeddedEventDb.USER, EmbeddedEventDb.PASSWORD);
+		try {
+			Statement st = conn.createStatement();
+			ResultSet rs = st.executeQuery("select count(*) from event");
+			rs.next();
+			long events = rs.getLong(1);
+			rs = st.executeQuery("select coalesce(sum(tote), 0) from accumulator a, interval i"
+					+ " where a.interval = i.id and i.type = '" + EmbeddedEventDb.DAY + "'");
+			rs.next();
+			long totes = rs.getLong(1);
+			st.close();
+			System.out.println("db has " + events + " events (" + sent.get() + " sent) and day totes of "
+					+ totes + " (" + accumSent.get() + " sent); the rest are in the spool if the db fell behind");
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * A log-linear latency histogram in microseconds: exact below 64, then
+	 * 32 buckets per power of two, so percentiles are within about 3%.
+	 */
+	static class Histogram {
+		private static final int SUB_BITS = 6;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int HALF = SUB_BUCKETS / 2;
+		private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + 48 * HALF);
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			counts.incrementAndGet(Math.min(index(value), counts.length() - 1));
+			long m;
+			while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			}
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		long percentile(double p) {
+			long total = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				total += counts.get(i);
+			}
+			long rank = Math.max(1, (long) Math.ceil(total * p / 100.0));
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+			return 0;
+		}
+
+		private static int index(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+			return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+		}
+
+		private static long upperBound(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int k = index - SUB_BUCKETS;
+			int shift = k / HALF + 1;
+			long sub = k % HALF + HALF;
+			return ((sub + 1) << shift) - 1;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				System.err.println("usage: EventLoadTest [name=value ...], see the class doc for settings");
+				System.exit(1);
+			}
+			settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		new EventLoadTest(settings).run();
+		System.exit(0);
+	}
+}
@@ -26,7 +26,7 @@ package au.gov.nla.kinetica.events;
  */
 
 import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -37,12 +37,19 @@ import java.util.Properties;
 import java.util.Date;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
+
+import au.gov.nla.kinetica.events.jfr.StatementEvent;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Timestamp;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class EventLogger {
 	public static String DEFAULT_PROPERTIES = "/RDC.properties";
@@ -73,7 +80,7 @@ public class EventLogger {
 	private static final int IS_START = 1;
 	private static final int IS_END = 2;
 
-	private static final String ACCUM_SELECT = "select tote from accumulator "
+	static final String ACCUM_SELECT = "select tote from accumulator "
 			+ "where interval = ? and username = ? and service = ?";
 	private static final int AS_INTERVAL = 1;
 	private static final int AS_USERNAME = 2;
@@ -87,7 +94,7 @@ public class EventLogger {
 	private static final int AI_TOTE = 4;
 	private static final int AI_STATUS_CHANGE = 5;
 
-	private static final String EVENT_INSERT = "insert into event values (?, ?, ?, ?, ?, ?, ?, ?)";
+	static final String EVENT_INSERT = "insert into event values (?, ?, ?, ?, ?, ?, ?, ?)";
 	private static final int EV_USER = 1;
 	private static final int EV_SERVICE = 2;
 	private static final int EV_TIME = 3;
@@ -97,10 +104,24 @@ public class EventLogger {
 	private static final int EV_STATUS = 7;
 	private static final int EV_STATUS_CHANGE = 8;
 
+	private static final int DEFAULT_QUERY_TIMEOUT = 10;
+
+	// EventSink=file writes detail events to load-ready files instead of
+	// inserting them one row at a time; accumulation stays on JDBC.
+	public static final String SINK_JDBC = "jdbc";
+	public static final String SINK_FILE = "file";
+	private static final String DEFAULT_SINK_DIR = "/var/tmp/qevents";
+	private static final long DEFAULT_SINK_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final long DEFAULT_SINK_ROLL_INTERVAL = 60000;
+	private static final long DEFAULT_SINK_LOAD_INTERVAL = 60000;
+
 	static String qName;
 	static boolean verbose = false;
+	private static volatile int queryTimeout = DEFAULT_QUERY_TIMEOUT;
 	
 	private static FileOutputStream eventCache;
+	private static EventFileSink _fileSink;
+	private static EventBulkLoader _bulkLoader;
 	private static StringBuffer data = new StringBuffer();
 
 	static Logger debugLog;
@@ -118,6 +139,8 @@ public class EventLogger {
 	static {
 		try {
 			initEventLogger(DEFAULT_PROPERTIES);
+			IntervalProvisioner.start(_props, queryTimeout);
+			UserSketches.start(_props, queryTimeout);
 			initializeDBConn(_props);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -167,16 +190,320 @@ public class EventLogger {
 	}
 
 	static void logEvent(Event e, int accumNum) throws Exception {
+		logEvent(e, accumNum, false);
+	}
+
+	/**
+	 * Log an event and add accumNum to its totes. A discarded event is only
+	 * added to the totes, it gets no event row.
+	 */
+	static synchronized void logEvent(Event e, int accumNum, boolean discard) throws Exception {
 		String user = e.user();
 		String service = e.service();
 		Date time = e.time();
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 		String _etime = sdf.format(time);
 		
-		data.setLength(0);
-		// TODO: use stringbuffer here
-		data.append(user).append("::").append(service).append("::").append(_etime).append("::").append(accumNum).append("\n");
-		IOUtils.copy((InputStream) new ByteArrayInputStream(data.toString().getBytes()), eventCache);
+		if (_fileSink == null) {
+			data.setLength(0);
+			// TODO: use stringbuffer here
+			data.append(user).append("::").append(service).append("::").append(_etime).append("::").append(accumNum).append("\n");
+			IOUtils.copy((InputStream) new ByteArrayInputStream(data.toString().getBytes()), eventCache);
+		}
+
+		if (_dbconn == null) {
+			throw new SQLException("no connection to the events db");
+		}
+
+		PayloadStore.Batch payloads = PayloadStore.batch(_dbconn, queryTimeout);
+		try {
+			e.log();
+			Timestamp etime = new Timestamp(time.getTime());
+			if (_fileSink == null && !discard) {
+				_event_insert_ps.setString(EV_USER, user);
+				_event_insert_ps.setString(EV_SERVICE, service);
+				_event_insert_ps.setTimestamp(EV_TIME, etime);
+				_event_insert_ps.setString(EV_ADDRESS, e.address());
+				_event_insert_ps.setString(EV_INPUT, payloads.store(e.input()));
+				_event_insert_ps.setString(EV_OUTPUT, payloads.store(e.output()));
+				_event_insert_ps.setString(EV_STATUS, e.status());
+				_event_insert_ps.setTimestamp(EV_STATUS_CHANGE, new Timestamp(
+						e.lastStatusChange().getTime()));
+				StatementEvent jfr = StatementEvent.start();
+				_event_insert_ps.executeUpdate();
+				jfr.done("event insert", 1);
+			}
+
+			List<Integer> intervals = IntervalProvisioner.intervalsFor(time.getTime());
+			if (intervals == null) {
+				intervals = intervalsFor(etime);
+				if (intervals.isEmpty()) {
+					fixMissingIntervals(_etime);
+					intervals = intervalsFor(etime);
+				}
+			}
+			// before the commit, a user counted twice is still counted once
+			UserSketches.add(intervals, user, service);
+			List<String> rollups = ServiceRollups.of(service);
+			Map<ToteKey, Integer> totes = new LinkedHashMap<ToteKey, Integer>();
+			for (int iid : intervals) {
+				addTote(totes, new ToteKey(iid, user, service), accumNum);
+				for (String rollup : rollups) {
+					addTote(totes, new ToteKey(iid, user, rollup), accumNum);
+				}
+			}
+			accumulate(_accum_select_ps, _accum_ext_insert_ps, _accum_insert_ps, totes);
+
+			StatementEvent jfr = StatementEvent.start();
+			_dbconn.commit();
+			jfr.done("commit", 0);
+			payloads.committed();
+		} catch (Exception ex) {
+			try {
+				_dbconn.rollback();
+			} catch (SQLException rex) {
+				debugLog.warn("[RDCEventLogger::WARN] rollback failed: " + rex);
+			}
+			throw ex;
+		} finally {
+			payloads.close();
+		}
+
+		// only once the totes are committed, so a retried event is not
+		// written to the sink twice
+		if (_fileSink != null && !discard) {
+			appendToSink(e);
+		}
+	}
+
+	/**
+	 * Append a committed event to the file sink. The event is in the
+	 * accumulator already, so a failure here is logged rather than thrown:
+	 * retrying or spooling the event would count it twice.
+	 */
+	private static void appendToSink(Event e) {
+		try {
+			_fileSink.append(e);
+		} catch (IOException ex) {
+			debugLog.error("[RDCEventLogger::ERROR] event committed but not written to the event sink: "
+					+ ex + ": " + e);
+		}
+	}
+
+	/**
+	 * Write a batch of events in one transaction on the shared connection.
+	 */
+	static synchronized void logEvents(List<EventExt> batch) throws Exception {
+		if (_dbconn == null) {
+			throw new SQLException("no connection to the events db");
+		}
+		logEvents(_dbconn, batch);
+	}
+
+	/**
+	 * Write a batch of events on the given connection in one transaction.
+	 * Used by the parallel flush at shutdown, where each writer has its own
+	 * connection. The accumulated nums are summed per tote before they are
+	 * written, so each tote is touched once per batch.
+	 */
+	static void logEvents(java.sql.Connection conn, List<EventExt> batch) throws Exception {
+		PreparedStatement eventPs = prepare(conn, EVENT_INSERT, queryTimeout);
+		PreparedStatement intervalPs = prepare(conn, INTERVAL_SELECT, queryTimeout);
+		PreparedStatement selectPs = prepare(conn, ACCUM_SELECT, queryTimeout);
+		PreparedStatement extInsertPs = prepare(conn, ACCUM_EXT_INSERT, queryTimeout);
+		PreparedStatement insertPs = prepare(conn, ACCUM_INSERT, queryTimeout);
+		PayloadStore.Batch payloads = PayloadStore.batch(conn, queryTimeout);
+
+		try {
+			Map<Long, List<Integer>> intervalCache = new HashMap<Long, List<Integer>>();
+			Map<ToteKey, Integer> totes = new LinkedHashMap<ToteKey, Integer>();
+			int rows = 0;
+
+			for (EventExt item : batch) {
+				Event e = item.getEvent();
+				e.log();
+				Timestamp etime = new Timestamp(e.time().getTime());
+				if (_fileSink == null && !item.isDiscard()) {
+					eventPs.setString(EV_USER, e.user());
+					eventPs.setString(EV_SERVICE, e.service());
+					eventPs.setTimestamp(EV_TIME, etime);
+					eventPs.setString(EV_ADDRESS, e.address());
+					eventPs.setString(EV_INPUT, payloads.store(e.input()));
+					eventPs.setString(EV_OUTPUT, payloads.store(e.output()));
+					eventPs.setString(EV_STATUS, e.status());
+					eventPs.setTimestamp(EV_STATUS_CHANGE, new Timestamp(
+							e.lastStatusChange().getTime()));
+					eventPs.addBatch();
+					rows++;
+				}
+
+				List<Integer> intervals = IntervalProvisioner.intervalsFor(etime.getTime());
+				if (intervals == null) {
+					intervals = intervalCache.get(etime.getTime());
+				}
+				if (intervals == null) {
+					intervals = intervalsFor(intervalPs, etime);
+					if (intervals.isEmpty()) {
+						fixMissingIntervals(conn, new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(etime));
+						intervals = intervalsFor(intervalPs, etime);
+					}
+					intervalCache.put(etime.getTime(), intervals);
+				}
+				UserSketches.add(intervals, e.user(), e.service());
+				List<String> rollups = ServiceRollups.of(e.service());
+				for (int iid : intervals) {
+					addTote(totes, new ToteKey(iid, e.user(), e.service()), item.getAccumNum());
+					for (String rollup : rollups) {
+						addTote(totes, new ToteKey(iid, e.user(), rollup), item.getAccumNum());
+					}
+				}
+			}
+			if (rows > 0) {
+				StatementEvent jfr = StatementEvent.start();
+				eventPs.executeBatch();
+				jfr.done("event insert", rows);
+			}
+
+			accumulate(selectPs, extInsertPs, insertPs, totes);
+
+			StatementEvent jfr = StatementEvent.start();
+			conn.commit();
+			jfr.done("commit", 0);
+			payloads.committed();
+		} catch (Exception ex) {
+			try {
+				conn.rollback();
+			} catch (SQLException rex) {
+				debugLog.warn("[RDCEventLogger::WARN] rollback failed: " + rex);
+			}
+			throw ex;
+		} finally {
+			payloads.close();
+			eventPs.close();
+			intervalPs.close();
+			selectPs.close();
+			extInsertPs.close();
+			insertPs.close();
+		}
+
+		if (_fileSink != null) {
+			for (EventExt item : batch) {
+				if (!item.isDiscard()) {
+					appendToSink(item.getEvent());
+				}
+			}
+		}
+	}
+
+	private static void addTote(Map<ToteKey, Integer> totes, ToteKey key, int accumNum) {
+		Integer tote = totes.get(key);
+		totes.put(key, (tote == null) ? accumNum : tote + accumNum);
+	}
+
+	/**
+	 * Insert rows read from an EventFileSink segment, without committing.
+	 * Returns the number of rows inserted.
+	 */
+	static int insertEventRows(java.sql.Connection conn, List<String[]> rows) throws SQLException {
+		if (rows.isEmpty()) {
+			return 0;
+		}
+
+		PreparedStatement ps = prepare(conn, EVENT_INSERT, queryTimeout);
+		try {
+			for (String[] row : rows) {
+				ps.setString(EV_USER, row[EV_USER - 1]);
+				ps.setString(EV_SERVICE, row[EV_SERVICE - 1]);
+				ps.setTimestamp(EV_TIME, Timestamp.valueOf(row[EV_TIME - 1]));
+				ps.setString(EV_ADDRESS, row[EV_ADDRESS - 1]);
+				ps.setString(EV_INPUT, row[EV_INPUT - 1]);
+				ps.setString(EV_OUTPUT, row[EV_OUTPUT - 1]);
+				ps.setString(EV_STATUS, row[EV_STATUS - 1]);
+				ps.setTimestamp(EV_STATUS_CHANGE, Timestamp.valueOf(row[EV_STATUS_CHANGE - 1]));
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			return rows.size();
+		} finally {
+			ps.close();
+		}
+	}
+
+	static String getSinkDir() {
+		String dir = _props.getProperty("SinkDir");
+		return (dir == null) ? DEFAULT_SINK_DIR : dir.trim();
+	}
+
+	static String getSinkLoadCommand() {
+		String command = _props.getProperty("SinkLoadCommand");
+		return (command == null || command.trim().length() == 0) ? null : command.trim();
+	}
+
+	/**
+	 * Close the current sink segment if it is old enough, so the loader
+	 * does not wait on a quiet period.
+	 */
+	static void rollSinkIfDue() throws IOException {
+		if (_fileSink != null) {
+			_fileSink.rollIfDue();
+		}
+	}
+
+	private static void initSink(Properties props) throws IOException {
+		String sink = props.getProperty("EventSink");
+		if (sink == null || !sink.trim().equalsIgnoreCase(SINK_FILE)) {
+			return;
+		}
+
+		long segmentSize = DEFAULT_SINK_SEGMENT_SIZE;
+		long rollInterval = DEFAULT_SINK_ROLL_INTERVAL;
+		long loadInterval = DEFAULT_SINK_LOAD_INTERVAL;
+		if (props.getProperty("SinkSegmentSize") != null)
+			segmentSize = Long.parseLong(props.getProperty("SinkSegmentSize").trim());
+		if (props.getProperty("SinkRollInterval") != null)
+			rollInterval = Long.parseLong(props.getProperty("SinkRollInterval").trim());
+		if (props.getProperty("SinkLoadInterval") != null)
+			loadInterval = Long.parseLong(props.getProperty("SinkLoadInterval").trim());
+
+		_fileSink = new EventFileSink(new File(getSinkDir()), segmentSize, rollInterval);
+		if (loadInterval > 0) {
+			_bulkLoader = new EventBulkLoader(_fileSink.getDir(), getSinkLoadCommand());
+			_bulkLoader.start(loadInterval);
+		}
+	}
+
+	/**
+	 * Open a connection to the events db that is separate from the one the
+	 * logger itself uses. The caller is responsible for closing it.
+	 */
+	static java.sql.Connection openConnection() throws SQLException {
+		String url = _props.getProperty("DBurl");
+		if (url == null) {
+			throw new SQLException("DBurl is not set in RDC.properties");
+		}
+		java.sql.Connection conn = DriverManager.getConnection(url,
+				_props.getProperty("DBuser"), _props.getProperty("DBpass"));
+		conn.setAutoCommit(false);
+		return conn;
+	}
+
+	private static List<Integer> intervalsFor(Timestamp etime) throws SQLException {
+		return intervalsFor(_interval_ps, etime);
+	}
+
+	private static List<Integer> intervalsFor(PreparedStatement intervalPs,
+			Timestamp etime) throws SQLException {
+		List<Integer> intervals = new ArrayList<Integer>(2);
+		intervalPs.setTimestamp(IS_START, etime);
+		intervalPs.setTimestamp(IS_END, etime);
+		StatementEvent jfr = StatementEvent.start();
+		ResultSet rs = intervalPs.executeQuery();
+		while (rs.next()) {
+			intervals.add(rs.getInt(1));
+		}
+		rs.close();
+		jfr.done("interval select", 1);
+		return intervals;
 	}
 
 	static void test() throws Exception {
@@ -188,18 +515,29 @@ public class EventLogger {
 
 	static void accumulate(int iid, String user, String serv, int accumNum)
 			throws Exception {
+		accumulate(_accum_select_ps, _accum_ext_insert_ps, _accum_insert_ps,
+				iid, user, serv, accumNum);
+	}
+
+	private static void accumulate(PreparedStatement selectPs,
+			PreparedStatement extInsertPs,
+			PreparedStatement insertPs, int iid, String user,
+			String serv, int accumNum) throws Exception {
 
 		/*
 		 * if (verbose) { System.out.println("accumulating: " + iid + " " + user
 		 * + " " + serv); }
 		 */
 
-		_accum_select_ps.setInt(AS_INTERVAL, iid);
-		_accum_select_ps.setString(AS_USERNAME, user);
-		_accum_select_ps.setString(AS_SERVICE, serv);
-		ResultSet ars = _accum_select_ps.executeQuery();
+		selectPs.setInt(AS_INTERVAL, iid);
+		selectPs.setString(AS_USERNAME, user);
+		selectPs.setString(AS_SERVICE, serv);
+		StatementEvent jfr = StatementEvent.start();
+		ResultSet ars = selectPs.executeQuery();
+		boolean found = ars.next();
+		jfr.done("accumulator select", 1);
 
-		if (ars.next()) {
+		if (found) {
 			int tote = ars.getInt(1);
 			tote += accumNum;
 
@@ -207,79 +545,248 @@ public class EventLogger {
 			// debugLog.debug("the update stmt is " + ACCUM_EXT_INSERT);
 			// debugLog.debug("accum total is " + tote + ", accumnum is "
 			//		+ accumNum);
-			_accum_ext_insert_ps.setString(AI_USERNAME, user);
-			_accum_ext_insert_ps.setString(AI_SERVICE, serv);
-			_accum_ext_insert_ps.setInt(AI_INTERVAL, iid);
-			_accum_ext_insert_ps.setInt(AI_TOTE, accumNum);
-			_accum_ext_insert_ps.setTimestamp(AI_STATUS_CHANGE, new Timestamp(
+			extInsertPs.setString(AI_USERNAME, user);
+			extInsertPs.setString(AI_SERVICE, serv);
+			extInsertPs.setInt(AI_INTERVAL, iid);
+			extInsertPs.setInt(AI_TOTE, accumNum);
+			extInsertPs.setTimestamp(AI_STATUS_CHANGE, new Timestamp(
 					(new Date()).getTime()));
-			_accum_ext_insert_ps.executeUpdate();
+			jfr = StatementEvent.start();
+			extInsertPs.executeUpdate();
+			jfr.done("accumulator_shd insert", 1);
 		} else {
-			_accum_insert_ps.setString(AI_USERNAME, user);
-			_accum_insert_ps.setString(AI_SERVICE, serv);
-			_accum_insert_ps.setInt(AI_INTERVAL, iid);
-			_accum_insert_ps.setInt(AI_TOTE, accumNum);
-			_accum_insert_ps.executeUpdate();
+			insertPs.setString(AI_USERNAME, user);
+			insertPs.setString(AI_SERVICE, serv);
+			insertPs.setInt(AI_INTERVAL, iid);
+			insertPs.setInt(AI_TOTE, accumNum);
+			jfr = StatementEvent.start();
+			insertPs.executeUpdate();
+			jfr.done("accumulator insert", 1);
 		}
 		ars.close();
 
 	}
 
+	/**
+	 * Add each of totes to the accumulator, sending the inserts into
+	 * accumulator_shd and accumulator as one batch each.
+	 */
+	private static void accumulate(PreparedStatement selectPs,
+			PreparedStatement extInsertPs, PreparedStatement insertPs,
+			Map<ToteKey, Integer> totes) throws Exception {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		int ext = 0;
+		int fresh = 0;
+		for (Map.Entry<ToteKey, Integer> tote : totes.entrySet()) {
+			ToteKey key = tote.getKey();
+			selectPs.setInt(AS_INTERVAL, key.interval);
+			selectPs.setString(AS_USERNAME, key.user);
+			selectPs.setString(AS_SERVICE, key.service);
+			StatementEvent jfr = StatementEvent.start();
+			ResultSet ars = selectPs.executeQuery();
+			boolean found = ars.next();
+			ars.close();
+			jfr.done("accumulator select", 1);
+
+			PreparedStatement ps = found ? extInsertPs : insertPs;
+			ps.setString(AI_USERNAME, key.user);
+			ps.setString(AI_SERVICE, key.service);
+			ps.setInt(AI_INTERVAL, key.interval);
+			ps.setInt(AI_TOTE, tote.getValue());
+			if (found) {
+				ps.setTimestamp(AI_STATUS_CHANGE, now);
+				ext++;
+			} else {
+				fresh++;
+			}
+			ps.addBatch();
+		}
+		if (ext > 0) {
+			StatementEvent jfr = StatementEvent.start();
+			extInsertPs.executeBatch();
+			jfr.done("accumulator_shd insert", ext);
+		}
+		if (fresh > 0) {
+			StatementEvent jfr = StatementEvent.start();
+			insertPs.executeBatch();
+			jfr.done("accumulator insert", fresh);
+		}
+	}
+
 	public synchronized static void fixMissingIntervals(String ptInTime)
 			throws SQLException {
 		if (_dbconn != null) {
-			_intervals_chk_ps = _dbconn.prepareStatement(INTERVALS_CHECK);
-			_intervals_chk_ps.setString(IS_START, ptInTime);
+			checkMissingIntervals(_intervals_chk_ps, ptInTime);
+		}
+	}
 
-			ResultSet rs = _intervals_chk_ps.executeQuery();
+	/**
+	 * Create the intervals missing at ptInTime on the given connection, for
+	 * writers that do not use the shared one.
+	 */
+	static void fixMissingIntervals(java.sql.Connection conn, String ptInTime)
+			throws SQLException {
+		PreparedStatement ps = prepare(conn, INTERVALS_CHECK, queryTimeout);
+		try {
+			checkMissingIntervals(ps, ptInTime);
+		} finally {
+			ps.close();
+		}
+	}
 
-			if (rs.next()) {
-				String msg = rs.getString(1);
-				if (msg.trim().length() > 0) {
-					debugLog.warn("[RDCEventLogger::WARN] " + msg);
-				}
-			}
+	private static void checkMissingIntervals(PreparedStatement ps, String ptInTime)
+			throws SQLException {
+		ps.setString(IS_START, ptInTime);
 
-			rs.close();
-			rs = null;
-			_intervals_chk_ps.close();
-			_intervals_chk_ps = null;
+		StatementEvent jfr = StatementEvent.start();
+		ResultSet rs = ps.executeQuery();
+		jfr.done("interval check", 1);
+
+		if (rs.next()) {
+			String msg = rs.getString(1);
+			if (msg.trim().length() > 0) {
+				debugLog.warn("[RDCEventLogger::WARN] " + msg);
+			}
 		}
+
+		rs.close();
 	}
 
 	private static void initEventLogger(String propFile) throws IOException,
 			SQLException {
-		Properties p = new Properties();
+		EventConfig config = EventConfig.get(propFile);
+		_props = config.getProperties();
+		// the db settings are kept from the first load, but statements
+		// prepared from now on pick up a new DBQueryTimeout
+		config.addListener(new EventConfig.Listener() {
+			public void configChanged(Properties props) {
+				PayloadStore.configure(props);
+				if (props.getProperty("DBQueryTimeout") != null) {
+					queryTimeout = Integer.parseInt(props.getProperty("DBQueryTimeout").trim());
+				}
+				IntervalProvisioner.configure(props, queryTimeout);
+			}
+		});
+
+		debugLog = Logger.getLogger(EventSender.class);
+		Diagnostics.configure();
+		PayloadStore.configure(_props);
+
+		initSink(_props);
+	}
 
+	public synchronized static void initializeDBConn(Properties props) throws SQLException {
+		if (_dbconn != null) {
+			return;
+		}
+
+		String url = props.getProperty("DBurl");
+		if (url == null) {
+			throw new SQLException("DBurl is not set in RDC.properties");
+		}
+
+		int timeout = DEFAULT_QUERY_TIMEOUT;
+		if (props.getProperty("DBQueryTimeout") != null) {
+			timeout = Integer.parseInt(props.getProperty("DBQueryTimeout").trim());
+		}
+		queryTimeout = timeout;
+
+		java.sql.Connection conn = DriverManager.getConnection(url,
+				props.getProperty("DBuser"), props.getProperty("DBpass"));
 		try {
-			p.load(EventSender.class.getClassLoader().getResourceAsStream(
-					propFile));
-		} catch (Exception e) {
+			conn.setAutoCommit(false);
+			_interval_ps = prepare(conn, INTERVAL_SELECT, timeout);
+			_accum_select_ps = prepare(conn, ACCUM_SELECT, timeout);
+			_accum_ext_insert_ps = prepare(conn, ACCUM_EXT_INSERT, timeout);
+			_accum_insert_ps = prepare(conn, ACCUM_INSERT, timeout);
+			_event_insert_ps = prepare(conn, EVENT_INSERT, timeout);
+			_intervals_chk_ps = prepare(conn, INTERVALS_CHECK, timeout);
+		} catch (SQLException e) {
 			try {
-				p.load(new FileInputStream(propFile));
-			} catch (Exception ex) {
-				try {
-					p.load(new FileInputStream(ALTERNATE_PROPERTIES));
-				} catch (Exception ex1) {
-					p.load(EventSender.class.getClassLoader()
-							.getResourceAsStream(ALTERNATE_PROPERTIES));
-				}
+				conn.close();
+			} catch (SQLException ex) {
 			}
+			throw e;
 		}
-		_props = p;
+		_dbconn = conn;
+	}
 
-		debugLog = Logger.getLogger(EventSender.class);
-		BasicConfigurator.configure();
+	static int getQueryTimeout() {
+		return queryTimeout;
 	}
 
-	public synchronized static void initializeDBConn(Properties props) throws SQLException {
+	/**
+	 * Get ready for the first event: connect and prepare the statements if
+	 * that has not been done, and wait up to timeoutMs for the interval
+	 * snapshot. Returns false if the db could not be reached.
+	 */
+	static boolean warmUp(long timeoutMs) {
+		if (_props == null) {
+			// the static initializer has already reported why
+			return false;
+		}
+		try {
+			initializeDBConn(_props);
+		} catch (SQLException e) {
+			debugLog.warn("[RDCEventLogger::WARN] unable to connect to the events db at start up: " + e);
+			return false;
+		}
+		if (!IntervalProvisioner.awaitSnapshot(timeoutMs)) {
+			debugLog.warn("[RDCEventLogger::WARN] no interval snapshot after " + timeoutMs
+					+ "ms, querying intervals until there is one");
+		}
+		return true;
+	}
 
+	private static PreparedStatement prepare(java.sql.Connection conn, String sql,
+			int timeout) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(sql);
+		// a hung db should show up as a failure rather than stall the queue
+		ps.setQueryTimeout(timeout);
+		return ps;
+	}
 
+	/**
+	 * Drop the current connection, if any, and open a new one.
+	 */
+	public synchronized static void reconnect() throws SQLException {
+		closeDBConn();
+		initializeDBConn(_props);
 	}
 	
-	public synchronized static void closeDBConn() {
-
+	/**
+	 * Close the file sink and stop its loader, once nothing more will be
+	 * written: after the drain at shutdown, not with the db connection,
+	 * which the drain no longer needs.
+	 */
+	public synchronized static void closeSink() {
+		if (_bulkLoader != null) {
+			_bulkLoader.stop();
+		}
+		if (_fileSink != null) {
+			try {
+				_fileSink.close();
+			} catch (IOException e) {
+				debugLog.warn("[RDCEventLogger::WARN] problem closing event sink: " + e);
+			}
+		}
+	}
 
+	public synchronized static void closeDBConn() {
+		if (_dbconn != null) {
+			try {
+				_dbconn.close();
+			} catch (SQLException e) {
+				debugLog.warn("[RDCEventLogger::WARN] problem closing db connection: " + e);
+			}
+		}
+		_dbconn = null;
+		_interval_ps = null;
+		_accum_select_ps = null;
+		_accum_ext_insert_ps = null;
+		_accum_insert_ps = null;
+		_event_insert_ps = null;
+		_intervals_chk_ps = null;
 	}
 
 }
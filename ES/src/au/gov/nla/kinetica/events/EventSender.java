@@ -2,19 +2,21 @@ package au.gov.nla.kinetica.events;
 
 
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.*;
 
-import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 import org.apache.commons.io.FileUtils;
 
+import au.gov.nla.kinetica.events.jfr.SendEvent;
+
 import au.gov.nla.kinetica.events.Event;
 
 /**
@@ -107,7 +109,8 @@ public class EventSender {
 	private static Properties _props;
 	private static EventSender es;
 	private static EventSenderThread est;
-	private static StringBuffer data = new StringBuffer();
+	private static ServicePolicies policies;
+	private static final ServiceSampler sampler = new ServiceSampler();
 	private static Logger debugLog;
 
 	static boolean verbose = false;
@@ -124,24 +127,15 @@ public class EventSender {
 	private void initEventSender(String propFile) throws IOException,
 			SQLException {
 		if (debugLog == null) {
-			Properties p = new Properties();
-
-			try {
-				p.load(EventSender.class.getClassLoader().getResourceAsStream(
-						propFile));
-			} catch (Exception e) {
-				try {
-					p.load(new FileInputStream(propFile));
-				} catch (Exception ex) {
-					try {
-						p.load(new FileInputStream(ALTERNATE_PROPERTIES));
-					} catch (Exception ex1) {
-						p.load(EventSender.class.getClassLoader()
-								.getResourceAsStream(ALTERNATE_PROPERTIES));
-					}
+			EventConfig config = EventConfig.get(propFile);
+			_props = config.getProperties();
+			policies = new ServicePolicies(_props);
+			config.addListener(new EventConfig.Listener() {
+				public void configChanged(Properties props) {
+					_props = props;
+					policies.reload(props);
 				}
-			}
-			_props = p;
+			});
 			
 			// initialize the EventSenderThread
 			if (useLinkedQ(_props)) {
@@ -150,7 +144,7 @@ public class EventSender {
 			}
 
 			debugLog = Logger.getLogger(EventSender.class);
-			BasicConfigurator.configure();
+			Diagnostics.configure();
 		}
 	}
 		
@@ -203,11 +197,66 @@ public class EventSender {
 
 	/**
 	 * Calls stop()
+	 * 
+	 * This only releases this EventSender. The queue and its consumer are
+	 * shared by every EventSender in the webapp, use shutdown() to flush them
+	 * when the webapp itself is stopped.
 	 */
 	public synchronized void destroy() throws SQLException {
 		es = null;
 	}
 
+	/**
+	 * Start the event pipeline without waiting for it. The consumer opens
+	 * its spool and db connection, loads the interval snapshot and, with
+	 * WarmUpIterations set in RDC.properties, runs the send path on made-up
+	 * events so it is compiled before real traffic. Events sent before it is
+	 * ready are queued and written once it is.
+	 * 
+	 * EventSenderListener calls this when the webapp starts, so that no
+	 * request pays for the start up.
+	 */
+	public synchronized static void warmUp() throws Exception {
+		getInstance();
+		EventSenderThread.getHelper();
+	}
+
+	/**
+	 * As warmUp(), waiting up to timeoutMs for the pipeline to be ready.
+	 * Returns true if it is.
+	 */
+	public static boolean warmUp(long timeoutMs) throws Exception {
+		warmUp();
+		return EventSenderThread.awaitReady(timeoutMs);
+	}
+
+	/**
+	 * True once the pipeline has finished warming up.
+	 */
+	public static boolean isReady() {
+		return EventSenderThread.isReady();
+	}
+
+	/**
+	 * Flush the event queue and stop the consumer, waiting no longer than
+	 * the ShutdownDeadline in RDC.properties. Events that cannot be written
+	 * to the db in time are spooled and sent on the next start.
+	 * 
+	 * Call this when the webapp is stopped, e.g. from
+	 * EventSenderListener.contextDestroyed. A JVM shutdown hook does the same
+	 * if it has not been called by the time the JVM exits.
+	 */
+	public static void shutdown() throws InterruptedException {
+		EventSenderThread.getHelper().shutdown();
+	}
+
+	/**
+	 * As shutdown(), with an explicit deadline in milliseconds.
+	 */
+	public static void shutdown(long timeoutMs) throws InterruptedException {
+		EventSenderThread.getHelper().drain(timeoutMs);
+	}
+
 
 
 	/*
@@ -233,14 +282,23 @@ public class EventSender {
 	 * events.Event, java.lang.Integer)
 	 */
 	public synchronized void send(Event ev, Integer accumNum) throws Exception {
+		send(ev, accumNum, false);
+	}
+
+	/*
+	 * send: a discarded event only counts towards its totes; it gets no
+	 *       event row and its input and output are not kept.
+	 */
+	public synchronized void send(Event ev, Integer accumNum, boolean discard) throws Exception {
 		if (debugLog == null) {
 			initEventSender(DEFAULT_PROPERTIES);
 		}
 		
+		SendEvent jfr = SendEvent.start();
 		 try {
 			if (ev.validate()) {
 				debugLog.debug("up to logEvent(ev, accumNum)");
-				queueEvent(ev, accumNum);
+				queueEvent(ev, accumNum, discard);
 				debugLog.debug("done");
 			} else {
 				debugLog.warn("ignoring invalid event: " + ev);
@@ -248,6 +306,8 @@ public class EventSender {
 		 } catch (Exception ex) {
 			debugLog.error("problem logging event: " + ex);
 			throw ex;
+		 } finally {
+			jfr.done(ev.service(), (accumNum == null) ? 0 : accumNum, discard, EventSenderThread.queueDepth());
 		 }
 	}
 
@@ -335,13 +395,18 @@ public class EventSender {
 	 */
 	public synchronized void send(String user, String serv, Date time, String addr,
 			String input, String output, Integer accumNum) throws Exception {
+		send(user, serv, time, addr, input, output, accumNum, false);
+	}
+
+	public synchronized void send(String user, String serv, Date time, String addr,
+			String input, String output, Integer accumNum, boolean discard) throws Exception {
 
 		if (debugLog == null) {
 			initEventSender(DEFAULT_PROPERTIES);
 		}
 		
-		debugLog.debug("rdcEventLogger: sending user: " + user + " serv: " + serv + " time: " + time +
-				        " addr: " + addr + " input: " + input + " output: " + output + " accumNum " + accumNum);
+		Diagnostics.debug(debugLog, "rdcEventLogger: sending user: {} serv: {} time: {} addr: {} input: {} output: {} accumNum {}",
+				user, serv, time, addr, input, output, accumNum);
 		
 		if (accumNum == null) accumNum = 1;
 		
@@ -355,9 +420,8 @@ public class EventSender {
 		if (output != null) {
 			ev.output(output);
 		}
-		send(ev, accumNum);
-		debugLog.debug("rdcEventLogger: sent user: " + user + " serv: " + serv + " time: " + time +
-		        " addr: " + addr + " input: " + input + " output: " + output + " accumNum ");
+		send(ev, accumNum, discard);
+		Diagnostics.debug(debugLog, "rdcEventLogger: sent user: {} serv: {} time: {}", user, serv, time);
 
 	}
 
@@ -519,7 +583,7 @@ public class EventSender {
 				}
 
 			}
-			es.send(user, serv, time, addr, input, output, accumNum);
+			es.send(user, serv, time, addr, input, output, accumNum, discard);
 			// es.stop();
 			// es = null;
 		} catch (Exception e) {
@@ -532,24 +596,120 @@ public class EventSender {
 		this._props = props;
 	}
 
-	private void queueEvent(Event e, int accumNum) throws IOException {
-		String user = e.user();
+	private void queueEvent(Event e, int accumNum, boolean discard) throws IOException {
 		String service = e.service();
-		Timestamp etime = new Timestamp(e.time().getTime());
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		String _etime = sdf.format(etime);
-		
-		data.setLength(0);
-		data.append(user).append("::").append(service).append("::").append(_etime).append("::").append(accumNum).append("\n");
-		// debugLog.debug("queuing:: " + data.toString());
+		ServicePolicy policy = policies.resolve(service);
+		try {
+			accumNum = Math.multiplyExact(accumNum, policy.getMultiplier());
+		} catch (ArithmeticException ex) {
+			debugLog.warn("accumNum " + accumNum + " times multiplier " + policy.getMultiplier()
+					+ " for " + service + " does not fit in an int, clamped");
+			accumNum = (accumNum < 0) ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+		}
+		// before sampling or discarding, so the busiest include them
+		EventSenderThread.getStats().record(e, accumNum);
+
+		// pure metering: no event row, so no need to queue or sample it
+		if (discard || policy.isDiscard()) {
+			EventSenderThread.count(e, accumNum);
+			return;
+		}
+
+		// a sampled-out event is only counted, and the next kept event for
+		// its user and service carries the count
+		if (!sampler.keep(policy.getSampleRate())) {
+			EventSenderThread.count(e, accumNum);
+			return;
+		}
+		accumNum += EventSenderThread.carried(e, accumNum);
 		
 		EventExt et = new EventExt(e, accumNum);
-		est.log(et);
-		int qsize = est.getItemCount();
-		debugLog.debug("queue size:: " + qsize);
+		et.compact();
+		est.log(et, policy.getPriority());
+		Diagnostics.debug(debugLog, "queue size:: {}", EventSenderThread.queueDepth());
 		
 	}
 	
+	/**
+	 * Keep only 1 in rate detail events for a service, with each kept event
+	 * standing in for the skipped ones in the accumulated totals. A rate of 1
+	 * turns sampling off. Takes effect immediately for all senders, and
+	 * overrides the service's sampleRate in RDC.properties, edits included,
+	 * until it is set again or the webapp restarts.
+	 */
+	public static void setSamplingRate(String service, int rate) throws Exception {
+		getInstance();
+		policies.setSampleRate(service, rate);
+	}
+
+	public static int getSamplingRate(String service) throws Exception {
+		getInstance();
+		return policies.resolve(service).getSampleRate();
+	}
+
+	/**
+	 * The users with the most events over the given window, busiest first.
+	 * Answered from in-memory sketches, without touching the db.
+	 */
+	public static List<Map.Entry<String, Long>> topUsers(EventStats.Window window, int n) {
+		return EventSenderThread.getStats().topUsers(window, n);
+	}
+
+	public static List<Map.Entry<String, Long>> topServices(EventStats.Window window, int n) {
+		return EventSenderThread.getStats().topServices(window, n);
+	}
+
+	public static List<Map.Entry<String, Long>> topAddresses(EventStats.Window window, int n) {
+		return EventSenderThread.getStats().topAddresses(window, n);
+	}
+
+	/**
+	 * Feed every event this webapp sends from now on to sink as well, e.g.
+	 * an in-process analytics consumer. The sink gets its own buffer of
+	 * bufferSize events and its own thread, which hands it batches of up to
+	 * batchSize. When the buffer is full the event is dropped for this sink,
+	 * or with block the consumer waits for room, holding up the db writes
+	 * until the sink catches up; a sender never waits on a sink. Sinks can
+	 * also be listed in RDC.properties, see SinkFanout.
+	 */
+	public static void addSink(String name, EventSink sink, int bufferSize, int batchSize, boolean block)
+			throws Exception {
+		getInstance();
+		Properties settings = SinkFanout.settings(_props, name);
+		settings.setProperty("buffer", "" + bufferSize);
+		settings.setProperty("batch", "" + batchSize);
+		settings.setProperty("overflow", block ? "block" : "drop");
+		EventSenderThread.addSink(name, sink, settings);
+	}
+
+	/**
+	 * A user's tote for a service in the current interval of the given type
+	 * (day or month). With ToteCache=true it counts the events this webapp
+	 * has sent that are not in the db yet, and is answered from a cache
+	 * that reads the accumulator on a miss, sized by ToteCacheSize and
+	 * refreshed every ToteCacheTtl ms.
+	 */
+	public static long currentTote(String user, String service, String intervalType) throws Exception {
+		getInstance();
+		return EventSenderThread.getTotes().current(user, service, intervalType);
+	}
+
+	/**
+	 * The estimated number of distinct users of any of services, over the
+	 * intervals of the given type (day or month) starting from from up to
+	 * to, read from the user_sketch rows rather than the events. Within
+	 * about 2% with UserSketches=true, see UserSketches.
+	 */
+	public static long distinctUsers(Collection<String> services, String intervalType, Date from, Date to)
+			throws Exception {
+		getInstance();
+		return UserSketches.distinctUsers(services, intervalType, from, to);
+	}
+
+	public static long distinctUsers(String service, String intervalType, Date from, Date to) throws Exception {
+		return distinctUsers(Collections.singleton(service), intervalType, from, to);
+	}
+
 	protected Properties getProps() {
 		return _props;
 	}
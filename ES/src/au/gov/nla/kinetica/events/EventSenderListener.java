@@ -0,0 +1,40 @@
+package au.gov.nla.kinetica.events;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Starts the webapp's event pipeline when the webapp starts, and flushes its
+ * event queue when the webapp is stopped or undeployed.
+ * 
+ * Register it in the webapp's web.xml:
+ * 
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;au.gov.nla.kinetica.events.EventSenderListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ */
+public class EventSenderListener implements ServletContextListener {
+
+	public void contextInitialized(ServletContextEvent sce) {
+		try {
+			// in the background, the webapp does not wait for it
+			EventSender.warmUp();
+		} catch (Exception e) {
+			Logger.getLogger(EventSenderListener.class).error("problem starting the event pipeline: " + e);
+		}
+	}
+
+	public void contextDestroyed(ServletContextEvent sce) {
+		try {
+			EventSender.shutdown();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			Logger.getLogger(EventSenderListener.class).error("problem flushing events: " + e);
+		}
+	}
+}
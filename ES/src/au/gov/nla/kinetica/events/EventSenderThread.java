@@ -1,72 +1,180 @@
 package au.gov.nla.kinetica.events;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.sql.Connection;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.apache.commons.io.FileUtils;
-import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
+import au.gov.nla.kinetica.events.jfr.DequeueEvent;
+import au.gov.nla.kinetica.events.jfr.EnqueueEvent;
+import au.gov.nla.kinetica.events.jfr.FlushEvent;
+import au.gov.nla.kinetica.events.jfr.OverflowEvent;
+
 
 public class EventSenderThread extends Thread {
 	private static final String QSTATUS_FILE_NAME = "/var/tmp/qStatus";
-	private static final String CONSUMER_CACHE_NAME = "/var/tmp/qconsumedItems";
-	private static final String PRODUCER_CACHE_NAME = "/var/tmp/qproducedItems";
-	private static final String DEFAULT_PROPERTIES = "RDC.properties";
+	private static final String CONSUMER_CACHE_PREFIX = "/var/tmp/qconsumedItems";
+	private static final String PRODUCER_CACHE_PREFIX = "/var/tmp/qproducedItems";
+	private static final String RECOVER_SUFFIX = ".recover.";
+	private static final String COUNTS_SUFFIX = ".counts";
+	private static final String FLUSHING_SUFFIX = ".flushing";
 	private static final int    DEFAULT_Q_SIZE = 240000;
+	private static final String DEFAULT_SPOOL_DIR = "/var/tmp/qspool";
+	private static final long   DEFAULT_SPOOL_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final double DEFAULT_REPLAY_RATE = 200;
+	private static final long   DEFAULT_CIRCUIT_RETRY_INTERVAL = 30000;
+	private static final long   REPLAY_POLL_INTERVAL = 100;
+	private static final int    REPLAY_BATCH = 500;
+	private static final long   DEFAULT_SHUTDOWN_DEADLINE = 10000;
+	private static final int    DEFAULT_DRAIN_WRITERS = 4;
+	private static final int    DEFAULT_DRAIN_BATCH_SIZE = 1000;
+	private static final int    DEFAULT_DEDUP_WINDOW = 131072;
+	private static final String DEDUP_FILE_NAME = "dedup.window";
+	private static final long   DEFAULT_DEDUP_CHECKPOINT_INTERVAL = 10000;
+	private static final int    DEFAULT_BATCH_SIZE = 1;
+	private static final long   DEFAULT_LINGER = 0;
+	private static final long   DEFAULT_COUNT_FLUSH_INTERVAL = 5000;
+	static final int            DEFAULT_COLLECTOR_TIMEOUT = 30000;
+	private static final int    DEFAULT_WARM_UP_ITERATIONS = 0;
+	private static final long   DEFAULT_WARM_UP_TIMEOUT = 30000;
+	static final String FORWARD_PROPERTY = "ForwardToCollector";
+	// Oracle errors for an event that can never be written as it is: unique
+	// constraint, null into not null, value too large, invalid number, value
+	// larger than the column's precision, missing parent key
+	private static final int[] REFUSED = { 1, 1400, 12899, 1722, 1438, 2291 };
+
+	/**
+	 * What a producer does when the queue is full: wait for room, drop the
+	 * event or write it straight to the spool.
+	 */
+	enum Overflow { BLOCK, DROP, SPOOL }
 	
 	// private BlockingQueue<EventExt> itemsToQ = new
 	// LinkedBlockingQueue<EventExt>(4000);
 	private static BlockingQueue<EventExt> itemsToQ;
+	// the queue is unbounded, its size is limited by the permits here so
+	// that MaxQSize can be changed on the fly
+	private static QueueCapacity capacity;
+	private static volatile Overflow overflow = Overflow.BLOCK;
+	// the consumer writes up to batchSize events per transaction, waiting
+	// up to linger ms for a batch to fill
+	// ConsumerBatchSize when RDC.properties does not set it
+	private static volatile int defaultBatchSize = DEFAULT_BATCH_SIZE;
+	private static volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private static volatile long linger = DEFAULT_LINGER;
+	private final List<EventExt> batch = new ArrayList<EventExt>();
+	// discarded events are counted here instead of being queued, and the
+	// consumer writes the counts every countFlushInterval ms
+	private static final PendingCounts counts = new PendingCounts();
+	private static volatile long countFlushInterval = DEFAULT_COUNT_FLUSH_INTERVAL;
+	private long lastCountFlush = System.currentTimeMillis();
+	// the dedup window is saved every dedupCheckpointInterval ms while it
+	// changes, so a crash forgets at most that much of it
+	private static volatile long dedupCheckpointInterval = DEFAULT_DEDUP_CHECKPOINT_INTERVAL;
+	private long lastDedupCheckpoint = System.currentTimeMillis();
 	private static String bufferFileName;
 	private volatile boolean shuttingDown, threadTerminated;
 	private static final EventExt SHUTDOWN_REQ = new EventExt(new Event(), 1);
+	private static final EventExt WAKE_REQ = new EventExt(new Event(), 1);
 	private static EventSenderThread _thread;
 	private static FileOutputStream consumerCache;
 	private static FileOutputStream producerCache;
-	private static File qStatusFile = new File(QSTATUS_FILE_NAME);
-	private static StringBuffer cdata = new StringBuffer();
-	private static StringBuffer pdata = new StringBuffer();
+	private static String CONSUMER_CACHE_NAME = CONSUMER_CACHE_PREFIX;
+	private static String PRODUCER_CACHE_NAME = PRODUCER_CACHE_PREFIX;
+	private static QueueCounters counters;
+	private static StringBuilder pdata = new StringBuilder();
 	private static int qcount = 0;
 	private static int dqcount = 0;
+	private static long producedBytes = 0;
+	private static long consumedBytes = 0;
+	// with track on, every change to the pending counts is also logged here
+	// until the counts are written, so a crash does not lose them; guarded
+	// by counts
+	private static FileOutputStream countLog;
+	private static final StringBuilder cdata = new StringBuilder();
 	
 	private static final String DELIMITER = "::";
-	private static int USR = 0;
-	private static int SRV = 1;
-	private static int TIM = 2;
-	private static int STA = 3;
-	private static int IN = 4;
-	private static int OUT = 5;
-	private static int ADR = 6;
-	private static int TOT = 7;
-	private static int QC = 1;
-	private static int DQC = 3;
 	
-	private static boolean verbose = false;  // Configurable through RDC.properties
-	private static boolean track = false;     // Configurable through RDC.properties, by specify the app path of the app to track
-											 // currently can only track one app.
-											 // to track more than one app, need to 
-											 // seperate the qStatusFile, consumerCache and producerCache.
+	private static volatile boolean verbose = false;  // Configurable through RDC.properties
+	private static boolean track = false;     // Configurable through RDC.properties, by specify the app path of the app to track,
+											 // a comma separated list of app paths, or * for every webapp.
+											 // Each tracked app gets its own status page and caches,
+											 // named after the app, e.g. /var/tmp/qStatus.kss
+	private static String trackedApp;
 	private static Logger debugLog;
 	private static Properties props;
 	
+	// Store-and-forward: while the circuit is open events go to the spool
+	// instead of the db, and are replayed at replayLimiter's rate once the
+	// db is reachable again.
+	private static volatile EventSpool spool;
+	// ids of the most recently written events, so that a replayed event
+	// that has already reached the db is not written again
+	private static volatile DedupWindow dedup;
+	private static volatile File dedupFile;
+	private static final EventStats stats = new EventStats();
+	// current totes for EventSender.currentTote, with the accumNums still
+	// queued or counted here
+	private static final ToteCache totes = new ToteCache();
+	// the Sinks fed alongside the db, each with its own buffer and thread
+	private static final SinkFanout fanout = new SinkFanout();
+	private static RateLimiter replayLimiter;
+	private static volatile long circuitRetryInterval = DEFAULT_CIRCUIT_RETRY_INTERVAL;
+	private volatile boolean circuitOpen;
+	private long nextProbe;
+	private boolean spoolUnflushed;
+	private long lastSpoolFlush;
+
+	// Drain on shutdown: pending events are flushed by drainWriters parallel
+	// connections in batches of drainBatchSize, and anything not written by
+	// the deadline is spooled for the next start.
+	private static volatile long shutdownDeadline = DEFAULT_SHUTDOWN_DEADLINE;
+	private static volatile int drainWriters = DEFAULT_DRAIN_WRITERS;
+	private static volatile int drainBatchSize = DEFAULT_DRAIN_BATCH_SIZE;
+	private Thread shutdownHook;
+
+	// with ForwardToCollector=true events go to the host's EventCollector
+	// rather than the db, and this JVM never connects to the db itself
+	private static EventForwarder forwarder;
+
+	// The spool, the db connection and the interval snapshot are opened by
+	// the consumer itself before it takes its first event, so the request
+	// that loads this class only pays for the queue. Events sent meanwhile
+	// wait in the queue.
+	private static volatile boolean ready;
+	private static final CountDownLatch warm = new CountDownLatch(1);
+	// Events queued while warming up take no queue capacity, so a producer
+	// never waits on a consumer that is not taking events yet. The consumer
+	// gives back no permit for that many events.
+	private static final AtomicInteger unpermitted = new AtomicInteger();
+	private int warmUpIterations = DEFAULT_WARM_UP_ITERATIONS;
+	private long warmUpTimeout = DEFAULT_WARM_UP_TIMEOUT;
+	
 	static {
 		debugLog = Logger.getLogger(EventSenderThread.class);
-		BasicConfigurator.configure();
+		Diagnostics.configure();
 		
 		getHelper();
 	}
@@ -81,48 +189,289 @@ public class EventSenderThread extends Thread {
 	private EventSenderThread() {
 		initEventSenderThread();
 		start();
+
+		shutdownHook = new Thread("EventSenderThread-shutdown") {
+			public void run() {
+				try {
+					drain(shutdownDeadline);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
 	}
 	
 	private synchronized void initEventSenderThread() {
-		int maxQSize = DEFAULT_Q_SIZE;
-		props = loadProperties();
-		if (props != null) {
-			if (props.getProperty("MaxQSize") != null)
-				maxQSize = new Integer(props.getProperty("MaxQSize"));
-			
-			if (props.getProperty("verbose") != null)
-				verbose = props.getProperty("verbose").trim().equalsIgnoreCase("true")?true:verbose;
-			track = toTrack(props.getProperty("track"));
-			
-			if (verbose) debugLog.debug("Starting the EventSenderThread...");
-		}
-		itemsToQ = new LinkedBlockingQueue<EventExt>(maxQSize);
+		EventConfig config = EventConfig.get();
+		props = config.getProperties();
+		trackedApp = trackedApp(props.getProperty("track"));
+		track = (trackedApp != null);
+
+		itemsToQ = new LinkedBlockingQueue<EventExt>();
+		capacity = new QueueCapacity(DEFAULT_Q_SIZE);
+		if ("true".equalsIgnoreCase(props.getProperty(FORWARD_PROPERTY, "false").trim())) {
+			forwarder = new EventForwarder(props.getProperty("CollectorAddress", EventForwarder.DEFAULT_ADDRESS),
+					Integer.parseInt(props.getProperty("CollectorTimeout", "" + DEFAULT_COLLECTOR_TIMEOUT).trim()));
+			debugLog.info("forwarding events to the collector at " + forwarder);
+		}
+		warmUpIterations = Integer.parseInt(props.getProperty("WarmUpIterations", "" + DEFAULT_WARM_UP_ITERATIONS).trim());
+		warmUpTimeout = Long.parseLong(props.getProperty("WarmUpTimeout", "" + DEFAULT_WARM_UP_TIMEOUT).trim());
+		if ("true".equalsIgnoreCase(props.getProperty("ToteCache", "false").trim())) {
+			totes.enable();
+		}
+		replayLimiter = new RateLimiter(DEFAULT_REPLAY_RATE);
+		// before any payload is compressed, so a new dictionary is saved
+		// alongside the spool that may need it
+		PayloadCodec.setDictionaryDir(new File(appBufferDir()));
+		// only here: pending events were counted towards the rollups of
+		// their time, and are taken off the same ones when written
+		ServiceRollups.configure(props);
+		applySettings(props);
+		config.addListener(new EventConfig.Listener() {
+			public void configChanged(Properties p) {
+				applySettings(p);
+			}
+		});
+		fanout.configure(props);
+		if (verbose) debugLog.debug("Starting the EventSenderThread...");
 
 		if (track) {
 			try {
+				CONSUMER_CACHE_NAME = CONSUMER_CACHE_PREFIX + "." + trackedApp;
+				PRODUCER_CACHE_NAME = PRODUCER_CACHE_PREFIX + "." + trackedApp;
+				counters = QueueCounters.open(new File(QSTATUS_FILE_NAME + "." + trackedApp), trackedApp);
+
 				// Check left over items from the last run of the
 				// EventSenderThread
 				readStatusFromFile();
-				// clear the qStatusFile
-				FileUtils.writeStringToFile(qStatusFile, "");
+				// clear the status page
+				counters.reset();
 				
 				// Load unprocessed items from the last run back
 				// onto the queue
 				queueSpillOverFromLastRun();
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
+				track = false;
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
+				track = false;
 			}
 		}
 	}
 	
-	private boolean toTrack(String path) {
-		ClassLoader sysCL = EventSenderThread.class.getClassLoader();
-		URL[] urls = ((URLClassLoader) sysCL).getURLs();
+	private void initSpool() {
+		long segmentSize = DEFAULT_SPOOL_SEGMENT_SIZE;
+		if (props.getProperty("SpoolSegmentSize") != null)
+			segmentSize = Long.parseLong(props.getProperty("SpoolSegmentSize").trim());
+
+		File spoolDir = new File(appBufferDir());
+		try {
+			spool = new EventSpool(spoolDir, segmentSize);
+		} catch (IOException e) {
+			debugLog.error("unable to open event spool " + spoolDir + ", events will be lost while the db is unavailable: " + e);
+		}
+
+		File idsFile = new File(spoolDir, DEDUP_FILE_NAME);
+		dedupFile = idsFile;
+		int window = DEFAULT_DEDUP_WINDOW;
+		try {
+			if (props.getProperty("DedupWindow") != null)
+				window = Integer.parseInt(props.getProperty("DedupWindow").trim());
+		} catch (NumberFormatException e) {
+			debugLog.error("[EventSenderThread] bad DedupWindow, using " + window + ": " + e);
+		}
+		DedupWindow ids = new DedupWindow(window);
+		if (idsFile.exists()) {
+			try {
+				ids.load(idsFile);
+			} catch (IOException e) {
+				debugLog.warn("unable to load " + idsFile + ": " + e);
+			}
+		}
+		dedup = ids;
+	}
+
+	/**
+	 * Everything the consumer needs before its first event, done on the
+	 * consumer thread: open the spool and dedup window, hand any spill over
+	 * from the last run to the spool, connect to the db with the statements
+	 * prepared and wait up to WarmUpTimeout ms for the interval snapshot.
+	 * With WarmUpIterations set, the send path is then run that many times
+	 * on made-up events, none of which reach the queue or the db, so it is
+	 * compiled before real traffic needs it.
+	 */
+	private void warmUp() {
+		long start = System.currentTimeMillis();
+		try {
+			initSpool();
+			if (track) {
+				startRecovery();
+			}
+			// the collector is connected on the first send
+			if (forwarder == null && !EventLogger.warmUp(warmUpTimeout)) {
+				debugLog.warn("[EventSenderThread] starting without the events db, events will be spooled");
+			}
+			exercise(warmUpIterations);
+		} catch (Exception e) {
+			debugLog.error("[EventSenderThread] problem warming up: " + e);
+		} finally {
+			if (dedup == null) {
+				// the consumer loop needs one whatever went wrong above
+				dedup = new DedupWindow(DEFAULT_DEDUP_WINDOW);
+			}
+			ready = true;
+			warm.countDown();
+		}
+		debugLog.info("[EventSenderThread] ready in " + (System.currentTimeMillis() - start) + "ms, "
+				+ itemsToQ.size() + " events queued meanwhile");
+	}
+
+	private static void exercise(int iterations) {
+		if (iterations <= 0) {
+			return;
+		}
+		EventStats scratch = new EventStats();
+		PendingCounts pending = new PendingCounts();
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < iterations; i++) {
+			Event e = new Event("warmup" + (i % 16), "warmup:service" + (i % 8), new Date());
+			e.input("warmup input " + i);
+			// not compacted, made-up payloads would train the compression
+			// dictionary
+			EventExt item = new EventExt(e, 1);
+			data.setLength(0);
+			EventCodec.encode(item, data);
+			data.setLength(data.length() - 1);
+			EventCodec.decode(data.toString());
+			scratch.record(e, item.getAccumNum());
+			pending.add(e.user(), e.service(), e.time(), 1);
+		}
+		pending.drain();
+	}
+
+	/**
+	 * True once the consumer has finished warming up.
+	 */
+	static boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Wait up to timeoutMs for the consumer to finish warming up. Returns
+	 * true if it has.
+	 */
+	static boolean awaitReady(long timeoutMs) throws InterruptedException {
+		return warm.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Use n for ConsumerBatchSize whenever RDC.properties leaves it
+	 * out, before the thread starts and across reloads.
+	 */
+	static void setDefaultBatchSize(int n) {
+		defaultBatchSize = Math.max(1, n);
+	}
+
+	/**
+	 * Apply the settings that can be changed while running. Called at start
+	 * up and again whenever RDC.properties is edited; a setting that is
+	 * missing goes back to its default.
+	 */
+	private static void applySettings(Properties p) {
+		try {
+			verbose = "true".equalsIgnoreCase(p.getProperty("verbose", "false").trim());
+			capacity.setCapacity(Math.max(1, Integer.parseInt(p.getProperty("MaxQSize", "" + DEFAULT_Q_SIZE).trim())));
+			overflow = Overflow.valueOf(p.getProperty("QueueOverflow", "block").trim().toUpperCase());
+			batchSize = Math.max(1, Integer.parseInt(p.getProperty("ConsumerBatchSize", "" + defaultBatchSize).trim()));
+			linger = Math.max(0, Long.parseLong(p.getProperty("ConsumerLinger", "" + DEFAULT_LINGER).trim()));
+			replayLimiter.setRate(Double.parseDouble(p.getProperty("SpoolReplayRate", "" + DEFAULT_REPLAY_RATE).trim()));
+			circuitRetryInterval = Long.parseLong(p.getProperty("CircuitRetryInterval", "" + DEFAULT_CIRCUIT_RETRY_INTERVAL).trim());
+			shutdownDeadline = Long.parseLong(p.getProperty("ShutdownDeadline", "" + DEFAULT_SHUTDOWN_DEADLINE).trim());
+			drainWriters = Math.max(1, Integer.parseInt(p.getProperty("DrainWriters", "" + DEFAULT_DRAIN_WRITERS).trim()));
+			drainBatchSize = Math.max(1, Integer.parseInt(p.getProperty("DrainBatchSize", "" + DEFAULT_DRAIN_BATCH_SIZE).trim()));
+			countFlushInterval = Math.max(0, Long.parseLong(p.getProperty("DiscardFlushInterval", "" + DEFAULT_COUNT_FLUSH_INTERVAL).trim()));
+			dedupCheckpointInterval = Math.max(0, Long.parseLong(p.getProperty("DedupCheckpointInterval", "" + DEFAULT_DEDUP_CHECKPOINT_INTERVAL).trim()));
+			totes.configure(Integer.parseInt(p.getProperty("ToteCacheSize", "" + ToteCache.DEFAULT_SIZE).trim()),
+					Long.parseLong(p.getProperty("ToteCacheTtl", "" + ToteCache.DEFAULT_TTL).trim()),
+					Integer.parseInt(p.getProperty("ToteCacheConnections", "" + ToteCache.DEFAULT_CONNECTIONS).trim()),
+					AccumulatorCompactor.isEnabled(p));
+			PayloadCodec.configure(p);
+		} catch (IllegalArgumentException e) {
+			// a bad number or QueueOverflow value, the settings before it are in
+			debugLog.error("[EventSenderThread] bad setting in RDC.properties: " + e);
+		}
+		if (verbose) debugLog.debug("queue capacity " + capacity.getCapacity() + ", overflow " + overflow
+				+ ", batch size " + batchSize + ", linger " + linger + "ms");
+	}
+
+	/**
+	 * The spool directory for this webapp. Each webapp gets its own
+	 * EventSenderThread, so the QAppBaseN/QBufferN pairs in RDC.properties
+	 * give each one its own buffer; anything else uses SpoolDir.
+	 */
+	private static String appBufferDir() {
+		int queues = 0;
+		if (props.getProperty("Queues") != null)
+			queues = Integer.parseInt(props.getProperty("Queues").trim());
+
+		for (int i = 1; i <= queues; i++) {
+			String appBase = props.getProperty("QAppBase" + i);
+			String buffer = props.getProperty("QBuffer" + i);
+			if (appBase != null && buffer != null && onClassPath(appBase.trim())) {
+				return buffer.trim();
+			}
+		}
+
+		String dir = props.getProperty("SpoolDir");
+		return (dir == null) ? DEFAULT_SPOOL_DIR : dir.trim();
+	}
+
+	/**
+	 * The name of this webapp if the track property covers it, otherwise
+	 * null. The name is the last element of the matching app path, or of the
+	 * webapp directory when track is *.
+	 */
+	private static String trackedApp(String paths) {
+		if (paths == null) {
+			return null;
+		}
+
+		for (String path : paths.split(",")) {
+			path = path.trim();
+			if (path.equals("*")) {
+				return appFromClassPath();
+			}
+			if (path.length() > 0 && onClassPath(path)) {
+				return new File(path).getName();
+			}
+		}
+
+		return null;
+	}
 
-		for (URL url : urls) {
+	private static String appFromClassPath() {
+		ClassLoader cl = EventSenderThread.class.getClassLoader();
+		if (cl instanceof URLClassLoader) {
+			for (URL url : ((URLClassLoader) cl).getURLs()) {
+				String file = url.getFile();
+				int webInf = file.indexOf("/WEB-INF/");
+				if (webInf > 0) {
+					return new File(file.substring(0, webInf)).getName();
+				}
+			}
+		}
+		return "default";
+	}
+
+	private static boolean onClassPath(String path) {
+		ClassLoader cl = EventSenderThread.class.getClassLoader();
+		if (!(cl instanceof URLClassLoader)) {
+			return false;
+		}
+
+		for (URL url : ((URLClassLoader) cl).getURLs()) {
 			if (url.getFile().startsWith(path)) {
 				return true;
 			}
@@ -133,26 +482,77 @@ public class EventSenderThread extends Thread {
 
 	public void run() {
 		int qsize = 0;
+		warmUp();
 
 		while (!(shuttingDown || threadTerminated)) {
 			try {
-				EventExt item;
-//
-//				sleep(10000);
+				boolean replaying = (spool != null) && spool.hasPending();
+				EventExt item = (replaying || !counts.isEmpty() || dedup.isDirty())
+						? itemsToQ.poll(REPLAY_POLL_INTERVAL, TimeUnit.MILLISECONDS)
+						: itemsToQ.take();
 
-				while ((item = itemsToQ.take()) != SHUTDOWN_REQ) {
-					// logEventTest(item);
-					logEvent(item);
+				if (item == SHUTDOWN_REQ) {
+					break;
 				}
-			} catch (Exception ex) {
-
-			} finally {
-				EventLogger.closeDBConn();
+				if (item == WAKE_REQ) {
+					continue;
+				}
+				if (item != null) {
+					releaseSlot();
+					if (batchSize > 1) {
+						DequeueEvent jfr = DequeueEvent.start();
+						boolean shutdown = collectBatch(item);
+						jfr.done(batch.size(), itemsToQ.size());
+						deliverBatch(batch);
+						delivered(batch);
+						batch.clear();
+						if (shutdown) {
+							break;
+						}
+					} else {
+						DequeueEvent.start().done(1, itemsToQ.size());
+						deliver(item);
+						trackConsumed(item);
+						delivered(Collections.singletonList(item));
+					}
+					if (spoolUnflushed && System.currentTimeMillis() - lastSpoolFlush > 1000) {
+						flushSpool();
+					}
+				} else if (spool != null) {
+					flushSpool();
+				}
+				if (replaying) {
+					replaySpool();
+				}
+				if (System.currentTimeMillis() - lastCountFlush >= countFlushInterval) {
+					flushCounts();
+				}
+				if (System.currentTimeMillis() - lastDedupCheckpoint >= dedupCheckpointInterval) {
+					checkpointDedup();
+				}
+				PayloadCodec.trainIfDue();
+				if (spool == null || !spool.hasPending()) {
+					PayloadCodec.prune();
+				}
+			} catch (InterruptedException iex) {
 				threadTerminated = true;
+			} catch (Exception ex) {
+				debugLog.error("[EventSenderThread] unexpected error in consumer: " + ex);
 			}
 		}
 
+		if (forwarder != null) {
+			forwarder.close();
+		} else {
+			EventLogger.closeDBConn();
+		}
+		threadTerminated = true;
+
 		try {
+			// the spool is closed by drain(), which may still need it
+			if (spool != null) {
+				spool.flush();
+			}
 			if (track) {
 				consumerCache.close();
 				producerCache.close();
@@ -162,18 +562,574 @@ public class EventSenderThread extends Thread {
 		}
 	}
 
-	public synchronized static int log(EventExt ev) throws IOException {
+	/**
+	 * Write a live event to the db, or to the spool while the circuit is
+	 * open. A failed write opens the circuit so that the following events
+	 * go straight to the spool without waiting on the db, unless the db
+	 * refused the event itself, which is rejected instead.
+	 */
+	private void deliver(EventExt item) throws IOException {
+		if (circuitOpen && !probeDue()) {
+			spoolTaken(item);
+			return;
+		}
+
+		FlushEvent jfr = FlushEvent.start();
+		List<EventExt> one = Collections.singletonList(item);
+		totes.writing(one);
+		try {
+			if (circuitOpen) {
+				reconnect();
+			}
+			if (logEvent(item)) {
+				totes.written(item, true);
+				fanout.publish(one);
+			} else {
+				totes.duplicate(item);
+			}
+			if (circuitOpen) {
+				closeCircuit();
+			}
+			jfr.done(1, sinkName(), true);
+		} catch (Exception ex) {
+			if (isPermanent(ex)) {
+				reject(item, ex, true);
+				jfr.done(1, "rejected", false);
+			} else {
+				openCircuit(ex);
+				spoolTaken(item);
+				jfr.done(1, "spool", false);
+			}
+		} finally {
+			totes.doneWriting(one);
+		}
+	}
+
+	/**
+	 * Fill batch with first and whatever else is queued, up to batchSize,
+	 * waiting at most linger ms for more. Returns true if a shutdown request
+	 * was taken off the queue along the way.
+	 */
+	private boolean collectBatch(EventExt first) throws InterruptedException {
+		int max = batchSize;
+		batch.add(first);
+		itemsToQ.drainTo(batch, max - 1);
+
+		long deadline = System.currentTimeMillis() + linger;
+		while (batch.size() < max) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				break;
+			}
+			EventExt next = itemsToQ.poll(wait, TimeUnit.MILLISECONDS);
+			if (next == null) {
+				break;
+			}
+			batch.add(next);
+			if (next == SHUTDOWN_REQ) {
+				break;
+			}
+		}
+
+		boolean shutdown = false;
+		for (int i = batch.size() - 1; i > 0; i--) {
+			EventExt item = batch.get(i);
+			if (item == SHUTDOWN_REQ || item == WAKE_REQ) {
+				shutdown |= (item == SHUTDOWN_REQ);
+				batch.remove(i);
+			} else {
+				releaseSlot();
+			}
+		}
+		return shutdown;
+	}
+
+	/**
+	 * Write a batch of live events in one transaction, or spool the lot if
+	 * the circuit is open or the write fails.
+	 */
+	private void deliverBatch(List<EventExt> items) throws IOException {
+		writeBatch(items);
+		for (EventExt item : items) {
+			trackConsumed(item);
+		}
+	}
+
+	/**
+	 * Tell whoever is waiting on the items, i.e. the collector, that they
+	 * have been written or spooled, flushing the spool first so a spooled
+	 * item is on disk by then.
+	 */
+	private void delivered(List<EventExt> items) throws IOException {
+		for (EventExt item : items) {
+			if (item.awaitsDelivery()) {
+				if (spoolUnflushed) {
+					flushSpool();
+				}
+				item.delivered();
+			}
+		}
+	}
+
+	/**
+	 * Write the counts of discarded events to the accumulator, or to the
+	 * spool if the db is unavailable.
+	 */
+	private void flushCounts() throws IOException {
+		lastCountFlush = System.currentTimeMillis();
+		List<EventExt> items = takeCounts();
+		if (!items.isEmpty()) {
+			writeBatch(items);
+			if (spoolUnflushed) {
+				flushSpool();
+			}
+		}
+		countsWritten();
+	}
+
+	private void writeBatch(List<EventExt> items) throws IOException {
+		if (circuitOpen && !probeDue()) {
+			for (EventExt item : items) {
+				spoolTaken(item);
+			}
+		} else {
+			FlushEvent jfr = FlushEvent.start();
+			totes.writing(items);
+			try {
+				if (circuitOpen) {
+					reconnect();
+				}
+				// fresh holds the items not written before, in order
+				List<EventExt> fresh = logEvents(items);
+				int f = 0;
+				for (EventExt item : items) {
+					if (f < fresh.size() && fresh.get(f) == item) {
+						f++;
+						totes.written(item, true);
+					} else {
+						totes.duplicate(item);
+					}
+				}
+				fanout.publish(fresh);
+				if (circuitOpen) {
+					closeCircuit();
+				}
+				jfr.done(items.size(), sinkName(), true);
+			} catch (Exception ex) {
+				if (isPermanent(ex)) {
+					// one of them is refused, the rest go in on their own
+					jfr.done(items.size(), "rejected", false);
+					for (EventExt item : items) {
+						deliver(item);
+					}
+				} else {
+					openCircuit(ex);
+					for (EventExt item : items) {
+						spoolTaken(item);
+					}
+					jfr.done(items.size(), "spool", false);
+				}
+			} finally {
+				totes.doneWriting(items);
+			}
+		}
+	}
+
+	/**
+	 * Replay spooled events alongside live traffic, no faster than the
+	 * configured SpoolReplayRate. While the circuit is open the oldest
+	 * spooled event doubles as the probe that checks whether the db is back.
+	 * An event the db refuses is rejected, so it cannot hold up the ones
+	 * behind it.
+	 */
+	private void replaySpool() throws IOException {
+		if (circuitOpen && !probeDue()) {
+			return;
+		}
+
+		int permits = replayLimiter.tryAcquire(REPLAY_BATCH);
+		for (int i = 0; i < permits; i++) {
+			EventExt item = spool.peek();
+			if (item == null) {
+				if (verbose) debugLog.debug("spool drained, " + spool.getReplayedCount() + " events replayed");
+				return;
+			}
+
+			List<EventExt> one = Collections.singletonList(item);
+			totes.writing(one);
+			try {
+				if (circuitOpen) {
+					reconnect();
+				}
+				boolean written = logEvent(item);
+				spool.commit();
+				if (written) {
+					totes.written(item, false);
+				}
+				if (track) counters.add(QueueCounters.REPLAYED, 1);
+				if (circuitOpen) {
+					closeCircuit();
+				}
+			} catch (Exception ex) {
+				if (!isPermanent(ex)) {
+					openCircuit(ex);
+					return;
+				}
+				reject(item, ex, false);
+			} finally {
+				totes.doneWriting(one);
+			}
+		}
+	}
+
+	/**
+	 * Whether a failed write would fail the same way however often it was
+	 * retried, because the db refused the event itself rather than being
+	 * unreachable or busy.
+	 */
+	static boolean isPermanent(Exception ex) {
+		if (ex instanceof SQLIntegrityConstraintViolationException || ex instanceof SQLDataException) {
+			return true;
+		}
+		if (ex instanceof SQLException) {
+			SQLException sql = (SQLException) ex;
+			String state = sql.getSQLState();
+			if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+				return true;
+			}
+			for (int code : REFUSED) {
+				if (sql.getErrorCode() == code) {
+					return true;
+				}
+			}
+			return false;
+		}
+		// a bad event rather than a bad connection
+		return ex instanceof RuntimeException;
+	}
+
+	/**
+	 * Set aside an event the db refused. The db answered, so the circuit is
+	 * closed again if it was open.
+	 */
+	private void reject(EventExt item, Exception cause, boolean queued) throws IOException {
+		debugLog.error("[EventSenderThread] " + destination() + " refused event " + item.getId()
+				+ ", setting it aside: " + cause);
+		if (queued) {
+			totes.spooled(item);
+		}
+		if (spool != null) {
+			spool.reject(item);
+		} else {
+			debugLog.error("no event spool, dropping refused event: " + item.peekEvent());
+		}
+		if (track) counters.add(QueueCounters.REJECTED, 1);
+		if (circuitOpen) {
+			closeCircuit();
+		}
+	}
+
+	private boolean probeDue() {
+		return System.currentTimeMillis() >= nextProbe;
+	}
+
+	private void openCircuit(Exception cause) {
+		if (!circuitOpen) {
+			debugLog.warn("[EventSenderThread] " + destination() + " unavailable, spooling events: " + cause);
+		}
+		circuitOpen = true;
+		nextProbe = System.currentTimeMillis() + circuitRetryInterval;
+	}
+
+	private void closeCircuit() {
+		circuitOpen = false;
+		debugLog.info("[EventSenderThread] " + destination() + " available again, replaying spooled events");
+	}
+
+	private static String sinkName() {
+		return (forwarder != null) ? "collector" : "db";
+	}
+
+	private static String destination() {
+		return (forwarder != null) ? "event collector at " + forwarder : "events db";
+	}
+
+	private static void reconnect() throws Exception {
+		if (forwarder != null) {
+			// the next send connects again
+			forwarder.close();
+		} else {
+			EventLogger.reconnect();
+		}
+	}
+
+	/**
+	 * Save the dedup window if it has changed since it was last saved.
+	 */
+	private void checkpointDedup() {
+		lastDedupCheckpoint = System.currentTimeMillis();
+		if (dedup.isDirty()) {
+			try {
+				dedup.save(dedupFile);
+			} catch (IOException e) {
+				debugLog.warn("unable to save " + dedupFile + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Flush the spool and, now that spooled events are on disk, publish how
+	 * far into the producer cache the consumer has got.
+	 */
+	private void flushSpool() throws IOException {
+		spool.flush();
+		lastSpoolFlush = System.currentTimeMillis();
+		if (spoolUnflushed) {
+			spoolUnflushed = false;
+			if (track) counters.set(QueueCounters.CONSUMED_BYTES, consumedBytes);
+		}
+	}
+
+	/**
+	 * Spool an item taken off the queue and, unless it was written before,
+	 * hand it to the sinks. The sinks get each item once, when it is first
+	 * written or spooled, so a replay does not hand it to them again.
+	 */
+	private void spoolTaken(EventExt item) throws IOException {
+		boolean written = dedup.contains(item.getId());
+		toSpool(item);
+		if (!written) {
+			fanout.publish(Collections.singletonList(item));
+		}
+	}
+
+	private void toSpool(EventExt item) throws IOException {
+		totes.spooled(item);
+		if (spool == null) {
+			debugLog.error("no event spool, dropping event: " + item.peekEvent());
+			if (track) counters.add(QueueCounters.DROPPED, 1);
+			return;
+		}
+		OverflowEvent jfr = OverflowEvent.start();
+		spool.append(item);
+		spoolUnflushed = true;
+		if (track) counters.add(QueueCounters.SPOOLED, 1);
+		jfr.done("spool", "circuit open", item.peekEvent().service(), itemsToQ.size());
+	}
+
+	/**
+	 * Count a discarded event towards its totes without queueing it.
+	 */
+	static void count(Event e, int accumNum) throws IOException {
+		EventExt item = EventExt.discarded(e, accumNum);
+		boolean counted = false;
+		synchronized (counts) {
+			if (_thread == null || !_thread.shuttingDown) {
+				counts.add(e.user(), e.service(), e.time(), accumNum);
+				logCount(item);
+				counted = true;
+			}
+		}
+		if (!counted) {
+			// the counts have been drained, keep the event for the next start
+			log(item);
+			return;
+		}
+		// the sinks get the count once it is taken, or carried by a kept
+		// event
+		totes.queued(e, accumNum);
+	}
+
+	/**
+	 * Take the count pending for e's user, service and minute, for e to
+	 * carry instead, as much of it as fits in an int beside accumNum.
+	 */
+	static int carried(Event e, int accumNum) throws IOException {
+		int n;
+		synchronized (counts) {
+			n = (int) counts.take(e.user(), e.service(), e.time(),
+					Integer.MAX_VALUE - Math.max(0, accumNum));
+			if (n != 0) {
+				// e is in the producer cache with it
+				logCount(EventExt.discarded(e, -n));
+			}
+		}
+		if (n != 0) {
+			// e is queued with it
+			totes.queued(e, -n);
+		}
+		return n;
+	}
+
+	/**
+	 * Log a change to the pending counts, with counts held.
+	 */
+	private static void logCount(EventExt item) throws IOException {
+		if (countLog != null) {
+			cdata.setLength(0);
+			EventCodec.encode(item, cdata);
+			countLog.write(cdata.toString().getBytes("UTF-8"));
+		}
+	}
+
+	/**
+	 * Take every pending count. The count log is set aside with them, to be
+	 * removed by countsWritten once they are in the db or the spool.
+	 */
+	private static List<EventExt> takeCounts() {
+		synchronized (counts) {
+			if (countLog != null) {
+				File log = new File(PRODUCER_CACHE_NAME + COUNTS_SUFFIX);
+				try {
+					countLog.close();
+					if (!log.renameTo(new File(log.getPath() + FLUSHING_SUFFIX))) {
+						debugLog.error("unable to set aside " + log);
+					}
+				} catch (IOException e) {
+					debugLog.error("problem closing " + log + ": " + e);
+				}
+				try {
+					countLog = new FileOutputStream(log, true);
+				} catch (IOException e) {
+					debugLog.error("unable to open " + log + ", pending counts will not survive a crash: " + e);
+					countLog = null;
+				}
+			}
+			return counts.drain();
+		}
+	}
+
+	/**
+	 * The counts last taken are in the db or the spool, forget their log.
+	 */
+	private static void countsWritten() {
+		FileUtils.deleteQuietly(new File(PRODUCER_CACHE_NAME + COUNTS_SUFFIX + FLUSHING_SUFFIX));
+	}
+
+	public static int log(EventExt ev) throws IOException {
+		return log(ev, ServicePolicy.Priority.NORMAL);
+	}
+
+	static int log(EventExt ev, ServicePolicy.Priority priority) throws IOException {
+		EnqueueEvent jfr = EnqueueEvent.start();
+		boolean admitted = false;
+		if (!(_thread != null && _thread.shuttingDown)) {
+			// wait for room outside the lock, so a full queue does not hold
+			// up drain()
+			admitted = admit(ev, priority);
+			if (!admitted) {
+				return qcount;
+			}
+		}
+		int n = enqueue(ev, admitted);
+		jfr.done(ev.peekEvent().service(), priority.name(), itemsToQ.size());
+		return n;
+	}
+
+	/**
+	 * Take a slot in the queue for ev, or deal with it by the overflow policy
+	 * for its priority if the queue is full. Returns false if the event was
+	 * dropped or spooled.
+	 */
+	private static boolean admit(EventExt ev, ServicePolicy.Priority priority) throws IOException {
+		if (!ready) {
+			unpermitted.incrementAndGet();
+			return true;
+		}
+		if (capacity.tryAcquire()) {
+			return true;
+		}
+
+		Overflow action = overflow;
+		if (priority == ServicePolicy.Priority.HIGH) {
+			action = Overflow.BLOCK;
+		} else if (priority == ServicePolicy.Priority.LOW) {
+			action = (spool != null) ? Overflow.SPOOL : Overflow.DROP;
+		}
+		OverflowEvent jfr = OverflowEvent.start();
+		switch (action) {
+		case DROP:
+			if (track) counters.add(QueueCounters.DROPPED, 1);
+			if (verbose) debugLog.debug("queue full, dropping event " + ev.getId());
+			jfr.done("drop", "queue full", ev.peekEvent().service(), itemsToQ.size());
+			ev.dropped();
+			return false;
+		case SPOOL:
+			if (spool != null) {
+				spool.append(ev);
+				spool.flush();
+				if (track) counters.add(QueueCounters.SPOOLED, 1);
+				jfr.done("spool", "queue full", ev.peekEvent().service(), itemsToQ.size());
+				ev.delivered();
+				fanout.publishSpooled(ev);
+				return false;
+			}
+			// no spool to overflow to, so wait instead
+			return waitForRoom(ev, jfr);
+		default:
+			return waitForRoom(ev, jfr);
+		}
+	}
+
+	/**
+	 * Give back the queue slot of an event taken off the queue, unless it
+	 * was queued without one while warming up.
+	 */
+	private static void releaseSlot() {
+		for (int n; (n = unpermitted.get()) > 0;) {
+			if (unpermitted.compareAndSet(n, n - 1)) {
+				return;
+			}
+		}
+		capacity.release();
+	}
+
+	private static boolean waitForRoom(EventExt ev, OverflowEvent jfr) {
+		try {
+			capacity.acquire();
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Unexpected interruption.");
+		}
+		jfr.done("block", "queue full", ev.peekEvent().service(), itemsToQ.size());
+		return true;
+	}
+
+	private synchronized static int enqueue(EventExt ev, boolean admitted) throws IOException {
+		if (_thread != null && _thread.shuttingDown) {
+			// the consumer is gone or going, keep the event for the next start
+			if (admitted) {
+				releaseSlot();
+			}
+			if (spool != null) {
+				OverflowEvent jfr = OverflowEvent.start();
+				spool.append(ev);
+				spool.flush();
+				jfr.done("spool", "shutdown", ev.peekEvent().service(), itemsToQ.size());
+				ev.delivered();
+				fanout.publishSpooled(ev);
+			} else {
+				ev.dropped();
+			}
+			return qcount;
+		}
+
 		try {
 			qcount = qcount + 1;
-			itemsToQ.put(ev);
 
 			if (track) {
 				pdata = serializeEvent(ev, pdata);
-				producerCache.write(pdata.toString().getBytes());
-				FileUtils.writeStringToFile(qStatusFile, "qcount" + DELIMITER
-						+ qcount + DELIMITER + "dqcount" + DELIMITER + dqcount
-						+ "\n");
+				byte[] bytes = pdata.toString().getBytes("UTF-8");
+				producerCache.write(bytes);
+				producedBytes += bytes.length;
+				ev.setCacheEnd(producedBytes);
+				counters.set(QueueCounters.QCOUNT, qcount);
+				counters.set(QueueCounters.PRODUCED_BYTES, producedBytes);
 			}
+
+			// counted before the consumer can take it
+			totes.queued(ev.peekEvent(), ev.getAccumNum());
+			itemsToQ.put(ev);
 		} catch (InterruptedException iex) {
 			Thread.currentThread().interrupt();
 			throw new RuntimeException("Unexpected interruption.");
@@ -182,6 +1138,31 @@ public class EventSenderThread extends Thread {
 		return qcount;
 	}
 
+	/**
+	 * Live top-N users, services and addresses seen by the consumer.
+	 */
+	public static EventStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Feed every event queued from now on to sink as well.
+	 */
+	static void addSink(String name, EventSink sink, Properties settings) {
+		fanout.add(name, sink, settings);
+	}
+
+	static ToteCache getTotes() {
+		return totes;
+	}
+
+	/**
+	 * Events waiting in the queue, without taking any lock.
+	 */
+	static int queueDepth() {
+		return (itemsToQ == null) ? 0 : itemsToQ.size();
+	}
+
 	public synchronized int getItemCount() {
 		return ((itemsToQ == null) ? 0 : itemsToQ.size());
 	}
@@ -192,194 +1173,423 @@ public class EventSenderThread extends Thread {
 		return qcount;
 	}
 
-	public synchronized void shutdown() throws InterruptedException {
-		shuttingDown = true;
-		itemsToQ.put(SHUTDOWN_REQ);
+	public void shutdown() throws InterruptedException {
+		drain(shutdownDeadline);
 	}
-	
-	private static void readStatusFromFile() {
-		String status;
+
+	/**
+	 * Stop the consumer and flush everything still queued, giving up after
+	 * timeoutMs. Pending events are written to the db in parallel batches;
+	 * whatever is not written by the deadline, or everything if the db is
+	 * unavailable, goes to the spool and is replayed on the next start.
+	 */
+	public void drain(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		List<EventExt> pending = new ArrayList<EventExt>();
+
+		synchronized (EventSenderThread.class) {
+			if (shuttingDown) {
+				return;
+			}
+			shuttingDown = true;
+			itemsToQ.drainTo(pending);
+			// wake the consumer if it is waiting on an empty queue
+			itemsToQ.offer(SHUTDOWN_REQ);
+		}
+		removeShutdownHook();
+
+		// let the consumer finish the event it has in hand
+		join(Math.max(1, deadline - System.currentTimeMillis()));
+		synchronized (EventSenderThread.class) {
+			itemsToQ.drainTo(pending);
+		}
+		pending.remove(SHUTDOWN_REQ);
+		pending.addAll(takeCounts());
+		while (pending.remove(WAKE_REQ)) {
+		}
+		// wake any producer still waiting for room, it will spool its event
+		capacity.release(pending.size());
+
+		// null if the consumer did not get as far as opening it
+		DedupWindow ids = dedup;
+		for (int i = pending.size() - 1; ids != null && i >= 0; i--) {
+			if (ids.contains(pending.get(i).getId())) {
+				pending.remove(i);
+			}
+		}
+
+		int total = pending.size();
+		List<EventExt> taken = new ArrayList<EventExt>(pending);
+		fanout.publish(pending, deadline);
+		if (!pending.isEmpty() && !circuitOpen && ids != null) {
+			pending = (forwarder != null) ? forwardAll(pending, deadline) : flushParallel(pending, deadline);
+		}
+		debugLog.info("[EventSenderThread] drained " + (total - pending.size())
+				+ " events to the " + ((forwarder != null) ? "collector" : "db") + ", spooling " + pending.size());
+
 		try {
-			status = FileUtils.readFileToString(qStatusFile).trim();
-			if ((status != null) || (!status.isEmpty())) {
-				String[] tokens = status.split(DELIMITER);
-				if (tokens.length == 4) {
-					qcount = new Integer(tokens[QC]);
-					dqcount = new Integer(tokens[DQC]);
+			if (spool != null) {
+				for (EventExt item : pending) {
+					spool.append(item);
+				}
+				spool.flush();
+				synchronized (counts) {
+					if (countLog != null) {
+						countLog.close();
+						countLog = null;
+					}
+					// nothing is counted after the drain, the log is empty
+					FileUtils.deleteQuietly(new File(PRODUCER_CACHE_NAME + COUNTS_SUFFIX));
+				}
+				countsWritten();
+			} else if (!pending.isEmpty()) {
+				debugLog.error("no event spool, " + pending.size() + " events lost at shutdown");
+				for (EventExt item : pending) {
+					item.dropped();
 				}
 			}
-		} catch (java.io.FileNotFoundException fnfe) {
 		} catch (IOException e) {
-			e.printStackTrace();
+			debugLog.error("problem spooling events at shutdown: " + e);
+			for (EventExt item : pending) {
+				item.dropped();
+			}
 		}
-	}
-	
-	private synchronized static void queueSpillOverFromLastRun() {
-		// count the spill over
-		int qdiff = qcount - dqcount;
-		
-		// reinit after get count of previous unprocessed items
-		qcount = 0;
-		dqcount = 0;
-		if (qdiff > 0) {
-			Map<Long, String> qmap = tailLines(PRODUCER_CACHE_NAME, qdiff);
-			// delete old consumerCache and producerCache
-			FileUtils.deleteQuietly(new File(CONSUMER_CACHE_NAME));
-			FileUtils.deleteQuietly(new File(PRODUCER_CACHE_NAME));
-
-			// Prepare consumerCache and prodcerCache for the next run
-			// of the EventSenderThread
+		for (EventExt item : taken) {
+			item.delivered();
+		}
+
+		if (ids != null) {
 			try {
-				consumerCache = new FileOutputStream(CONSUMER_CACHE_NAME, true);
-				producerCache = new FileOutputStream(PRODUCER_CACHE_NAME, true);
+				ids.save(dedupFile);
+			} catch (IOException e) {
+				debugLog.warn("unable to save " + dedupFile + ": " + e);
+			}
+		}
+
+		if (forwarder == null) {
+			// a forwarding sender never loads EventLogger, which would connect
+			EventLogger.closeSink();
+			IntervalProvisioner.stop();
+		}
+		fanout.close(deadline);
+		totes.shutdown();
+		EventConfig.get().stopWatching();
+		UserSketches.flush();
+		UserSketches.close();
+		Diagnostics.close();
+	}
+
+	private void removeShutdownHook() {
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// already running as the shutdown hook
+		}
+	}
+
+	/**
+	 * Send pending events to the collector in batches until the deadline and
+	 * return the events it has not acknowledged.
+	 */
+	private static List<EventExt> forwardAll(List<EventExt> pending, long deadline) {
+		int done = 0;
+		try {
+			while (done < pending.size() && System.currentTimeMillis() < deadline) {
+				int end = Math.min(done + drainBatchSize, pending.size());
+				List<EventExt> batch = pending.subList(done, end);
+				forwarder.send(batch);
+				for (EventExt item : batch) {
+					dedup.add(item.getId());
+				}
+				done = end;
+			}
+		} catch (IOException e) {
+			debugLog.warn("[EventSenderThread] drain to the collector stopped: " + e);
+		}
+		forwarder.close();
+		return new ArrayList<EventExt>(pending.subList(done, pending.size()));
+	}
 
-				for (Long idx : qmap.keySet()) {
-					String eventStr = (String) qmap.get(idx);
+	/**
+	 * Write pending events with drainWriters connections until the deadline
+	 * and return the events that were not committed. Events are partitioned
+	 * by user and service, or by user alone when a user's services share
+	 * rollup totes, so that no two writers touch the same tote.
+	 */
+	private static List<EventExt> flushParallel(List<EventExt> pending, final long deadline)
+			throws InterruptedException {
+		final int writers = drainWriters;
+		List<List<EventExt>> partitions = new ArrayList<List<EventExt>>(writers);
+		for (int i = 0; i < writers; i++) {
+			partitions.add(new ArrayList<EventExt>());
+		}
+		for (EventExt item : pending) {
+			Event e = item.peekEvent();
+			int h = ServiceRollups.isEnabled() ? e.user().hashCode()
+					: (e.user() + DELIMITER + e.service()).hashCode();
+			partitions.get((h & 0x7fffffff) % writers).add(item);
+		}
+
+		final AtomicReferenceArray<List<EventExt>> leftOver = new AtomicReferenceArray<List<EventExt>>(writers);
+		final AtomicReferenceArray<Connection> conns = new AtomicReferenceArray<Connection>(writers);
+		ExecutorService pool = Executors.newFixedThreadPool(writers, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EventSenderThread-drain");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		for (int i = 0; i < writers; i++) {
+			final int w = i;
+			final List<EventExt> partition = partitions.get(i);
+			leftOver.set(w, partition);
+			if (partition.isEmpty()) {
+				continue;
+			}
+			pool.execute(new Runnable() {
+				public void run() {
+					Connection conn = null;
+					int done = 0;
 					try {
-						log(parseEvent(eventStr));
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						conn = EventLogger.openConnection();
+						conns.set(w, conn);
+						while (done < partition.size() && System.currentTimeMillis() < deadline) {
+							int end = Math.min(done + drainBatchSize, partition.size());
+							List<EventExt> batch = partition.subList(done, end);
+							EventLogger.logEvents(conn, batch);
+							done = end;
+							leftOver.set(w, partition.subList(done, partition.size()));
+							for (EventExt item : batch) {
+								dedup.add(item.getId());
+							}
+						}
+					} catch (Exception e) {
+						debugLog.warn("[EventSenderThread] drain writer stopped: " + e);
+					} finally {
+						if (conn != null) {
+							try {
+								conn.close();
+							} catch (Exception e) {
+							}
+						}
+					}
+				}
+			});
+		}
+
+		pool.shutdown();
+		if (!pool.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+			// closing the connection fails a batch still in flight, unless it
+			// has already committed, so what is left over is what did not commit
+			for (int i = 0; i < writers; i++) {
+				Connection conn = conns.get(i);
+				if (conn != null) {
+					try {
+						conn.close();
+					} catch (Exception e) {
 					}
 				}
-			} catch (FileNotFoundException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
 			}
-		} else {
-			// just try to initialize caches
-			try {
-				consumerCache = new FileOutputStream(CONSUMER_CACHE_NAME, true);
-				producerCache = new FileOutputStream(PRODUCER_CACHE_NAME, true);
-			} catch (FileNotFoundException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			}			
+			if (!pool.awaitTermination(Math.max(1, EventLogger.getQueryTimeout()), TimeUnit.SECONDS)) {
+				// a driver that ignores the close leaves the batch undecided:
+				// it is spooled as well, so it may be written twice but is
+				// never lost
+				debugLog.warn("[EventSenderThread] drain writer did not stop, spooling its batch");
+			}
+		}
+		pool.shutdownNow();
+
+		List<EventExt> unwritten = new ArrayList<EventExt>();
+		for (int i = 0; i < writers; i++) {
+			unwritten.addAll(leftOver.get(i));
 		}
+		return unwritten;
 	}
 	
-	private synchronized static Map<Long, String> tailLines(String fileName,
-			long numberOfLines) {
-		Map<Long, String> strmap = new HashMap<Long, String>();
-		try {
-			/*
-			 * Receive file name and no of lines to tail as command line
-			 * argument
-			 */
-			RandomAccessFile randomFile = new RandomAccessFile(fileName, "r");
-
-			long filelength = randomFile.length();
-			long filepos = filelength - 1;
-			long linescovered = 1;
-			for (linescovered = 1; linescovered <= numberOfLines; filepos--) {
-				if (filepos < 0) filepos = 0;
-				
-				randomFile.seek(filepos);
-				if ((randomFile.readByte() == 0xA) || (filepos == 0))
-					if (filepos == filelength - 1)
-						continue;
-					else {
-						strmap.put(linescovered, randomFile.readLine());
-						linescovered++;
-					}
+	private static void readStatusFromFile() {
+		qcount = (int) counters.get(QueueCounters.QCOUNT);
+		dqcount = (int) counters.get(QueueCounters.DQCOUNT);
+		consumedBytes = counters.get(QueueCounters.CONSUMED_BYTES);
+	}
+	
+	/**
+	 * Set aside whatever the last run queued but did not consume, for the
+	 * recovery thread to hand to the spool.
+	 * 
+	 * The consumer publishes the producer cache offset of the last event it
+	 * took off the queue, so the first unconsumed event is found directly
+	 * from the status page. The cache is renamed with that offset in its
+	 * name, which keeps startup to a rename however much was left over.
+	 */
+	private synchronized static void queueSpillOverFromLastRun() {
+		if (verbose) debugLog.debug("last run queued " + qcount + ", consumed " + dqcount
+				+ " (" + consumedBytes + " bytes)");
 
+		File cache = new File(PRODUCER_CACHE_NAME);
+		if (cache.length() > consumedBytes) {
+			File recover = new File(PRODUCER_CACHE_NAME + RECOVER_SUFFIX + consumedBytes);
+			if (!cache.renameTo(recover)) {
+				debugLog.error("unable to set aside " + cache + " for recovery");
 			}
-			
-			randomFile.close();
-			randomFile = null;
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 
-		if (verbose) {
-			long startPosition = numberOfLines;
-			while (startPosition != 0) {
-				if (strmap.containsKey(startPosition)) {
-					String outstr = (String) strmap.get(startPosition);
-					debugLog.debug(outstr);
-					startPosition--;
+		// reinit for this run
+		qcount = 0;
+		dqcount = 0;
+		producedBytes = 0;
+		consumedBytes = 0;
+		FileUtils.deleteQuietly(new File(CONSUMER_CACHE_NAME));
+		FileUtils.deleteQuietly(cache);
 
+		// counts pending at a crash, and any still being written, are
+		// replayed from their logs like the rest of the spill over
+		String[] logs = { COUNTS_SUFFIX + FLUSHING_SUFFIX, COUNTS_SUFFIX };
+		for (int i = 0; i < logs.length; i++) {
+			File log = new File(PRODUCER_CACHE_NAME + logs[i]);
+			if (log.length() > 0) {
+				File recover = new File(PRODUCER_CACHE_NAME + COUNTS_SUFFIX + "."
+						+ System.currentTimeMillis() + "-" + i + RECOVER_SUFFIX + 0);
+				if (!log.renameTo(recover)) {
+					debugLog.error("unable to set aside " + log + " for recovery");
 				}
 			}
+			FileUtils.deleteQuietly(log);
+		}
+
+		// Prepare consumerCache and prodcerCache for the next run
+		// of the EventSenderThread
+		try {
+			consumerCache = new FileOutputStream(CONSUMER_CACHE_NAME, true);
+			producerCache = new FileOutputStream(PRODUCER_CACHE_NAME, true);
+			synchronized (counts) {
+				countLog = new FileOutputStream(PRODUCER_CACHE_NAME + COUNTS_SUFFIX, true);
+			}
+		} catch (FileNotFoundException e1) {
+			// TODO Auto-generated catch block
+			e1.printStackTrace();
 		}
-		return strmap;
 	}
 
-	private void logEvent(EventExt item) throws Exception {
-		EventLogger.logEvent(item.getEvent(), item.getAccumNum());
+	/**
+	 * Start the recovery thread once the spool is open.
+	 */
+	private static void startRecovery() {
+		Thread recovery = new Thread("EventSenderThread-recovery") {
+			public void run() {
+				recoverSpillOver();
+			}
+		};
+		recovery.setDaemon(true);
+		recovery.start();
 	}
 
-	private synchronized void logEventTest(EventExt item) throws IOException {
-		if (track) {
-			cdata = serializeEvent(item, cdata);
-			consumerCache.write(cdata.toString().getBytes());
-			dqcount = dqcount + 1;
-			FileUtils.writeStringToFile(qStatusFile, "qcount" + DELIMITER + qcount
-					+ DELIMITER + "dqcount" + DELIMITER + dqcount + "\n");
+	/**
+	 * Copy the unconsumed tail of each set-aside producer cache into the
+	 * spool, which replays it alongside live traffic. The copy is a bulk
+	 * file-to-file transfer, nothing is parsed or queued here.
+	 */
+	private static void recoverSpillOver() {
+		if (spool == null) {
+			debugLog.error("no event spool, leaving spill over from the last run in place");
+			return;
 		}
-	}
 
-	private synchronized static EventExt parseEvent(String data) {
-		if (data != null) {
-			String[] tokens = data.split(DELIMITER);
-			if (tokens.length == 8) {
-				Event e = new Event();
-				e.user(tokens[USR]);
-				e.service(tokens[SRV]);
-				SimpleDateFormat sdf = new SimpleDateFormat(
-						"yyyy-MM-dd HH:mm:ss");
-				Date etime = null;
-				try {
-					etime = sdf.parse(tokens[TIM]);
-				} catch (ParseException e1) {
-				}
-				e.time(etime);
-				e.address(tokens[ADR]);
-				e.input(tokens[IN]);
-				e.output(tokens[OUT]);
-				EventExt ext = new EventExt(e, new Integer(tokens[TOT]));
+		File cache = new File(PRODUCER_CACHE_NAME);
+		File[] leftOver = cache.getParentFile().listFiles();
+		if (leftOver == null) {
+			return;
+		}
 
-				return ext;
+		for (File f : leftOver) {
+			String name = f.getName();
+			int suffix = name.lastIndexOf(RECOVER_SUFFIX);
+			if (!name.startsWith(cache.getName()) || suffix < 0) {
+				continue;
+			}
+			String setAside = name.substring(cache.getName().length(), suffix);
+			if (setAside.length() > 0 && !setAside.startsWith(COUNTS_SUFFIX + ".")) {
+				// another app's cache
+				continue;
+			}
+			try {
+				long offset = Long.parseLong(name.substring(suffix + RECOVER_SUFFIX.length()));
+				long bytes = spool.importFrom(f, offset);
+				FileUtils.deleteQuietly(f);
+				debugLog.info("recovered " + bytes + " bytes of unconsumed events from " + f);
+			} catch (Exception e) {
+				debugLog.error("problem recovering events from " + f + ": " + e);
 			}
 		}
-		return null;
+
+		// the consumer may be waiting on an empty queue
+		itemsToQ.offer(WAKE_REQ);
 	}
-	
-	private synchronized static StringBuffer serializeEvent(EventExt item, StringBuffer data) {
-		Event e = item.getEvent();
-		String user = e.user();
-		String service = e.service();
-		String address = e.address();
-		String status = e.status();
-		String input = e.input();
-		String output = e.output();
-		Date time = e.time();
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		String _etime = sdf.format(time);
 
-		data.setLength(0);
+	/**
+	 * Write the items not already written, and return those.
+	 */
+	private List<EventExt> logEvents(List<EventExt> items) throws Exception {
+		List<EventExt> fresh = new ArrayList<EventExt>(items.size());
+		for (EventExt item : items) {
+			if (dedup.contains(item.getId())) {
+				if (track) counters.add(QueueCounters.DUPLICATES, 1);
+			} else {
+				fresh.add(item);
+			}
+		}
+		if (fresh.isEmpty()) {
+			return fresh;
+		}
+		if (forwarder != null) {
+			forwarder.send(fresh);
+		} else {
+			EventLogger.logEvents(fresh);
+		}
+		for (EventExt item : fresh) {
+			dedup.add(item.getId());
+		}
+		return fresh;
+	}
 
-		data.append(user).append(DELIMITER).append(service).append(DELIMITER)
-				.append(_etime).append(DELIMITER).append(status).append(DELIMITER)
-				.append(input).append(DELIMITER).append(output).append(DELIMITER)
-				.append(address).append(DELIMITER).append(item.getAccumNum())
-				.append("\n");
-		
-		return data;
+	/**
+	 * Write item unless it has been written already. Returns false if it
+	 * had.
+	 */
+	private boolean logEvent(EventExt item) throws Exception {
+		if (dedup.contains(item.getId())) {
+			if (track) counters.add(QueueCounters.DUPLICATES, 1);
+			return false;
+		}
+		if (forwarder != null) {
+			forwarder.send(Collections.singletonList(item));
+		} else {
+			EventLogger.logEvent(item.getEvent(), item.getAccumNum(), item.isDiscard());
+		}
+		dedup.add(item.getId());
+		return true;
 	}
-	
-	private static Properties loadProperties() {
-		Properties p = new Properties();
 
-		try {
-			p.load(EventSenderThread.class.getClassLoader()
-					.getResourceAsStream(DEFAULT_PROPERTIES));
-		} catch (Exception e) {
-			try {
-				p.load(new FileInputStream(DEFAULT_PROPERTIES));
-			} catch (Exception ex) {
+	/**
+	 * Count an event taken off the queue, whether it went to the db or the
+	 * spool. Only the consumer thread updates dqcount. The consumed offset
+	 * is held back while spooled events are still in the spool's buffer.
+	 */
+	private void trackConsumed(EventExt item) {
+		if (track) {
+			dqcount = dqcount + 1;
+			counters.set(QueueCounters.DQCOUNT, dqcount);
+			if (item.getCacheEnd() > 0) {
+				consumedBytes = item.getCacheEnd();
+				if (!spoolUnflushed) {
+					counters.set(QueueCounters.CONSUMED_BYTES, consumedBytes);
+				}
 			}
 		}
-		return p;
+	}
+
+	private synchronized static StringBuilder serializeEvent(EventExt item, StringBuilder data) {
+		data.setLength(0);
+		return EventCodec.encode(item, data);
 	}
 }
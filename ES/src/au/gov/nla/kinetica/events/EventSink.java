@@ -0,0 +1,40 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A destination fed with every event the webapp sends, alongside the events
+ * db. Sinks are listed in RDC.properties (Sinks and Sink.&lt;name&gt;.*) or
+ * added with EventSender.addSink, and each is fed by SinkFanout from its
+ * own bounded buffer on its own thread. With overflow=drop, the default, a
+ * slow sink loses events rather than holding up the db writes or the
+ * other sinks; with overflow=block the db writer waits for room in it.
+ *
+ * The EventExt handed to a sink is a copy of the one written to the db,
+ * made once and shared by every sink, and must not be changed. Use
+ * EventExt.getEvent() for its fields; a payload compressed while it was
+ * queued is inflated once, for every sink.
+ *
+ * Not to be confused with the EventSink=file setting, which chooses how the
+ * db writer stores event rows.
+ */
+public interface EventSink {
+
+	/**
+	 * Called once on the sink's thread before the first batch, with the
+	 * sink's Sink.&lt;name&gt;.* settings under their short names.
+	 */
+	void open(Properties props) throws Exception;
+
+	/**
+	 * Write a batch of events, in the order they were sent. An exception is
+	 * logged and the batch is lost to this sink only.
+	 */
+	void write(List<EventExt> batch) throws Exception;
+
+	/**
+	 * Called once on the sink's thread after the last batch.
+	 */
+	void close() throws Exception;
+}
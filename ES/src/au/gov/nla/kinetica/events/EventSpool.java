@@ -0,0 +1,288 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * EventSpool is a local store-and-forward buffer for events that could not
+ * be written to the events database.
+ *
+ * Events are appended to segment files in the spool directory. A segment is
+ * closed once it reaches the configured size, and segments are read back
+ * oldest first. A segment file is deleted only after every event in it has
+ * been committed, so a crash part way through a replay means the segment is
+ * replayed again from the start on the next run.
+ *
+ * An event the db refuses outright, rather than because it is unreachable,
+ * is rejected: appended to rejected.events in the spool directory, where it
+ * is kept for someone to look at but never replayed.
+ */
+class EventSpool {
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".spool";
+	private static final String REJECTED_FILE = "rejected.events";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static Logger debugLog = Logger.getLogger(EventSpool.class);
+
+	private final File dir;
+	private final long segmentSize;
+	private final StringBuilder data = new StringBuilder();
+
+	private long nextSeq;
+	private File writeSegment;
+	private Writer writer;
+	private long written;
+
+	private File readSegment;
+	private BufferedReader reader;
+	private EventExt head;
+	private boolean pending;
+
+	private long spooled;
+	private long replayed;
+	private long rejected;
+
+	EventSpool(File dir, long segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create spool directory " + dir);
+		}
+
+		File[] segments = segments();
+		if (segments.length > 0) {
+			pending = true;
+			nextSeq = seqOf(segments[segments.length - 1]) + 1;
+			debugLog.info("found " + segments.length
+					+ " spool segment(s) left from a previous run in " + dir);
+		}
+	}
+
+	/**
+	 * Append an event to the current write segment, rolling to a new segment
+	 * when the current one is full.
+	 */
+	synchronized void append(EventExt item) throws IOException {
+		if (writer == null) {
+			writeSegment = new File(dir, SEGMENT_PREFIX + String.format("%019d", nextSeq++) + SEGMENT_SUFFIX);
+			writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(writeSegment, true), UTF8), BUFFER_SIZE);
+			written = 0;
+		}
+
+		data.setLength(0);
+		EventCodec.encode(item, data);
+		writer.write(data.toString());
+		written += data.length();
+		spooled++;
+		pending = true;
+
+		if (written >= segmentSize) {
+			roll();
+		}
+	}
+
+	/**
+	 * Add the events in src, from offset to the end of the file, to the spool
+	 * as a new segment. src must be in the spool's line format and offset
+	 * must be at the start of a line. The bytes are copied with a channel
+	 * transfer outside the spool lock, so appends are not held up, and the
+	 * copy only becomes visible as a segment once it is complete.
+	 * 
+	 * Returns the number of bytes imported.
+	 */
+	long importFrom(File src, long offset) throws IOException {
+		File tmp = File.createTempFile("import-", ".tmp", dir);
+		long copied = 0;
+
+		FileInputStream in = new FileInputStream(src);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel from = in.getChannel();
+			FileChannel to = out.getChannel();
+			long size = from.size();
+			while (offset + copied < size) {
+				copied += from.transferTo(offset + copied, size - offset - copied, to);
+			}
+			to.force(false);
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		if (copied == 0) {
+			tmp.delete();
+			return 0;
+		}
+
+		synchronized (this) {
+			File segment = new File(dir, SEGMENT_PREFIX + String.format("%019d", nextSeq++) + SEGMENT_SUFFIX);
+			if (!tmp.renameTo(segment)) {
+				tmp.delete();
+				throw new IOException("unable to move " + tmp + " to " + segment);
+			}
+			pending = true;
+		}
+		return copied;
+	}
+
+	/**
+	 * Push buffered writes out to the current segment.
+	 */
+	synchronized void flush() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Whether there are spooled events waiting to be replayed.
+	 */
+	synchronized boolean hasPending() {
+		return pending;
+	}
+
+	/**
+	 * Return the oldest spooled event without removing it, or null if the
+	 * spool is empty.
+	 */
+	synchronized EventExt peek() throws IOException {
+		while (head == null) {
+			if (reader == null && !openNextSegment()) {
+				pending = false;
+				return null;
+			}
+
+			String line = reader.readLine();
+			if (line == null) {
+				reader.close();
+				reader = null;
+				if (!readSegment.delete()) {
+					debugLog.warn("unable to delete replayed spool segment " + readSegment);
+				}
+				readSegment = null;
+			} else if ((head = EventCodec.decode(line)) == null) {
+				debugLog.warn("skipping unreadable spool entry in " + readSegment + ": " + line);
+			}
+		}
+		return head;
+	}
+
+	/**
+	 * Mark the event returned by the last peek as delivered.
+	 */
+	synchronized void commit() {
+		if (head != null) {
+			head = null;
+			replayed++;
+		}
+	}
+
+	/**
+	 * Set an event aside in the rejected file. If it is the event returned
+	 * by the last peek, replay moves on past it.
+	 */
+	synchronized void reject(EventExt item) throws IOException {
+		data.setLength(0);
+		EventCodec.encode(item, data);
+		Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, REJECTED_FILE), true), UTF8);
+		try {
+			out.write(data.toString());
+		} finally {
+			out.close();
+		}
+		rejected++;
+		if (item == head) {
+			head = null;
+		}
+	}
+
+	synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	synchronized long getSpooledCount() {
+		return spooled;
+	}
+
+	synchronized long getReplayedCount() {
+		return replayed;
+	}
+
+	synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+	}
+
+	private void roll() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+			writeSegment = null;
+			written = 0;
+		}
+	}
+
+	private boolean openNextSegment() throws IOException {
+		File[] segments = segments();
+		if (segments.length == 0) {
+			return false;
+		}
+
+		// the oldest segment may still be open for writing, close it so
+		// that replay can catch up with the spool
+		if (writeSegment != null && segments[0].equals(writeSegment)) {
+			roll();
+		}
+
+		readSegment = segments[0];
+		reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(readSegment), UTF8), BUFFER_SIZE);
+		return true;
+	}
+
+	private File[] segments() {
+		File[] segments = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static long seqOf(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Live top-N users, services and addresses over the last minute, 15
+ * minutes and hour, fed by EventSender as each event is sent, discarded
+ * and sampled out ones included since they never reach the queue, and by
+ * the EventCollector as each forwarded event or count arrives.
+ * 
+ * Counts are weighted by accumNum. Memory is fixed, about 2MB in all, and
+ * updates take no locks.
+ */
+public class EventStats {
+
+	public enum Window {
+		ONE_MINUTE(60 * 1000L, 12),
+		FIFTEEN_MINUTES(15 * 60 * 1000L, 15),
+		ONE_HOUR(60 * 60 * 1000L, 12);
+
+		final long millis;
+		final int buckets;
+
+		Window(long millis, int buckets) {
+			this.millis = millis;
+			this.buckets = buckets;
+		}
+	}
+
+	private static final int WIDTH = 512;
+	private static final int CANDIDATES = 256;
+
+	private final HeavyHitters[] users = trackers();
+	private final HeavyHitters[] services = trackers();
+	private final HeavyHitters[] addresses = trackers();
+
+	private static HeavyHitters[] trackers() {
+		Window[] windows = Window.values();
+		HeavyHitters[] trackers = new HeavyHitters[windows.length];
+		for (int i = 0; i < windows.length; i++) {
+			trackers[i] = new HeavyHitters(windows[i].millis, windows[i].buckets, WIDTH, CANDIDATES);
+		}
+		return trackers;
+	}
+
+	void record(EventExt item) {
+		record(item.peekEvent(), item.getAccumNum());
+	}
+
+	void record(Event e, long n) {
+		for (int i = 0; i < users.length; i++) {
+			users[i].add(e.user(), n);
+			services[i].add(e.service(), n);
+			if (e.address() != null && e.address().length() > 0) {
+				addresses[i].add(e.address(), n);
+			}
+		}
+	}
+
+	public List<Map.Entry<String, Long>> topUsers(Window window, int n) {
+		return users[window.ordinal()].top(n);
+	}
+
+	public List<Map.Entry<String, Long>> topServices(Window window, int n) {
+		return services[window.ordinal()].top(n);
+	}
+
+	public List<Map.Entry<String, Long>> topAddresses(Window window, int n) {
+		return addresses[window.ordinal()].top(n);
+	}
+}
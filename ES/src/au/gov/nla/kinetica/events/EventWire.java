@@ -0,0 +1,139 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The binary protocol between EventForwarder and EventCollector.
+ *
+ * The sender writes one frame per batch of events and the collector answers
+ * each frame with a single status byte, ACK once every event in the batch
+ * is on its queue or NAK if it could not take them, in which case the
+ * sender spools the batch. A frame is
+ *
+ *   int    length of the rest of the frame
+ *   byte   VERSION
+ *   int    number of events
+ *
+ * followed by, for each event,
+ *
+ *   long   event id, so a batch resent after a lost ack is written once
+ *   int    accumNum
+ *   byte   flags, FLAG_DISCARD for a counter-only event
+ *   long   time, ms since the epoch
+ *   long   last status change, ms since the epoch
+ *   string status, user, service, address, input, output
+ *
+ * where a string is an int byte count followed by that many bytes of UTF-8,
+ * or -1 for null. Numbers are big-endian. Frames of VERSION_1, without the
+ * status and its time and with nulls sent as empty strings, are still
+ * read, so senders can be upgraded after the collector.
+ */
+class EventWire {
+	static final byte VERSION = 2;
+	static final byte VERSION_1 = 1;
+	static final byte ACK = 0;
+	static final byte NAK = 1;
+	static final byte FLAG_DISCARD = 1;
+	// a frame bigger than this is taken to be garbage
+	static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	/**
+	 * Encode batch as one frame into buf, from position 0, growing it if
+	 * need be. Returns the buffer holding the frame, flipped for reading.
+	 */
+	static ByteBuffer encode(List<EventExt> batch, ByteBuffer buf) {
+		while (true) {
+			buf.clear();
+			try {
+				buf.putInt(0);
+				buf.put(VERSION);
+				buf.putInt(batch.size());
+				for (EventExt item : batch) {
+					Event e = item.getEvent();
+					buf.putLong(item.getId());
+					buf.putInt(item.getAccumNum());
+					buf.put(item.isDiscard() ? FLAG_DISCARD : 0);
+					buf.putLong(e.time().getTime());
+					buf.putLong(e.lastStatusChange().getTime());
+					putString(buf, e.status());
+					putString(buf, e.user());
+					putString(buf, e.service());
+					putString(buf, e.address());
+					putString(buf, e.input());
+					putString(buf, e.output());
+				}
+				buf.putInt(0, buf.position() - 4);
+				buf.flip();
+				return buf;
+			} catch (BufferOverflowException ex) {
+				buf = ByteBuffer.allocate(buf.capacity() * 2);
+			}
+		}
+	}
+
+	/**
+	 * Decode the events in a frame, buf holding everything after the length.
+	 */
+	static List<EventExt> decode(ByteBuffer buf) throws IOException {
+		byte version = buf.get();
+		if (version != VERSION && version != VERSION_1) {
+			throw new IOException("unknown event wire version " + version);
+		}
+		int count = buf.getInt();
+		if (count < 0) {
+			throw new IOException("bad event count " + count);
+		}
+		List<EventExt> batch = new ArrayList<EventExt>(Math.min(count, 4096));
+		for (int i = 0; i < count; i++) {
+			long id = buf.getLong();
+			int accumNum = buf.getInt();
+			byte flags = buf.get();
+			Date time = new Date(buf.getLong());
+			Date changed = (version == VERSION_1) ? null : new Date(buf.getLong());
+			String status = (version == VERSION_1) ? null : getString(buf);
+
+			Event e = new Event(getString(buf), getString(buf), time);
+			e.address(getString(buf));
+			e.input(getString(buf));
+			e.output(getString(buf));
+			e.validate();
+			if (status != null) {
+				e.restoreStatus(status, changed);
+			}
+
+			EventExt item = new EventExt(e, accumNum, id);
+			item.setDiscard((flags & FLAG_DISCARD) != 0);
+			batch.add(item);
+		}
+		return batch;
+	}
+
+	private static void putString(ByteBuffer buf, String s) {
+		if (s == null) {
+			buf.putInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buf.putInt(bytes.length);
+		buf.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buf) throws IOException {
+		int len = buf.getInt();
+		if (len == -1) {
+			return null;
+		}
+		if (len < 0 || len > buf.remaining()) {
+			throw new IOException("bad string length " + len);
+		}
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+		buf.position(buf.position() + len);
+		return s;
+	}
+}
@@ -0,0 +1,151 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate counts of the busiest keys over a sliding time window, in
+ * fixed memory and without locks.
+ * 
+ * The window is split into a ring of time buckets, each holding a
+ * count-min sketch. Counting a key adds to one cell per sketch row of the
+ * current bucket, and a bucket is cleared when the ring comes round to it
+ * again. The estimate for a key is the sum over the live buckets of the
+ * smallest of its row cells, which can overcount but never undercount.
+ * 
+ * A bounded set of candidate keys is kept alongside the sketches so that
+ * the top keys can be listed. When the set grows past twice its capacity
+ * it is trimmed back to the keys with the highest estimates.
+ */
+class HeavyHitters {
+	private static final int DEPTH = 4;
+
+	private final long bucketMillis;
+	private final int buckets;
+	private final int width;
+	private final int capacity;
+
+	private final AtomicLongArray cells;
+	private final AtomicLongArray epochs;
+	private final Map<String, Boolean> candidates = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicBoolean trimming = new AtomicBoolean();
+
+	/**
+	 * @param windowMillis length of the sliding window
+	 * @param buckets number of time buckets the window is split into
+	 * @param width cells per sketch row, rounded up to a power of two
+	 * @param capacity number of candidate keys to keep
+	 */
+	HeavyHitters(long windowMillis, int buckets, int width, int capacity) {
+		this.buckets = buckets;
+		this.bucketMillis = Math.max(1, windowMillis / buckets);
+		this.width = Integer.highestOneBit(Math.max(2, width) * 2 - 1);
+		this.capacity = capacity;
+		this.cells = new AtomicLongArray(buckets * DEPTH * this.width);
+		this.epochs = new AtomicLongArray(buckets);
+	}
+
+	void add(String key, long n) {
+		if (key == null) {
+			return;
+		}
+
+		long epoch = System.currentTimeMillis() / bucketMillis;
+		int bucket = (int) (epoch % buckets);
+		long seen = epochs.get(bucket);
+		if (seen != epoch && epochs.compareAndSet(bucket, seen, epoch)) {
+			// first update in a new time slot, forget what the bucket held.
+			// Updates racing with the clear may be lost, which only makes
+			// the counts a little low for that slot.
+			int base = bucket * DEPTH * width;
+			for (int i = 0; i < DEPTH * width; i++) {
+				cells.set(base + i, 0);
+			}
+		}
+
+		int h = key.hashCode();
+		int base = bucket * DEPTH * width;
+		for (int row = 0; row < DEPTH; row++) {
+			cells.addAndGet(base + row * width + cell(h, row), n);
+		}
+
+		if (candidates.size() < 2 * capacity) {
+			candidates.put(key, Boolean.TRUE);
+		} else if (!candidates.containsKey(key) && trimming.compareAndSet(false, true)) {
+			try {
+				trim();
+				candidates.put(key, Boolean.TRUE);
+			} finally {
+				trimming.set(false);
+			}
+		}
+	}
+
+	long estimate(String key) {
+		long now = System.currentTimeMillis() / bucketMillis;
+		int h = key.hashCode();
+		long total = 0;
+
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			long epoch = epochs.get(bucket);
+			if (now - epoch >= buckets) {
+				continue;
+			}
+			int base = bucket * DEPTH * width;
+			long min = Long.MAX_VALUE;
+			for (int row = 0; row < DEPTH; row++) {
+				min = Math.min(min, cells.get(base + row * width + cell(h, row)));
+			}
+			total += min;
+		}
+		return total;
+	}
+
+	/**
+	 * The n keys with the highest estimated counts in the window, highest
+	 * first.
+	 */
+	List<Map.Entry<String, Long>> top(int n) {
+		List<Map.Entry<String, Long>> counts = estimates();
+		return new ArrayList<Map.Entry<String, Long>>(counts.subList(0, Math.min(n, counts.size())));
+	}
+
+	private List<Map.Entry<String, Long>> estimates() {
+		List<Map.Entry<String, Long>> counts = new ArrayList<Map.Entry<String, Long>>(candidates.size());
+		for (String key : candidates.keySet()) {
+			long count = estimate(key);
+			if (count > 0) {
+				counts.add(new AbstractMap.SimpleImmutableEntry<String, Long>(key, count));
+			}
+		}
+		Collections.sort(counts, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+		return counts;
+	}
+
+	private void trim() {
+		List<Map.Entry<String, Long>> counts = estimates();
+		candidates.clear();
+		for (int i = 0; i < Math.min(capacity, counts.size()); i++) {
+			candidates.put(counts.get(i).getKey(), Boolean.TRUE);
+		}
+	}
+
+	private int cell(int h, int row) {
+		int x = h * (0x9E3779B9 + 2 * row + 1);
+		x ^= x >>> 16;
+		x *= 0x85EBCA6B;
+		x ^= x >>> 13;
+		return x & (width - 1);
+	}
+}
@@ -0,0 +1,121 @@
+package au.gov.nla.kinetica.events;
+
+/**
+ * A HyperLogLog sketch of a set of strings, for counting distinct users
+ * without keeping them. 2^12 one-byte registers give a standard error of
+ * about 1.6% at any cardinality, in 4KB.
+ *
+ * Sketches of the same precision merge by taking the larger of each pair
+ * of registers, so the union of any number of them, e.g. the days of a
+ * month or the sketches of several hosts, is estimated as well as one
+ * sketch of all their users. Adding a value twice changes nothing.
+ *
+ * Not thread safe.
+ */
+final class HyperLogLog {
+	static final int PRECISION = 12;
+	private static final int M = 1 << PRECISION;
+	private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+	private final byte[] registers;
+
+	HyperLogLog() {
+		registers = new byte[M];
+	}
+
+	private HyperLogLog(byte[] registers) {
+		this.registers = registers;
+	}
+
+	void add(String value) {
+		addHash(hash(value));
+	}
+
+	void addHash(long hash) {
+		int index = (int) (hash >>> (64 - PRECISION));
+		// the first 1 bit after the index bits, with a stop bit so the rank
+		// is at most 64 - PRECISION + 1
+		int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+		if (rank > registers[index]) {
+			registers[index] = (byte) rank;
+		}
+	}
+
+	void merge(HyperLogLog other) {
+		for (int i = 0; i < M; i++) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	/**
+	 * The estimated number of distinct values added.
+	 */
+	long estimate() {
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				zeros++;
+			}
+		}
+		double e = ALPHA * M * M / sum;
+		if (e <= 2.5 * M && zeros > 0) {
+			// linear counting is closer while many registers are unused
+			e = M * Math.log((double) M / zeros);
+		}
+		return Math.round(e);
+	}
+
+	boolean isEmpty() {
+		for (byte r : registers) {
+			if (r != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	HyperLogLog copy() {
+		return new HyperLogLog(registers.clone());
+	}
+
+	/**
+	 * The precision followed by the registers.
+	 */
+	byte[] toBytes() {
+		byte[] b = new byte[M + 1];
+		b[0] = PRECISION;
+		System.arraycopy(registers, 0, b, 1, M);
+		return b;
+	}
+
+	static HyperLogLog fromBytes(byte[] b) {
+		if (b == null || b.length != M + 1 || b[0] != PRECISION) {
+			throw new IllegalArgumentException("not a HyperLogLog sketch of precision " + PRECISION);
+		}
+		byte[] registers = new byte[M];
+		System.arraycopy(b, 1, registers, 0, M);
+		return new HyperLogLog(registers);
+	}
+
+	/**
+	 * A 64 bit hash of value: FNV-1a over its chars, then the MurmurHash3
+	 * finalizer so every bit depends on every char.
+	 */
+	static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
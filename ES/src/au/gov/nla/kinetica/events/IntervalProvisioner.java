@@ -0,0 +1,212 @@
+package au.gov.nla.kinetica.events;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates interval rows ahead of time, so that events never arrive for an
+ * interval that does not exist yet, and keeps the IntervalSnapshot the
+ * accumulate path reads its intervals from.
+ *
+ * Every IntervalRefresh ms, on its own connection, it calls
+ * p_check_missing_intervals for each day from IntervalLookbackDays ago to
+ * IntervalHorizonDays ahead, checks that each of those days now has its
+ * intervals, and loads a new snapshot of the rows covering them. Midnight
+ * and the start of a month are then already in the snapshot by the time
+ * events for them arrive, and the writers never wait on interval repair;
+ * an event outside the snapshot falls back to the old query and repair.
+ *
+ * The three settings, and DBQueryTimeout, are picked up when RDC.properties
+ * changes, a new IntervalRefresh starting a fresh wait from then. The
+ * scheduler is stopped by EventSenderThread.drain at shutdown.
+ */
+class IntervalProvisioner {
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private static final int DEFAULT_HORIZON_DAYS = 7;
+	private static final int DEFAULT_LOOKBACK_DAYS = 7;
+	private static final long DEFAULT_REFRESH = 60 * 60 * 1000;
+	private static final String INTERVALS_CHECK = "select p_check_missing_intervals(?) from dual";
+
+	private static Logger debugLog = Logger.getLogger(IntervalProvisioner.class);
+	private static volatile IntervalSnapshot snapshot;
+	private static final CountDownLatch loaded = new CountDownLatch(1);
+	private static ScheduledExecutorService scheduler;
+	private static ScheduledFuture<?> task;
+
+	private static volatile int horizonDays = DEFAULT_HORIZON_DAYS;
+	private static volatile int lookbackDays = DEFAULT_LOOKBACK_DAYS;
+	private static volatile int timeout;
+	private static long refresh = DEFAULT_REFRESH;
+
+	private static final Runnable PROVISION = new Runnable() {
+		public void run() {
+			try {
+				provision();
+			} catch (Exception e) {
+				debugLog.warn("[IntervalProvisioner] unable to provision intervals, will retry: " + e);
+			}
+		}
+	};
+
+	private IntervalProvisioner() {
+	}
+
+	/**
+	 * Start provisioning in the background, the first pass straight away.
+	 * Until it has loaded a snapshot, intervalsFor has no answers.
+	 */
+	static synchronized void start(Properties props, int queryTimeout) {
+		if (scheduler != null) {
+			return;
+		}
+		configure(props, queryTimeout);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IntervalProvisioner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		task = scheduler.scheduleWithFixedDelay(PROVISION, 0, refresh, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Apply the settings in props, rescheduling if IntervalRefresh changed.
+	 */
+	static synchronized void configure(Properties props, int queryTimeout) {
+		horizonDays = Math.max(0, Integer.parseInt(props.getProperty("IntervalHorizonDays", "" + DEFAULT_HORIZON_DAYS).trim()));
+		lookbackDays = Math.max(0, Integer.parseInt(props.getProperty("IntervalLookbackDays", "" + DEFAULT_LOOKBACK_DAYS).trim()));
+		timeout = queryTimeout;
+		long r = Math.max(1, Long.parseLong(props.getProperty("IntervalRefresh", "" + DEFAULT_REFRESH).trim()));
+		if (r != refresh) {
+			refresh = r;
+			if (task != null) {
+				task.cancel(false);
+				task = scheduler.scheduleWithFixedDelay(PROVISION, refresh, refresh, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Stop provisioning. The last snapshot stays in use.
+	 */
+	static synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+			task = null;
+		}
+	}
+
+	/**
+	 * The interval ids for an event at time t, or null if t is not in the
+	 * current snapshot or no snapshot has been loaded yet.
+	 */
+	static List<Integer> intervalsFor(long t) {
+		IntervalSnapshot s = snapshot;
+		if (s == null) {
+			return null;
+		}
+		List<Integer> ids = s.intervalsFor(t);
+		// missing after all, let the caller repair it
+		return (ids == null || ids.isEmpty()) ? null : ids;
+	}
+
+	/**
+	 * The interval of the given type for time t, or null if it is not in
+	 * the current snapshot.
+	 */
+	static IntervalSnapshot.Interval intervalAt(String type, long t) {
+		IntervalSnapshot s = snapshot;
+		return (s == null) ? null : s.find(type, t);
+	}
+
+	/**
+	 * The interval with the given id, or null if it is not in the current
+	 * snapshot.
+	 */
+	static IntervalSnapshot.Interval interval(int id) {
+		IntervalSnapshot s = snapshot;
+		return (s == null) ? null : s.get(id);
+	}
+
+	/**
+	 * Wait up to timeoutMs for the first snapshot. Returns false if there
+	 * is still none.
+	 */
+	static boolean awaitSnapshot(long timeoutMs) {
+		try {
+			loaded.await(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return snapshot != null;
+	}
+
+	static void provision() throws SQLException {
+		int lookbackDays = IntervalProvisioner.lookbackDays;
+		int horizonDays = IntervalProvisioner.horizonDays;
+		int timeout = IntervalProvisioner.timeout;
+		Calendar day = Calendar.getInstance();
+		day.set(Calendar.HOUR_OF_DAY, 0);
+		day.set(Calendar.MINUTE, 0);
+		day.set(Calendar.SECOND, 0);
+		day.set(Calendar.MILLISECOND, 0);
+		day.add(Calendar.DAY_OF_MONTH, -lookbackDays);
+		long from = day.getTimeInMillis();
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+		Connection conn = EventLogger.openConnection();
+		try {
+			PreparedStatement check = conn.prepareStatement(INTERVALS_CHECK);
+			check.setQueryTimeout(timeout);
+			try {
+				for (int i = 0; i <= lookbackDays + horizonDays; i++) {
+					check.setString(1, sdf.format(day.getTime()));
+					ResultSet rs = check.executeQuery();
+					if (rs.next()) {
+						String msg = rs.getString(1);
+						if (msg != null && msg.trim().length() > 0) {
+							debugLog.debug("[IntervalProvisioner] " + msg);
+						}
+					}
+					rs.close();
+					day.add(Calendar.DAY_OF_MONTH, 1);
+				}
+			} finally {
+				check.close();
+			}
+			conn.commit();
+
+			// to the last ms of the horizon
+			long to = day.getTimeInMillis() - 1;
+			IntervalSnapshot s = IntervalSnapshot.load(conn, from, to, timeout);
+			conn.commit();
+			for (long t = from; t < to; t += DAY) {
+				if (s.intervalsFor(t).isEmpty()) {
+					debugLog.warn("[IntervalProvisioner] no intervals for " + sdf.format(t)
+							+ " after p_check_missing_intervals");
+				}
+			}
+			snapshot = s;
+			loaded.countDown();
+		} finally {
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package au.gov.nla.kinetica.events;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory copy of the interval rows covering a window of time, so the
+ * accumulate path can find the intervals for an event without a query.
+ *
+ * For a time inside the window it gives the same answer as
+ * EventLogger.INTERVAL_SELECT: for each interval type, the intervals with
+ * the latest istart among those that have started and not ended. Outside
+ * the window it has no answer and the caller queries the db as before.
+ */
+class IntervalSnapshot {
+	private static final String INTERVALS_LOAD = "select id, type, istart, iend from interval "
+			+ "where istart <= ? and (iend is null or iend > ?)";
+
+	private final long from;
+	private final long to;
+	// per type, ordered by istart
+	private final Map<String, List<Interval>> types;
+
+	static class Interval implements Comparable<Interval> {
+		final int id;
+		final long start;
+		final long end;
+
+		Interval(int id, long start, long end) {
+			this.id = id;
+			this.start = start;
+			this.end = end;
+		}
+
+		boolean covers(long t) {
+			return start <= t && t < end;
+		}
+
+		public int compareTo(Interval o) {
+			return (start < o.start) ? -1 : ((start == o.start) ? 0 : 1);
+		}
+	}
+
+	private IntervalSnapshot(long from, long to, Map<String, List<Interval>> types) {
+		this.from = from;
+		this.to = to;
+		this.types = types;
+	}
+
+	/**
+	 * Read the intervals that cover any time from from to to (ms).
+	 */
+	static IntervalSnapshot load(Connection conn, long from, long to, int timeout) throws SQLException {
+		Map<String, List<Interval>> byType = new HashMap<String, List<Interval>>();
+		PreparedStatement ps = conn.prepareStatement(INTERVALS_LOAD);
+		try {
+			ps.setQueryTimeout(timeout);
+			ps.setTimestamp(1, new Timestamp(to));
+			ps.setTimestamp(2, new Timestamp(from));
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				Timestamp iend = rs.getTimestamp(4);
+				Interval i = new Interval(rs.getInt(1), rs.getTimestamp(3).getTime(),
+						(iend == null) ? Long.MAX_VALUE : iend.getTime());
+				List<Interval> list = byType.get(rs.getString(2));
+				if (list == null) {
+					list = new ArrayList<Interval>();
+					byType.put(rs.getString(2), list);
+				}
+				list.add(i);
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+
+		for (List<Interval> list : byType.values()) {
+			Collections.sort(list);
+		}
+		return new IntervalSnapshot(from, to, byType);
+	}
+
+	boolean covers(long t) {
+		return from <= t && t <= to;
+	}
+
+	/**
+	 * The interval ids for time t, or null if t is outside the window.
+	 */
+	List<Integer> intervalsFor(long t) {
+		if (!covers(t)) {
+			return null;
+		}
+		List<Integer> ids = new ArrayList<Integer>(types.size());
+		for (List<Interval> list : types.values()) {
+			// the latest covering interval, then any others starting with it
+			int i = lastStartingBy(list, t);
+			while (i >= 0 && !list.get(i).covers(t)) {
+				i--;
+			}
+			if (i < 0) {
+				continue;
+			}
+			long start = list.get(i).start;
+			for (int j = i; j >= 0 && list.get(j).start == start; j--) {
+				ids.add(list.get(j).id);
+			}
+			for (int j = i + 1; j < list.size() && list.get(j).start == start; j++) {
+				ids.add(list.get(j).id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * The interval of the given type for time t, the latest starting if
+	 * more than one covers it, or null if there is none or t is outside the
+	 * window.
+	 */
+	Interval find(String type, long t) {
+		List<Interval> list = types.get(type);
+		if (list == null || !covers(t)) {
+			return null;
+		}
+		for (int i = lastStartingBy(list, t); i >= 0; i--) {
+			if (list.get(i).covers(t)) {
+				return list.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The interval with the given id, or null if it is not in the window.
+	 */
+	Interval get(int id) {
+		for (List<Interval> list : types.values()) {
+			for (Interval i : list) {
+				if (i.id == id) {
+					return i;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static int lastStartingBy(List<Interval> list, long t) {
+		int lo = 0;
+		int hi = list.size() - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (list.get(mid).start <= t) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,427 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * PayloadCodec deflates large event input and output values while they sit
+ * in the queue, the producer cache and the spool, and inflates them again
+ * when the event reaches the db.
+ *
+ * Values shorter than PayloadCompressThreshold chars are left alone. The
+ * rest are deflated against a preset dictionary built from the substrings
+ * that come up most often in recent payloads (opensearch query strings
+ * repeat a lot), retrained every PayloadDictionaryRetrain compressions.
+ * Compression takes no lock: each thread has its own Deflater and reads
+ * the current dictionary once, and retraining is left to the
+ * EventSenderThread consumer, off the request path.
+ * Each compressed value is a zlib stream, whose header names the
+ * dictionary it needs by Adler-32, so values compressed against an older
+ * dictionary still inflate. Dictionaries are saved in the spool directory
+ * so that spooled events can be read back after a restart, and only the
+ * oldest beyond the newest MAX_DICTIONARIES are deleted, by prune, once the
+ * spool has nothing left to replay. A value that still cannot be inflated
+ * fails its event, which is then rejected rather than logged without it.
+ */
+final class PayloadCodec {
+	static final int DEFAULT_THRESHOLD = 512;
+	static final int DEFAULT_RETRAIN = 50000;
+
+	private static final String DICTIONARY_PREFIX = "payload-";
+	private static final String DICTIONARY_SUFFIX = ".dict";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// deflate can only reach back 32K, so a longer dictionary is wasted
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final int MAX_DICTIONARIES = 64;
+	private static final int SAMPLES = 256;
+	private static final int SAMPLE_EVERY = 16;
+	private static final int MIN_TOKEN = 4;
+
+	private static Logger debugLog = Logger.getLogger(PayloadCodec.class);
+
+	private static volatile boolean enabled = false;
+	private static volatile int threshold = DEFAULT_THRESHOLD;
+	private static volatile int retrain = DEFAULT_RETRAIN;
+
+	private static final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+	// ids of the dictionaries held in memory, oldest first
+	private static final ArrayDeque<Integer> loaded = new ArrayDeque<Integer>();
+	private static volatile byte[] dictionary;
+	private static File dir;
+
+	private static final AtomicReferenceArray<String> samples = new AtomicReferenceArray<String>(SAMPLES);
+	private static final AtomicLong sampleCount = new AtomicLong();
+	private static final AtomicLong compressions = new AtomicLong();
+	private static volatile boolean trainDue;
+	private static volatile boolean pruneDue;
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[16 * 1024];
+		}
+	};
+
+	private PayloadCodec() {
+	}
+
+	static void configure(Properties props) {
+		if (props.getProperty("PayloadCompression") != null)
+			enabled = props.getProperty("PayloadCompression").trim().equalsIgnoreCase("true");
+		if (props.getProperty("PayloadCompressThreshold") != null)
+			threshold = Math.max(1, Integer.parseInt(props.getProperty("PayloadCompressThreshold").trim()));
+		if (props.getProperty("PayloadDictionaryRetrain") != null)
+			retrain = Math.max(SAMPLES, Integer.parseInt(props.getProperty("PayloadDictionaryRetrain").trim()));
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Load the dictionaries saved in dir, using the newest for compression,
+	 * and save new dictionaries there from now on.
+	 */
+	static synchronized void setDictionaryDir(File d) {
+		dir = d;
+		File[] files = listDictionaries();
+		if (files == null) {
+			return;
+		}
+		pruneDue = files.length > MAX_DICTIONARIES;
+		for (File f : files) {
+			try {
+				byte[] dict = readFile(f);
+				remember(adler(dict), dict);
+				dictionary = dict;
+			} catch (IOException e) {
+				debugLog.warn("unable to load payload dictionary " + f + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Deflate a payload value. Returns null if compression is off, the value
+	 * is under the threshold or deflating would not save at least a quarter.
+	 */
+	static byte[] compress(String s) {
+		if (!enabled || s == null || s.length() < threshold) {
+			return null;
+		}
+
+		long n = compressions.getAndIncrement();
+		if (n % SAMPLE_EVERY == 0) {
+			samples.set((int) (sampleCount.getAndIncrement() % SAMPLES), s);
+		}
+		if ((n + 1) % retrain == 0) {
+			trainDue = true;
+		}
+
+		byte[] raw = s.getBytes(UTF8);
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		byte[] dict = dictionary;
+		if (dict != null) {
+			deflater.setDictionary(dict);
+		}
+		deflater.setInput(raw);
+		deflater.finish();
+
+		byte[] buf = buffers.get();
+		int limit = raw.length - raw.length / 4;
+		int len = 0;
+		while (!deflater.finished()) {
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+				buffers.set(buf);
+			}
+			len += deflater.deflate(buf, len, buf.length - len);
+			if (len >= limit) {
+				return null;
+			}
+		}
+		return Arrays.copyOf(buf, len);
+	}
+
+	/**
+	 * Inflate a value produced by compress. Throws IllegalStateException if
+	 * its dictionary has been lost or the value is damaged.
+	 */
+	static String inflate(byte[] b) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(b);
+
+		byte[] buf = buffers.get();
+		int len = 0;
+		try {
+			while (!inflater.finished()) {
+				if (len == buf.length) {
+					buf = Arrays.copyOf(buf, buf.length * 2);
+					buffers.set(buf);
+				}
+				int n = inflater.inflate(buf, len, buf.length - len);
+				len += n;
+				if (n == 0 && inflater.needsDictionary()) {
+					byte[] dict = findDictionary(inflater.getAdler());
+					if (dict == null) {
+						throw new IllegalStateException("payload dictionary "
+								+ Integer.toHexString(inflater.getAdler()) + " not found");
+					}
+					inflater.setDictionary(dict);
+				} else if (n == 0 && inflater.needsInput()) {
+					throw new DataFormatException("truncated payload");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("unable to inflate payload: " + e, e);
+		}
+		return new String(buf, 0, len, UTF8);
+	}
+
+	private static byte[] findDictionary(int id) {
+		byte[] dict = dictionaries.get(id);
+		return (dict != null) ? dict : loadDictionary(id);
+	}
+
+	private static synchronized byte[] loadDictionary(int id) {
+		byte[] dict = dictionaries.get(id);
+		if (dict == null && dir != null) {
+			File f = new File(dir, DICTIONARY_PREFIX + Integer.toHexString(id) + DICTIONARY_SUFFIX);
+			try {
+				if (f.exists()) {
+					dict = readFile(f);
+					remember(id, dict);
+				}
+			} catch (IOException e) {
+				debugLog.warn("unable to load payload dictionary " + f + ": " + e);
+			}
+		}
+		return dict;
+	}
+
+	/**
+	 * Train a new dictionary if enough compressions have happened since the
+	 * last one. Called by the consumer, so senders never wait on training.
+	 */
+	static synchronized void trainIfDue() {
+		if (!trainDue) {
+			return;
+		}
+		trainDue = false;
+		if (sampleCount.get() >= SAMPLES / 4) {
+			train();
+		}
+	}
+
+	/**
+	 * Build a new dictionary from the sampled payloads. Substrings between
+	 * the usual query string separators are scored by how many bytes they
+	 * would save, and the best are packed in with the most valuable last,
+	 * where deflate reaches them with the shortest distances.
+	 */
+	private static void train() {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		int n = (int) Math.min(sampleCount.get(), SAMPLES);
+		for (int i = 0; i < n; i++) {
+			String s = samples.get(i);
+			if (s == null) {
+				// its slot is taken but not yet filled
+				continue;
+			}
+			int start = 0;
+			for (int j = 0; j <= s.length(); j++) {
+				if (j == s.length() || isSeparator(s.charAt(j))) {
+					// keep the separator with the token, it is as predictable
+					int end = Math.min(j + 1, s.length());
+					if (end - start >= MIN_TOKEN) {
+						String token = s.substring(start, end);
+						Integer c = counts.get(token);
+						counts.put(token, (c == null) ? 1 : c + 1);
+					}
+					start = end;
+				}
+			}
+		}
+
+		List<String> tokens = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() > 1) {
+				tokens.add(entry.getKey());
+			}
+		}
+		Collections.sort(tokens, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long sa = (long) counts.get(a) * a.length();
+				long sb = (long) counts.get(b) * b.length();
+				return (sa < sb) ? 1 : (sa > sb) ? -1 : 0;
+			}
+		});
+
+		List<byte[]> chosen = new ArrayList<byte[]>();
+		int size = 0;
+		for (String token : tokens) {
+			byte[] t = token.getBytes(UTF8);
+			if (size + t.length > DICTIONARY_SIZE) {
+				continue;
+			}
+			chosen.add(t);
+			size += t.length;
+		}
+		if (size == 0) {
+			return;
+		}
+
+		byte[] dict = new byte[size];
+		int pos = size;
+		for (byte[] t : chosen) {
+			pos -= t.length;
+			System.arraycopy(t, 0, dict, pos, t.length);
+		}
+
+		int id = adler(dict);
+		remember(id, dict);
+		dictionary = dict;
+		save(id, dict);
+		if (debugLog.isDebugEnabled()) debugLog.debug("trained payload dictionary " + Integer.toHexString(id) + ", " + size + " bytes");
+	}
+
+	/**
+	 * Hold a dictionary in memory, forgetting the oldest once there are more
+	 * than MAX_DICTIONARIES. A forgotten one is read back from its file if
+	 * an old spooled value needs it.
+	 */
+	private static void remember(int id, byte[] dict) {
+		if (dictionaries.put(id, dict) == null) {
+			loaded.addLast(id);
+		}
+		while (loaded.size() > MAX_DICTIONARIES) {
+			dictionaries.remove(loaded.removeFirst());
+		}
+	}
+
+	private static boolean isSeparator(char c) {
+		return c == '&' || c == '?' || c == '=' || c == '/' || c == ' ' || c == ',' || c == '+';
+	}
+
+	private static void save(int id, byte[] dict) {
+		if (dir == null) {
+			return;
+		}
+		File f = new File(dir, DICTIONARY_PREFIX + Integer.toHexString(id) + DICTIONARY_SUFFIX);
+		File tmp = new File(dir, f.getName() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(dict);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(f)) {
+				throw new IOException("unable to rename " + tmp);
+			}
+		} catch (IOException e) {
+			debugLog.warn("unable to save payload dictionary " + f + ": " + e);
+			return;
+		}
+		pruneDue = true;
+	}
+
+	/**
+	 * Delete the saved dictionaries older than the newest MAX_DICTIONARIES.
+	 * Called by the consumer only while the spool has nothing to replay: the
+	 * old ones can only be needed by spooled events, the queue and producer
+	 * cache hold far fewer than a dictionary's worth of compressions.
+	 */
+	static synchronized void prune() {
+		if (!pruneDue) {
+			return;
+		}
+		pruneDue = false;
+		File[] files = listDictionaries();
+		for (int i = 0; files != null && i < files.length - MAX_DICTIONARIES; i++) {
+			if (files[i].delete() && debugLog.isDebugEnabled()) {
+				debugLog.debug("deleted payload dictionary " + files[i].getName());
+			}
+		}
+	}
+
+	/**
+	 * The saved dictionaries, oldest first.
+	 */
+	private static File[] listDictionaries() {
+		if (dir == null) {
+			return null;
+		}
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.startsWith(DICTIONARY_PREFIX) && name.endsWith(DICTIONARY_SUFFIX);
+			}
+		});
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long ma = a.lastModified();
+					long mb = b.lastModified();
+					return (ma < mb) ? -1 : (ma > mb) ? 1 : 0;
+				}
+			});
+		}
+		return files;
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		byte[] b = new byte[(int) f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int off = 0;
+			while (off < b.length) {
+				int n = in.read(b, off, b.length - off);
+				if (n < 0) {
+					throw new IOException("short read from " + f);
+				}
+				off += n;
+			}
+		} finally {
+			in.close();
+		}
+		return b;
+	}
+
+	private static int adler(byte[] b) {
+		Adler32 a = new Adler32();
+		a.update(b, 0, b.length);
+		return (int) a.getValue();
+	}
+}
@@ -0,0 +1,191 @@
+package au.gov.nla.kinetica.events;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * PayloadStore keeps each distinct event input and output value once, in
+ * the payload table, with PayloadDedup=true in RDC.properties. The event
+ * row holds a reference to it instead:
+ *
+ *   #payload:&lt;SHA-256 of the value, base64url&gt;
+ *
+ *   create table payload (hash varchar2(64) primary key,
+ *       content varchar2(4000), last_status_change date)
+ *
+ * Values shorter than PayloadDedupMin chars are stored as they are, as is
+ * null. A value that happens to start with the reference prefix is always
+ * stored in the payload table, so a column value with the prefix is always
+ * a reference. The hashes a writer has stored are kept in an LRU of
+ * PayloadDedupCache entries for PayloadDedupTtl ms, and only a miss costs
+ * a merge, in the same transaction as the event row, so a payload row is
+ * never missing for an event row that references it. The merge adds the
+ * row or sets its last_status_change, so a row in use by any writer has
+ * been touched within PayloadDedupTtl, and EventArchiver only sweeps rows
+ * that no event references and that have not been touched since its
+ * cutoff. Any number of writers may store the same value at once; the one
+ * that loses the race to add a row rolls back to a savepoint and goes on.
+ *
+ * Readers of the event table turn references back into values by joining
+ * the payload table, as EventArchiver does. Only the JDBC event inserts use references;
+ * EventSink=file still writes values in full.
+ */
+final class PayloadStore {
+	static final String PREFIX = "#payload:";
+	static final int DEFAULT_MIN = 128;
+	static final int DEFAULT_CACHE = 50000;
+	static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+	// the prefix and 43 chars of hash
+	private static final int REFERENCE_LENGTH = PREFIX.length() + 43;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String PAYLOAD_MERGE = "merge into payload p using dual on (p.hash = ?) "
+			+ "when matched then update set p.last_status_change = ? "
+			+ "when not matched then insert (hash, content, last_status_change) values (?, ?, ?)";
+
+	private static volatile boolean enabled = false;
+	private static volatile int min = DEFAULT_MIN;
+	private static volatile int cacheSize = DEFAULT_CACHE;
+	private static volatile long ttl = DEFAULT_TTL;
+
+	// for writers, hashes stored and when, trusted for ttl ms
+	private static final LinkedHashMap<String, Long> known = new LinkedHashMap<String, Long>(1024, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("no SHA-256", e);
+			}
+		}
+	};
+
+	private PayloadStore() {
+	}
+
+	static void configure(Properties props) {
+		enabled = "true".equalsIgnoreCase(props.getProperty("PayloadDedup", "false").trim());
+		if (props.getProperty("PayloadDedupMin") != null)
+			min = Math.max(REFERENCE_LENGTH, Integer.parseInt(props.getProperty("PayloadDedupMin").trim()));
+		if (props.getProperty("PayloadDedupCache") != null)
+			cacheSize = Math.max(1, Integer.parseInt(props.getProperty("PayloadDedupCache").trim()));
+		if (props.getProperty("PayloadDedupTtl") != null)
+			ttl = Math.max(0, Long.parseLong(props.getProperty("PayloadDedupTtl").trim()));
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * How long a writer goes on using a hash it stored without touching its
+	 * row again.
+	 */
+	static long getTtl() {
+		return ttl;
+	}
+
+	static boolean isReference(String value) {
+		return value != null && value.startsWith(PREFIX);
+	}
+
+	static String hash(String value) {
+		byte[] digest = digests.get().digest(value.getBytes(UTF8));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+	}
+
+	/**
+	 * The payloads stored by one transaction on conn. Call committed once
+	 * it has committed, and close in any case.
+	 */
+	static Batch batch(Connection conn, int timeout) {
+		return new Batch(conn, timeout);
+	}
+
+	static final class Batch {
+		private final Connection conn;
+		private final int timeout;
+		private PreparedStatement mergePs;
+		// stored in this transaction and when, known to everyone once it
+		// commits
+		private final Map<String, Long> stored = new HashMap<String, Long>();
+
+		private Batch(Connection conn, int timeout) {
+			this.conn = conn;
+			this.timeout = timeout;
+		}
+
+		/**
+		 * The value to put in the event row for value: the value itself, or a
+		 * reference to its payload row, adding the row if it is not there.
+		 */
+		String store(String value) throws SQLException {
+			if (!enabled || value == null || (value.length() < min && !isReference(value))) {
+				return value;
+			}
+			String hash = hash(value);
+			long now = System.currentTimeMillis();
+			Long at;
+			synchronized (known) {
+				at = known.get(hash);
+			}
+			if ((at == null || now - at >= ttl) && !stored.containsKey(hash)) {
+				if (mergePs == null) {
+					mergePs = conn.prepareStatement(PAYLOAD_MERGE);
+					mergePs.setQueryTimeout(timeout);
+				}
+				Timestamp touched = new Timestamp(now);
+				mergePs.setString(1, hash);
+				mergePs.setTimestamp(2, touched);
+				mergePs.setString(3, hash);
+				mergePs.setString(4, value);
+				mergePs.setTimestamp(5, touched);
+				// not every db keeps the transaction going past a failed
+				// statement
+				Savepoint sp = conn.setSavepoint();
+				try {
+					mergePs.executeUpdate();
+				} catch (SQLIntegrityConstraintViolationException e) {
+					// another writer added it first, just now
+					conn.rollback(sp);
+				}
+				stored.put(hash, now);
+			}
+			return PREFIX + hash;
+		}
+
+		void committed() {
+			synchronized (known) {
+				known.putAll(stored);
+			}
+			stored.clear();
+		}
+
+		void close() {
+			if (mergePs != null) {
+				try {
+					mergePs.close();
+				} catch (SQLException e) {
+				}
+				mergePs = null;
+			}
+		}
+	}
+}
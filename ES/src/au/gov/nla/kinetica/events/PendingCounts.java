@@ -0,0 +1,97 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PendingCounts holds the accumNums of discarded events, summed per user,
+ * service and minute, until the EventSenderThread consumer writes them to
+ * the accumulator.
+ *
+ * A discarded event is only metered: it never gets an event row, so there
+ * is no need to queue it. Counting it is a single map update on the
+ * sending thread, and a busy user and service costs one accumulator write
+ * per flush instead of one per event.
+ */
+class PendingCounts {
+	private static final long MINUTE = 60 * 1000;
+
+	private final ConcurrentHashMap<Key, Long> counts = new ConcurrentHashMap<Key, Long>();
+
+	static final class Key {
+		final String user;
+		final String service;
+		final long minute;
+
+		Key(String user, String service, long minute) {
+			this.user = user;
+			this.service = service;
+			this.minute = minute;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return minute == k.minute && user.equals(k.user) && service.equals(k.service);
+		}
+
+		public int hashCode() {
+			return (user.hashCode() * 31 + service.hashCode()) * 31 + (int) (minute ^ (minute >>> 32));
+		}
+	}
+
+	void add(String user, String service, Date time, long accumNum) {
+		long minute = ((time == null) ? System.currentTimeMillis() : time.getTime()) / MINUTE;
+		counts.merge(new Key(user, service, minute), accumNum, Long::sum);
+	}
+
+	/**
+	 * Take up to max of the count pending for the user, service and minute
+	 * of time, leaving the rest, for an event that will carry it.
+	 */
+	long take(String user, String service, Date time, long max) {
+		long minute = ((time == null) ? System.currentTimeMillis() : time.getTime()) / MINUTE;
+		Key key = new Key(user, service, minute);
+		long[] taken = new long[1];
+		counts.computeIfPresent(key, (k, n) -> {
+			taken[0] = (n > 0) ? Math.min(n, max) : 0;
+			return (n - taken[0] == 0) ? null : n - taken[0];
+		});
+		return taken[0];
+	}
+
+	boolean isEmpty() {
+		return counts.isEmpty();
+	}
+
+	/**
+	 * Take every count, leaving none pending, as discard events timed at the
+	 * start of their minute. A count too big for an int is split, and a
+	 * negative count, e.g. of events sent to correct earlier ones, is kept.
+	 */
+	List<EventExt> drain() {
+		List<EventExt> items = new ArrayList<EventExt>();
+		for (Iterator<Key> it = counts.keySet().iterator(); it.hasNext();) {
+			Key key = it.next();
+			// remove is atomic with merge, so a count added meanwhile is
+			// either in n or starts a new entry
+			Long n = counts.remove(key);
+			if (n == null) {
+				continue;
+			}
+			Date time = new Date(key.minute * MINUTE);
+			long sign = (n < 0) ? -1 : 1;
+			for (long left = Math.abs(n); left > 0; left -= Integer.MAX_VALUE) {
+				Event e = new Event(key.user, key.service, time);
+				e.validate();
+				items.add(EventExt.discarded(e, (int) (sign * Math.min(left, Integer.MAX_VALUE))));
+			}
+		}
+		return items;
+	}
+}
@@ -0,0 +1,38 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * The free slots in the EventSenderThread queue. A producer takes a permit
+ * before it queues an event and the consumer gives it back once the event
+ * is taken off, so the queue itself can be unbounded while its capacity is
+ * changed at runtime, including while producers are waiting.
+ */
+class QueueCapacity extends Semaphore {
+	private static final long serialVersionUID = 1L;
+
+	private int capacity;
+
+	QueueCapacity(int capacity) {
+		super(capacity);
+		this.capacity = capacity;
+	}
+
+	synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Grow or shrink the queue. When it shrinks below the number of events
+	 * already queued, producers wait until the consumer has caught up.
+	 */
+	synchronized void setCapacity(int newCapacity) {
+		int delta = newCapacity - capacity;
+		capacity = newCapacity;
+		if (delta > 0) {
+			release(delta);
+		} else if (delta < 0) {
+			reducePermits(-delta);
+		}
+	}
+}
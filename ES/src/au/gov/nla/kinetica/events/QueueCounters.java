@@ -0,0 +1,165 @@
+package au.gov.nla.kinetica.events;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * QueueCounters keeps the EventSenderThread progress counters for one
+ * webapp in a small memory-mapped status page, /var/tmp/qStatus.&lt;app&gt; by
+ * default.
+ *
+ * Counters are updated with release (ordered) writes straight into the
+ * page, so tracking costs a few nanoseconds per event instead of rewriting
+ * a status file, and the page survives a crash for the next run to read.
+ * The page can be read at any time by another process:
+ *
+ *   java au.gov.nla.kinetica.events.QueueCounters /var/tmp/qStatus.kss
+ *
+ * Layout (big-endian longs): magic, version, pid, start time, then the
+ * counter slots below. The app name is stored as a length-prefixed UTF-8
+ * string at APP_NAME_OFFSET.
+ */
+public class QueueCounters {
+	public static final int QCOUNT = 4;
+	public static final int DQCOUNT = 5;
+	public static final int PRODUCED_BYTES = 6;
+	public static final int CONSUMED_BYTES = 7;
+	public static final int SPOOLED = 8;
+	public static final int REPLAYED = 9;
+	public static final int DROPPED = 10;
+	public static final int DUPLICATES = 11;
+	public static final int REJECTED = 12;
+
+	private static final String[] NAMES = { "magic", "version", "pid", "started",
+			"qcount", "dqcount", "producedBytes", "consumedBytes", "spooled",
+			"replayed", "dropped", "duplicates", "rejected" };
+
+	private static final long MAGIC = 0x5153544154555331L; // "QSTATUS1"
+	private static final long VERSION = 1;
+	private static final int PAGE_SIZE = 4096;
+	private static final int APP_NAME_OFFSET = 512;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(
+			long[].class, ByteOrder.BIG_ENDIAN);
+
+	private final File file;
+	private final MappedByteBuffer page;
+
+	private QueueCounters(File file, MappedByteBuffer page) {
+		this.file = file;
+		this.page = page;
+	}
+
+	/**
+	 * Map the status page for an app, creating it if needed. Counters left by
+	 * a previous run are kept so that they can be read before reset().
+	 */
+	static QueueCounters open(File file, String app) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			MappedByteBuffer page = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+			QueueCounters counters = new QueueCounters(file, page);
+
+			if ((long) SLOT.getAcquire(page, 0) != MAGIC) {
+				for (int slot = 0; slot <= REJECTED; slot++) {
+					SLOT.setRelease(page, slot * 8, 0L);
+				}
+			}
+
+			byte[] name = app.getBytes(UTF8);
+			page.putShort(APP_NAME_OFFSET, (short) name.length);
+			for (int i = 0; i < name.length; i++) {
+				page.put(APP_NAME_OFFSET + 2 + i, name[i]);
+			}
+			SLOT.setRelease(page, 8, VERSION);
+			SLOT.setRelease(page, 2 * 8, ProcessHandle.current().pid());
+			SLOT.setRelease(page, 3 * 8, System.currentTimeMillis());
+			SLOT.setRelease(page, 0, MAGIC);
+
+			return counters;
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	long get(int slot) {
+		return (long) SLOT.getAcquire(page, slot * 8);
+	}
+
+	/**
+	 * Publish a new value for a counter that only one thread writes.
+	 */
+	void set(int slot, long value) {
+		SLOT.setRelease(page, slot * 8, value);
+	}
+
+	/**
+	 * Add to a counter that more than one thread may update.
+	 */
+	void add(int slot, long delta) {
+		SLOT.getAndAddRelease(page, slot * 8, delta);
+	}
+
+	/**
+	 * Zero the counters for a new run.
+	 */
+	void reset() {
+		for (int slot = QCOUNT; slot <= REJECTED; slot++) {
+			set(slot, 0);
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	String getApp() {
+		return appName(page);
+	}
+
+	private static String appName(ByteBuffer page) {
+		int len = page.getShort(APP_NAME_OFFSET);
+		byte[] name = new byte[Math.max(0, len)];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = page.get(APP_NAME_OFFSET + 2 + i);
+		}
+		return new String(name, UTF8);
+	}
+
+	/**
+	 * Print the counters in one or more status pages.
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String arg : args) {
+			RandomAccessFile raf = new RandomAccessFile(arg, "r");
+			try {
+				ByteBuffer page = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, PAGE_SIZE);
+				if ((long) SLOT.getAcquire(page, 0) != MAGIC) {
+					System.out.println(arg + ": not a queue status page");
+					continue;
+				}
+				StringBuilder out = new StringBuilder(arg);
+				out.append(" app=").append(appName(page));
+				for (int slot = 2; slot <= REJECTED; slot++) {
+					out.append(' ').append(NAMES[slot]).append('=')
+							.append((long) SLOT.getAcquire(page, slot * 8));
+				}
+				long depth = (long) SLOT.getAcquire(page, QCOUNT * 8)
+						- (long) SLOT.getAcquire(page, DQCOUNT * 8);
+				System.out.println(out.append(" depth=").append(depth));
+			} finally {
+				raf.close();
+			}
+		}
+	}
+}
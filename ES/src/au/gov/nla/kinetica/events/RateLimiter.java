@@ -0,0 +1,42 @@
+package au.gov.nla.kinetica.events;
+
+/**
+ * A simple token bucket. Tokens refill at the given rate per second up to a
+ * burst of one second's worth. A rate of zero or less means unlimited.
+ */
+class RateLimiter {
+	private volatile double ratePerSec;
+	private double tokens;
+	private long lastRefill;
+
+	RateLimiter(double ratePerSec) {
+		this.ratePerSec = ratePerSec;
+		this.lastRefill = System.nanoTime();
+	}
+
+	void setRate(double ratePerSec) {
+		this.ratePerSec = ratePerSec;
+	}
+
+	double getRate() {
+		return ratePerSec;
+	}
+
+	/**
+	 * Take up to max tokens without waiting and return how many were taken.
+	 */
+	synchronized int tryAcquire(int max) {
+		double rate = ratePerSec;
+		if (rate <= 0) {
+			return max;
+		}
+
+		long now = System.nanoTime();
+		tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1.0e9);
+		lastRefill = now;
+
+		int granted = (int) Math.min(max, Math.floor(tokens));
+		tokens -= granted;
+		return granted;
+	}
+}
@@ -0,0 +1,226 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The ServicePolicy for each service, from patterns in RDC.properties.
+ *
+ * Service names are colon separated hierarchies, and a pattern matches them
+ * segment by segment: * matches any one segment and ** (last only) matches
+ * the rest of the name, including nothing. For example
+ *
+ *   policy\:la\:*\:dbld=sample=10,priority=low
+ *   policy\:la\:opensearch\:**=discard
+ *
+ * The older per-service entries are patterns too, each setting one thing:
+ * sampleRate:&lt;pattern&gt;=N, discardEvent:&lt;pattern&gt;=true and
+ * accumulateNumber:&lt;pattern&gt;=N (the multiplier).
+ *
+ * When several patterns match a service, each setting comes from the most
+ * specific pattern that has it. Patterns are compared a segment at a time
+ * from the left, a literal segment beating * and * beating **. Entries for
+ * the same pattern are combined, e.g. a policy: and a sampleRate: entry,
+ * but if two of them give one setting different values the later entry in
+ * sorted key order is ignored with a warning.
+ *
+ * The patterns are compiled into a trie, and a service's policy is worked
+ * out the first time it is seen and then cached, so finding it for each
+ * event after that is a single map lookup. The trie, the rates set with
+ * setSampleRate and the cache of policies worked out from them are
+ * replaced together, so a policy worked out from an old trie or rate can
+ * only be cached with them, never with the new ones.
+ */
+class ServicePolicies {
+	static final String POLICY_PREFIX = "policy:";
+	static final String RATE_PREFIX = "sampleRate:";
+	static final String ANY = "*";
+	static final String REST = "**";
+	// services are a small fixed set, this only guards against junk names
+	private static final int MAX_CACHED = 8192;
+
+	private static Logger debugLog = Logger.getLogger(ServicePolicies.class);
+
+	private volatile Compiled compiled;
+
+	/**
+	 * A trie and rates, and the policies worked out from them so far.
+	 */
+	private static class Compiled {
+		final Node root;
+		// rates set with setSampleRate, kept across reloads
+		final Map<String, Integer> rates;
+		final Map<String, ServicePolicy> cache = new ConcurrentHashMap<String, ServicePolicy>();
+
+		Compiled(Node root, Map<String, Integer> rates) {
+			this.root = root;
+			this.rates = rates;
+		}
+	}
+
+	private static class Node {
+		final Map<String, Node> children = new HashMap<String, Node>();
+		Node any;
+		Node rest;
+		// the policy for the pattern ending here, and its segment ranks
+		ServicePolicy policy;
+		int[] rank;
+	}
+
+	ServicePolicies(Properties props) {
+		reload(props);
+	}
+
+	/**
+	 * Compile the patterns in props, replacing the current ones. Rates set
+	 * with setSampleRate still override them.
+	 */
+	synchronized void reload(Properties props) {
+		Node r = new Node();
+		for (String name : new TreeSet<String>(props.stringPropertyNames())) {
+			String value = props.getProperty(name).trim();
+			try {
+				if (name.startsWith(POLICY_PREFIX)) {
+					add(r, name.substring(POLICY_PREFIX.length()), ServicePolicy.parse(value));
+				} else if (name.startsWith(RATE_PREFIX)) {
+					add(r, name.substring(RATE_PREFIX.length()), ServicePolicy.NONE.with("sample", value));
+				} else if (name.startsWith(EventLogger.DISCARD_EVENT_PROPERTY + ":")) {
+					add(r, name.substring(EventLogger.DISCARD_EVENT_PROPERTY.length() + 1),
+							ServicePolicy.NONE.with("discard", value));
+				} else if (name.startsWith(EventLogger.ACCUMULATE_NUMBER_PROPERTY + ":")) {
+					add(r, name.substring(EventLogger.ACCUMULATE_NUMBER_PROPERTY.length() + 1),
+							ServicePolicy.NONE.with("multiplier", value));
+				}
+			} catch (IllegalArgumentException e) {
+				debugLog.warn("ignoring " + name + "=" + value + ": " + e.getMessage());
+			}
+		}
+		Compiled c = compiled;
+		compiled = new Compiled(r, (c == null) ? new HashMap<String, Integer>() : c.rates);
+	}
+
+	private static void add(Node r, String pattern, ServicePolicy policy) {
+		String[] segments = pattern.split(":", -1);
+		int[] rank = new int[segments.length];
+		Node node = r;
+		for (int i = 0; i < segments.length; i++) {
+			String s = segments[i];
+			if (s.equals(REST)) {
+				if (i != segments.length - 1) {
+					throw new IllegalArgumentException(REST + " can only be the last segment");
+				}
+				if (node.rest == null) {
+					node.rest = new Node();
+				}
+				node = node.rest;
+				rank[i] = 0;
+			} else if (s.equals(ANY)) {
+				if (node.any == null) {
+					node.any = new Node();
+				}
+				node = node.any;
+				rank[i] = 1;
+			} else {
+				Node child = node.children.get(s);
+				if (child == null) {
+					child = new Node();
+					node.children.put(s, child);
+				}
+				node = child;
+				rank[i] = 2;
+			}
+		}
+		if (node.policy != null) {
+			String conflict = node.policy.conflict(policy);
+			if (conflict != null) {
+				throw new IllegalArgumentException(conflict + " is already set differently for " + pattern);
+			}
+		}
+		node.policy = (node.policy == null) ? policy : node.policy.overlay(policy);
+		node.rank = rank;
+	}
+
+	/**
+	 * The policy for a service.
+	 */
+	ServicePolicy resolve(String service) {
+		if (service == null) {
+			return ServicePolicy.DEFAULT;
+		}
+		Compiled c = compiled;
+		ServicePolicy policy = c.cache.get(service);
+		if (policy == null) {
+			policy = compute(c, service);
+			if (c.cache.size() >= MAX_CACHED) {
+				c.cache.clear();
+			}
+			c.cache.put(service, policy);
+		}
+		return policy;
+	}
+
+	private static ServicePolicy compute(Compiled c, String service) {
+		List<Node> matches = new ArrayList<Node>();
+		match(c.root, service.split(":", -1), 0, matches);
+		// least specific first, so the more specific are laid over them
+		Collections.sort(matches, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				for (int i = 0; i < a.rank.length && i < b.rank.length; i++) {
+					if (a.rank[i] != b.rank[i]) {
+						return a.rank[i] - b.rank[i];
+					}
+				}
+				return a.rank.length - b.rank.length;
+			}
+		});
+
+		ServicePolicy policy = ServicePolicy.DEFAULT;
+		for (Node node : matches) {
+			policy = policy.overlay(node.policy);
+		}
+		Integer rate = c.rates.get(service);
+		if (rate != null) {
+			policy = policy.overlay(ServicePolicy.NONE.with("sample", rate.toString()));
+		}
+		return policy;
+	}
+
+	private static void match(Node node, String[] segments, int i, List<Node> matches) {
+		if (node.rest != null && node.rest.policy != null) {
+			matches.add(node.rest);
+		}
+		if (i == segments.length) {
+			if (node.policy != null) {
+				matches.add(node);
+			}
+			return;
+		}
+		Node child = node.children.get(segments[i]);
+		if (child != null) {
+			match(child, segments, i + 1, matches);
+		}
+		if (node.any != null) {
+			match(node.any, segments, i + 1, matches);
+		}
+	}
+
+	/**
+	 * Override the sampling rate for one service, whatever RDC.properties
+	 * says, until it is set again or the webapp restarts.
+	 */
+	synchronized void setSampleRate(String service, int rate) {
+		Compiled c = compiled;
+		Map<String, Integer> rates = new HashMap<String, Integer>(c.rates);
+		rates.put(service, Math.max(1, rate));
+		compiled = new Compiled(c.root, rates);
+	}
+}
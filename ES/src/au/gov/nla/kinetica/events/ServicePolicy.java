@@ -0,0 +1,142 @@
+package au.gov.nla.kinetica.events;
+
+/**
+ * How EventSender handles the events for a service: whether they are
+ * discarded (counted towards totes only), the rate detail events are
+ * sampled at, the priority they are queued with and the multiplier applied
+ * to their accumNum.
+ *
+ * A policy is written as a comma separated list of settings, any of which
+ * may be left out:
+ *
+ *   discard,sample=10,priority=low,multiplier=2
+ *
+ * where discard is short for discard=true. A setting left out is taken from
+ * a less specific matching pattern, or the default if none sets it; see
+ * ServicePolicies.
+ */
+final class ServicePolicy {
+
+	/**
+	 * What happens to an event when the queue is full: a HIGH event always
+	 * waits for room, a NORMAL one follows QueueOverflow and a LOW one never
+	 * holds up the sender, going to the spool if there is one and being
+	 * dropped if not.
+	 */
+	enum Priority { LOW, NORMAL, HIGH }
+
+	static final ServicePolicy DEFAULT = new ServicePolicy(Boolean.FALSE, 1, Priority.NORMAL, 1);
+	static final ServicePolicy NONE = new ServicePolicy(null, null, null, null);
+
+	// null where the policy leaves the setting to a less specific one
+	private final Boolean discard;
+	private final Integer sampleRate;
+	private final Priority priority;
+	private final Integer multiplier;
+
+	private ServicePolicy(Boolean discard, Integer sampleRate, Priority priority, Integer multiplier) {
+		this.discard = discard;
+		this.sampleRate = sampleRate;
+		this.priority = priority;
+		this.multiplier = multiplier;
+	}
+
+	/**
+	 * Parse a policy such as "discard,sample=10,priority=low".
+	 *
+	 * @throws IllegalArgumentException if a setting is not recognised
+	 */
+	static ServicePolicy parse(String spec) {
+		ServicePolicy policy = NONE;
+		for (String setting : spec.split(",")) {
+			setting = setting.trim();
+			if (setting.length() == 0) {
+				continue;
+			}
+			int eq = setting.indexOf('=');
+			String name = (eq < 0) ? setting : setting.substring(0, eq).trim();
+			String value = (eq < 0) ? "true" : setting.substring(eq + 1).trim();
+			policy = policy.with(name, value);
+		}
+		return policy;
+	}
+
+	/**
+	 * This policy with one setting changed.
+	 *
+	 * @throws IllegalArgumentException if the setting or its value is bad
+	 */
+	ServicePolicy with(String name, String value) {
+		try {
+			if (name.equalsIgnoreCase("discard")) {
+				return new ServicePolicy(Boolean.valueOf(value.equalsIgnoreCase("true")),
+						sampleRate, priority, multiplier);
+			}
+			if (name.equalsIgnoreCase("sample")) {
+				return new ServicePolicy(discard, Math.max(1, Integer.parseInt(value)), priority, multiplier);
+			}
+			if (name.equalsIgnoreCase("priority")) {
+				return new ServicePolicy(discard, sampleRate, Priority.valueOf(value.toUpperCase()), multiplier);
+			}
+			if (name.equalsIgnoreCase("multiplier")) {
+				return new ServicePolicy(discard, sampleRate, priority, Math.max(1, Integer.parseInt(value)));
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad " + name + " " + value);
+		}
+		throw new IllegalArgumentException("unknown policy setting " + name);
+	}
+
+	/**
+	 * This policy with the settings that more leaves out filled in from it,
+	 * and the ones it sets taken from more.
+	 */
+	ServicePolicy overlay(ServicePolicy more) {
+		return new ServicePolicy(
+				(more.discard != null) ? more.discard : discard,
+				(more.sampleRate != null) ? more.sampleRate : sampleRate,
+				(more.priority != null) ? more.priority : priority,
+				(more.multiplier != null) ? more.multiplier : multiplier);
+	}
+
+	/**
+	 * The first setting this policy and other both set, to different
+	 * values, or null if they agree.
+	 */
+	String conflict(ServicePolicy other) {
+		if (discard != null && other.discard != null && !discard.equals(other.discard)) {
+			return "discard";
+		}
+		if (sampleRate != null && other.sampleRate != null && !sampleRate.equals(other.sampleRate)) {
+			return "sample";
+		}
+		if (priority != null && other.priority != null && priority != other.priority) {
+			return "priority";
+		}
+		if (multiplier != null && other.multiplier != null && !multiplier.equals(other.multiplier)) {
+			return "multiplier";
+		}
+		return null;
+	}
+
+	boolean isDiscard() {
+		return discard.booleanValue();
+	}
+
+	int getSampleRate() {
+		return sampleRate.intValue();
+	}
+
+	Priority getPriority() {
+		return priority;
+	}
+
+	int getMultiplier() {
+		return multiplier.intValue();
+	}
+
+	public String toString() {
+		return "discard=" + discard + ",sample=" + sampleRate + ",priority=" + priority
+				+ ",multiplier=" + multiplier;
+	}
+}
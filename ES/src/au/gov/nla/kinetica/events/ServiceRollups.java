@@ -0,0 +1,72 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rollup totes a service also counts towards, with ServiceRollups=true
+ * in RDC.properties.
+ *
+ * Service names are colon separated hierarchies, and each ancestor gets a
+ * tote of its own under the ancestor's name followed by :*, so an event for
+ * la:opensearch:dbld is also added to la:* and la:opensearch:*, for the same
+ * user and interval. A report on all of la:* for a user is then a single
+ * accumulator row rather than a prefix scan over every leaf service. The
+ * extra totes are summed into the same batch as the leaf, so they cost a
+ * few map updates per event and one more accumulator write per ancestor
+ * per batch.
+ *
+ * Anything that sums accumulator over all services must leave out the
+ * services ending in :* once this is on. The setting is read at start up
+ * only: pending totes, user sketches and the rollup rows of the current
+ * intervals are all counted with the rollups in force when the event was
+ * queued.
+ */
+final class ServiceRollups {
+	static final String PROPERTY = "ServiceRollups";
+	static final String SUFFIX = ":*";
+	private static final String SEPARATOR = ":";
+	// services are a small fixed set, this only guards against junk names
+	private static final int MAX_CACHED = 8192;
+
+	private static volatile boolean enabled;
+	private static final Map<String, List<String>> cache = new ConcurrentHashMap<String, List<String>>();
+
+	private ServiceRollups() {
+	}
+
+	static void configure(Properties props) {
+		enabled = "true".equalsIgnoreCase(props.getProperty(PROPERTY, "false").trim());
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * The rollup services for service, outermost first, or none if rollups
+	 * are off or the service has no ancestors.
+	 */
+	static List<String> of(String service) {
+		if (!enabled) {
+			return Collections.emptyList();
+		}
+		List<String> rollups = cache.get(service);
+		if (rollups == null) {
+			rollups = new ArrayList<String>(2);
+			for (int i = service.indexOf(SEPARATOR); i > 0; i = service.indexOf(SEPARATOR, i + 1)) {
+				rollups.add(service.substring(0, i) + SUFFIX);
+			}
+			rollups = Collections.unmodifiableList(rollups);
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+			cache.put(service, rollups);
+		}
+		return rollups;
+	}
+}
@@ -0,0 +1,40 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-service sampling of detail events.
+ * 
+ * With a rate of N for a service, each event for that service is kept with
+ * probability 1/N, so only about 1 in N detail rows reach the event table.
+ * The accumNum of a skipped event is still counted, like a discarded
+ * event's, and the next kept event for the same user, service and minute
+ * carries it, so accumulated totals stay exact. Services without a rate,
+ * or with a rate of 1, are not sampled.
+ * 
+ * Rates are part of each service's ServicePolicy, e.g.
+ * 
+ *   sampleRate\:la\:opensearch\:dbld=20
+ * 
+ * and can be changed at any time with EventSender.setSamplingRate, or by
+ * editing the file.
+ */
+class ServiceSampler {
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * Decide whether to keep an event of a service sampled at rate.
+	 */
+	boolean keep(int rate) {
+		if (rate <= 1 || ThreadLocalRandom.current().nextInt(rate) == 0) {
+			return true;
+		}
+		skipped.incrementAndGet();
+		return false;
+	}
+
+	long getSkippedCount() {
+		return skipped.get();
+	}
+}
@@ -0,0 +1,262 @@
+package au.gov.nla.kinetica.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import au.gov.nla.kinetica.events.jfr.OverflowEvent;
+
+/**
+ * Feeds every event the EventSenderThread handles to the configured
+ * EventSinks as well, each from its own buffer on its own thread.
+ *
+ * The db writer is the EventSenderThread consumer, with its own queue
+ * (MaxQSize), batch (ConsumerBatchSize) and overflow (QueueOverflow). Every
+ * other sink is a channel here with the same three settings of its own:
+ *
+ *   Sinks=archive,stats
+ *   Sink.archive.class=file
+ *   Sink.archive.file=/var/tmp/qevents.log
+ *   Sink.archive.buffer=10000
+ *   Sink.archive.batch=500
+ *   Sink.archive.overflow=drop
+ *
+ * class is an EventSink with a no-argument constructor, or file for
+ * AppendFileSink. The consumer hands each event to the sinks once it has
+ * written or spooled it, leaving out those the db already has (recovered
+ * from the producer cache twice, or replayed from the spool), and the
+ * pending counts of discarded and sampled out events the same way, so a
+ * sink sees every accumNum once: the counts a kept event carries are in
+ * its own accumNum. An event a sender spools because the queue is full
+ * goes to the sinks from the sender. Sinks get a copy of each event, the
+ * db writer's changes to it do not reach them; the copy shares the
+ * compressed payload rather than copying it.
+ *
+ * When a buffer is full an event is dropped for that sink (overflow=drop,
+ * the default), or the consumer waits for room (overflow=block), holding
+ * up the db writes and leaving the queue's QueueOverflow to decide what a
+ * sender does. A sender never waits on a sink: it drops the events it
+ * spools for a full sink whatever its overflow.
+ */
+class SinkFanout {
+	static final String SINKS_PROPERTY = "Sinks";
+	static final String SINK_PREFIX = "Sink.";
+	static final String FILE_SINK = "file";
+	static final int DEFAULT_BUFFER = 10000;
+	static final int DEFAULT_BATCH = 100;
+	private static final long POLL_INTERVAL = 100;
+
+	private static Logger debugLog = Logger.getLogger(SinkFanout.class);
+
+	private final List<Channel> channels = new CopyOnWriteArrayList<Channel>();
+
+	/**
+	 * One sink, its buffer and the thread that empties it.
+	 */
+	private static class Channel extends Thread {
+		final EventSink sink;
+		final Properties settings;
+		final BlockingQueue<EventExt> buffer;
+		final int batchSize;
+		final boolean block;
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		volatile boolean stopping;
+
+		Channel(String name, EventSink sink, Properties settings, int capacity, int batchSize, boolean block) {
+			super("EventSink-" + name);
+			setDaemon(true);
+			this.sink = sink;
+			this.settings = settings;
+			this.buffer = new ArrayBlockingQueue<EventExt>(Math.max(1, capacity));
+			this.batchSize = Math.max(1, batchSize);
+			this.block = block;
+		}
+
+		/**
+		 * Buffer item, waiting for room until the given time if the sink
+		 * blocks.
+		 */
+		void offer(EventExt item, long until) {
+			if (buffer.offer(item)) {
+				return;
+			}
+			OverflowEvent jfr = OverflowEvent.start();
+			if (block) {
+				try {
+					// while the sink is still reading
+					while (System.currentTimeMillis() < until && (!stopping || isAlive())) {
+						if (buffer.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+							jfr.done("block", getName() + " full", item.peekEvent().service(), buffer.size());
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			long n = dropped.incrementAndGet();
+			if (n % 10000 == 1) {
+				debugLog.warn("[SinkFanout] " + getName() + " is full, " + n + " events dropped for it so far");
+			}
+			jfr.done("drop", getName() + " full", item.peekEvent().service(), buffer.size());
+		}
+
+		public void run() {
+			try {
+				sink.open(settings);
+			} catch (Exception e) {
+				debugLog.error("[SinkFanout] unable to open " + getName() + ", it gets no events: " + e);
+				stopping = true;
+				buffer.clear();
+				return;
+			}
+
+			List<EventExt> batch = new ArrayList<EventExt>(batchSize);
+			while (!(stopping && buffer.isEmpty())) {
+				try {
+					EventExt first = buffer.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					buffer.drainTo(batch, batchSize - 1);
+					sink.write(batch);
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					failed.addAndGet(batch.size());
+					debugLog.error("[SinkFanout] " + getName() + " lost " + batch.size() + " events: " + e);
+				} finally {
+					batch.clear();
+				}
+			}
+
+			try {
+				sink.close();
+			} catch (Exception e) {
+				debugLog.warn("[SinkFanout] problem closing " + getName() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Start the sinks listed in Sinks. A sink that cannot be created is
+	 * logged and left out.
+	 */
+	void configure(Properties props) {
+		String names = props.getProperty(SINKS_PROPERTY);
+		if (names == null) {
+			return;
+		}
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.length() == 0) {
+				continue;
+			}
+			Properties settings = settings(props, name);
+			String type = settings.getProperty("class", FILE_SINK).trim();
+			try {
+				EventSink sink = FILE_SINK.equals(type) ? new AppendFileSink()
+						: (EventSink) Class.forName(type).getDeclaredConstructor().newInstance();
+				add(name, sink, settings);
+			} catch (Exception e) {
+				debugLog.error("[SinkFanout] unable to create sink " + name + " (" + type + "): " + e);
+			}
+		}
+	}
+
+	/**
+	 * The Sink.&lt;name&gt;.* settings, under their short names.
+	 */
+	static Properties settings(Properties props, String name) {
+		String prefix = SINK_PREFIX + name + ".";
+		Properties settings = new Properties();
+		for (Map.Entry<Object, Object> e : props.entrySet()) {
+			String key = e.getKey().toString();
+			if (key.startsWith(prefix)) {
+				settings.setProperty(key.substring(prefix.length()), e.getValue().toString().trim());
+			}
+		}
+		return settings;
+	}
+
+	void add(String name, EventSink sink, Properties settings) {
+		int capacity = Integer.parseInt(settings.getProperty("buffer", "" + DEFAULT_BUFFER));
+		int batchSize = Integer.parseInt(settings.getProperty("batch", "" + DEFAULT_BATCH));
+		String overflow = settings.getProperty("overflow", "drop");
+		if (!overflow.equalsIgnoreCase("drop") && !overflow.equalsIgnoreCase("block")) {
+			debugLog.error("[SinkFanout] overflow for " + name + " must be drop or block, not " + overflow);
+		}
+
+		Channel channel = new Channel(name, sink, settings, capacity, batchSize, overflow.equalsIgnoreCase("block"));
+		channels.add(channel);
+		channel.start();
+		debugLog.info("[SinkFanout] feeding " + name + " (" + sink.getClass().getName() + "), buffer " + capacity
+				+ ", batch " + batchSize + ", overflow " + (channel.block ? "block" : "drop"));
+	}
+
+	/**
+	 * Hand copies of items, taken off the queue by the consumer, to every
+	 * sink, waiting for room in those that block.
+	 */
+	void publish(List<EventExt> items) {
+		publish(items, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Hand copies of items to every sink, waiting for room in those that
+	 * block until the deadline.
+	 */
+	void publish(List<EventExt> items, long deadline) {
+		if (channels.isEmpty()) {
+			return;
+		}
+		for (EventExt item : items) {
+			EventExt copy = item.snapshot();
+			for (Channel channel : channels) {
+				channel.offer(copy, deadline);
+			}
+		}
+	}
+
+	/**
+	 * Hand a copy of an event a sender has spooled to every sink, without
+	 * waiting for room.
+	 */
+	void publishSpooled(EventExt item) {
+		if (channels.isEmpty()) {
+			return;
+		}
+		EventExt copy = item.snapshot();
+		for (Channel channel : channels) {
+			channel.offer(copy, 0);
+		}
+	}
+
+	/**
+	 * Let each sink write what is in its buffer, waiting until the deadline
+	 * for them, and close them.
+	 */
+	void close(long deadline) throws InterruptedException {
+		for (Channel channel : channels) {
+			channel.stopping = true;
+		}
+		for (Channel channel : channels) {
+			channel.join(Math.max(1, deadline - System.currentTimeMillis()));
+			if (channel.isAlive()) {
+				debugLog.warn("[SinkFanout] " + channel.getName() + " still had " + channel.buffer.size()
+						+ " events at the deadline");
+			}
+		}
+		channels.clear();
+	}
+}
@@ -0,0 +1,552 @@
+package au.gov.nla.kinetica.events;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The current tote for a user, service and interval type, as the db will
+ * have it once this webapp's pipeline has caught up.
+ *
+ * A tote is the accumulator's total, read with EventLogger.ACCUM_SELECT on
+ * a miss and kept in an LRU cache of ToteCacheSize entries for at most
+ * ToteCacheTtl ms, plus the accumNums this webapp has sent that are not in
+ * the db yet: events still queued and discarded events still counted in
+ * memory. Those are held per user, service and minute, added when an event
+ * is queued or counted and taken off when the consumer writes or spools
+ * it. A write also adds to any cached tote it lands in, so the cache stays
+ * current until the entry expires, and other webapps' events show up by
+ * then.
+ *
+ * With AccumulatorCompaction on, a load adds the accumulator_shd rows that
+ * have not been compacted yet.
+ *
+ * Rollup totes (see ServiceRollups) are kept the same way as the others.
+ *
+ * A read from the cache takes a lock and a few map lookups. Misses load
+ * on up to ToteCacheConnections connections of their own, so a slow load
+ * only holds up the readers of that tote, who wait for it rather than
+ * loading it again. Events in the spool are not counted until they are
+ * replayed.
+ *
+ * Keeping the pending counts costs the senders and the consumer a few map
+ * updates an event, so it is only done with ToteCache=true, read when the
+ * consumer starts. Otherwise current reads the tote from the accumulator
+ * each time, without the events not yet written.
+ */
+class ToteCache {
+	static final int DEFAULT_SIZE = 10000;
+	static final long DEFAULT_TTL = 60000;
+	static final int DEFAULT_CONNECTIONS = 4;
+	private static final long MINUTE = 60 * 1000;
+	private static final int MAX_LOADS = 3;
+	// longest a load waits for a write of its tote to finish
+	private static final long WRITE_WAIT = 200;
+	private static final String SHADOW_SELECT = "select sum(accumnum) from accumulator_shd "
+			+ "where interval = ? and username = ? and service = ?";
+	private static final String INTERVAL_AT = "select id, istart, iend from interval "
+			+ "where type = ? and istart <= ? and (iend is null or iend > ?) order by istart desc";
+
+	private static Logger debugLog = Logger.getLogger(ToteCache.class);
+
+	private volatile boolean enabled;
+	private volatile int maxSize = DEFAULT_SIZE;
+	private volatile long ttl = DEFAULT_TTL;
+	private volatile int connections = DEFAULT_CONNECTIONS;
+	// with AccumulatorCompaction the accumulator_shd rows are not in the
+	// accumulator until they are compacted
+	private volatile boolean shadowPending;
+
+	private static final class Entry {
+		long tote;
+		final long loaded;
+
+		Entry(long tote, long loaded) {
+			this.tote = tote;
+			this.loaded = loaded;
+		}
+	}
+
+	// guarded by this
+	private final LinkedHashMap<ToteKey, Entry> cache = new LinkedHashMap<ToteKey, Entry>(256, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<ToteKey, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+	// totes the consumer is writing, with the number of writes under way
+	// (writingUnknown counts events whose totes cannot be told), so a load
+	// that overlaps one of them is done again rather than cached
+	private final Map<ToteKey, Integer> writing = new HashMap<ToteKey, Integer>();
+	private int writingUnknown;
+	// the loads under way, guarded by this
+	private final Map<ToteKey, Load> loads = new HashMap<ToteKey, Load>();
+
+	/**
+	 * A load of one tote, which the other readers that miss it wait for.
+	 */
+	private static final class Load {
+		// a write overlapped the load, so its tote may be out
+		boolean stale;
+		boolean done;
+		long tote;
+		SQLException failure;
+	}
+
+	// user::service to accumNum per minute, only changed inside compute
+	private final ConcurrentHashMap<String, TreeMap<Long, Long>> pending = new ConcurrentHashMap<String, TreeMap<Long, Long>>();
+
+	// connections for loads, separate from the one the consumer writes on;
+	// idle and opened are guarded by idle
+	private final ArrayDeque<Loader> idle = new ArrayDeque<Loader>();
+	private int opened;
+
+	/**
+	 * A connection for loads, with its statements.
+	 */
+	private static final class Loader {
+		final Connection conn;
+		final PreparedStatement selectPs;
+		final PreparedStatement shadowPs;
+		final PreparedStatement intervalPs;
+
+		Loader() throws SQLException {
+			conn = EventLogger.openConnection();
+			try {
+				selectPs = conn.prepareStatement(EventLogger.ACCUM_SELECT);
+				shadowPs = conn.prepareStatement(SHADOW_SELECT);
+				intervalPs = conn.prepareStatement(INTERVAL_AT);
+			} catch (SQLException e) {
+				close();
+				throw e;
+			}
+		}
+
+		void close() {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				debugLog.warn("problem closing tote cache connection: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Start counting pending events and caching totes. Only called before
+	 * the first event is queued.
+	 */
+	void enable() {
+		enabled = true;
+	}
+
+	void configure(int maxSize, long ttl, int connections, boolean shadowPending) {
+		this.maxSize = Math.max(1, maxSize);
+		this.ttl = Math.max(0, ttl);
+		this.connections = Math.max(1, connections);
+		this.shadowPending = shadowPending;
+		synchronized (idle) {
+			idle.notifyAll();
+		}
+	}
+
+	/**
+	 * An event has been queued, or counted as a discarded event.
+	 */
+	void queued(Event e, long accumNum) {
+		if (enabled) {
+			addPending(e, accumNum);
+		}
+	}
+
+	/**
+	 * A queued event has gone to the spool, it is no longer held here.
+	 */
+	void spooled(EventExt item) {
+		if (enabled) {
+			addPending(item.peekEvent(), -item.getAccumNum());
+		}
+	}
+
+	/**
+	 * A queued event was already written, it is in the db and no longer
+	 * held here.
+	 */
+	void duplicate(EventExt item) {
+		spooled(item);
+	}
+
+	/**
+	 * The consumer is about to write items, to the db or the collector.
+	 */
+	void writing(List<EventExt> items) {
+		if (enabled) {
+			startWriting(items);
+		}
+	}
+
+	private synchronized void startWriting(List<EventExt> items) {
+		for (EventExt item : items) {
+			List<ToteKey> keys = keysOf(item.peekEvent());
+			if (keys == null) {
+				writingUnknown++;
+				staleAll();
+				continue;
+			}
+			for (ToteKey key : keys) {
+				writing.merge(key, 1, Integer::sum);
+				stale(key);
+			}
+		}
+	}
+
+	/**
+	 * The write of items is over, whether it succeeded or not.
+	 */
+	void doneWriting(List<EventExt> items) {
+		if (enabled) {
+			endWriting(items);
+		}
+	}
+
+	private synchronized void endWriting(List<EventExt> items) {
+		for (EventExt item : items) {
+			List<ToteKey> keys = keysOf(item.peekEvent());
+			if (keys == null) {
+				writingUnknown--;
+				staleAll();
+				continue;
+			}
+			for (ToteKey key : keys) {
+				writing.computeIfPresent(key, (k, n) -> (n == 1) ? null : n - 1);
+				stale(key);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * An event has been written. Add it to the cached totes it lands in and,
+	 * if it came off the queue, stop counting it as pending.
+	 */
+	void written(EventExt item, boolean queued) {
+		if (!enabled) {
+			return;
+		}
+		Event e = item.peekEvent();
+		List<ToteKey> keys = keysOf(e);
+		synchronized (this) {
+			if (keys == null) {
+				// cannot tell which totes it is in
+				cache.clear();
+				staleAll();
+			} else {
+				for (ToteKey key : keys) {
+					Entry entry = cache.get(key);
+					if (entry != null) {
+						entry.tote += item.getAccumNum();
+					}
+					stale(key);
+				}
+			}
+			if (queued) {
+				addPending(e, -item.getAccumNum());
+			}
+		}
+	}
+
+	/**
+	 * A write of key overlaps any load of it, with this held.
+	 */
+	private void stale(ToteKey key) {
+		Load load = loads.get(key);
+		if (load != null) {
+			load.stale = true;
+		}
+	}
+
+	private void staleAll() {
+		for (Load load : loads.values()) {
+			load.stale = true;
+		}
+	}
+
+	/**
+	 * The totes an event is added to, or null if its intervals are not in
+	 * the snapshot.
+	 */
+	private static List<ToteKey> keysOf(Event e) {
+		List<Integer> intervals = IntervalProvisioner.intervalsFor(e.time().getTime());
+		if (intervals == null) {
+			return null;
+		}
+		List<String> rollups = ServiceRollups.of(e.service());
+		List<ToteKey> keys = new ArrayList<ToteKey>(intervals.size() * (1 + rollups.size()));
+		for (int iid : intervals) {
+			keys.add(new ToteKey(iid, e.user(), e.service()));
+			for (String rollup : rollups) {
+				keys.add(new ToteKey(iid, e.user(), rollup));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * The tote for user and service in the current interval of the given
+	 * type, e.g. day or month, or 0 if there is no such interval.
+	 */
+	long current(String user, String service, String type) throws SQLException {
+		long now = System.currentTimeMillis();
+		IntervalSnapshot.Interval interval = IntervalProvisioner.intervalAt(type, now);
+		if (interval == null) {
+			interval = loadInterval(type, now);
+			if (interval == null) {
+				return 0;
+			}
+		}
+
+		ToteKey key = new ToteKey(interval.id, user, service);
+		if (!enabled) {
+			return loadTote(key);
+		}
+		Load load;
+		synchronized (this) {
+			Entry entry = cache.get(key);
+			if (entry != null && now - entry.loaded < ttl) {
+				return entry.tote + pendingIn(user, service, interval);
+			}
+			load = loads.get(key);
+			if (load != null) {
+				// another reader is loading it
+				while (!load.done) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("interrupted waiting for a tote");
+					}
+				}
+				if (load.failure != null) {
+					throw load.failure;
+				}
+				return load.tote + pendingIn(user, service, interval);
+			}
+			load = new Load();
+			loads.put(key, load);
+		}
+
+		boolean finished = false;
+		try {
+			for (int attempt = 1;; attempt++) {
+				synchronized (this) {
+					long until = System.currentTimeMillis() + WRITE_WAIT;
+					long wait;
+					while ((writingUnknown > 0 || writing.containsKey(key))
+							&& (wait = until - System.currentTimeMillis()) > 0) {
+						try {
+							wait(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+					load.stale = writingUnknown > 0 || writing.containsKey(key);
+				}
+				long tote = loadTote(key);
+				synchronized (this) {
+					// a write under way may or may not be in tote, and may
+					// already have left pending
+					if (!load.stale || attempt == MAX_LOADS) {
+						if (!load.stale) {
+							cache.put(key, new Entry(tote, now));
+						}
+						load.tote = tote;
+						finish(key, load);
+						finished = true;
+						return tote + pendingIn(user, service, interval);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			load.failure = e;
+			throw e;
+		} finally {
+			if (!finished) {
+				synchronized (this) {
+					if (load.failure == null) {
+						load.failure = new SQLException("tote load failed");
+					}
+					finish(key, load);
+				}
+			}
+		}
+	}
+
+	/**
+	 * End a load and wake the readers waiting for it, with this held.
+	 */
+	private void finish(ToteKey key, Load load) {
+		loads.remove(key);
+		load.done = true;
+		notifyAll();
+	}
+
+	private void addPending(Event e, long accumNum) {
+		Long minute = e.time().getTime() / MINUTE;
+		addPending(e.user(), e.service(), minute, accumNum);
+		for (String rollup : ServiceRollups.of(e.service())) {
+			addPending(e.user(), rollup, minute, accumNum);
+		}
+	}
+
+	private void addPending(String user, String service, final Long minute, final long n) {
+		pending.compute(user + "::" + service, (k, minutes) -> {
+			if (minutes == null) {
+				minutes = new TreeMap<Long, Long>();
+			}
+			minutes.merge(minute, n, (a, b) -> (a + b == 0) ? null : a + b);
+			return minutes.isEmpty() ? null : minutes;
+		});
+	}
+
+	private long pendingIn(String user, String service, IntervalSnapshot.Interval interval) {
+		final long[] sum = new long[1];
+		final long from = interval.start / MINUTE;
+		final long to = (interval.end == Long.MAX_VALUE) ? Long.MAX_VALUE : interval.end / MINUTE;
+		pending.computeIfPresent(user + "::" + service, (k, minutes) -> {
+			for (long n : minutes.subMap(from, true, to, false).values()) {
+				sum[0] += n;
+			}
+			return minutes;
+		});
+		return sum[0];
+	}
+
+	private long loadTote(ToteKey key) throws SQLException {
+		Loader loader = borrow();
+		boolean ok = false;
+		try {
+			loader.selectPs.setInt(1, key.interval);
+			loader.selectPs.setString(2, key.user);
+			loader.selectPs.setString(3, key.service);
+			ResultSet rs = loader.selectPs.executeQuery();
+			long tote = 0;
+			while (rs.next()) {
+				tote += rs.getLong(1);
+			}
+			rs.close();
+			if (shadowPending) {
+				loader.shadowPs.setInt(1, key.interval);
+				loader.shadowPs.setString(2, key.user);
+				loader.shadowPs.setString(3, key.service);
+				rs = loader.shadowPs.executeQuery();
+				if (rs.next()) {
+					tote += rs.getLong(1);
+				}
+				rs.close();
+			}
+			loader.conn.commit();
+			ok = true;
+			return tote;
+		} finally {
+			release(loader, ok);
+		}
+	}
+
+	private IntervalSnapshot.Interval loadInterval(String type, long t) throws SQLException {
+		Loader loader = borrow();
+		boolean ok = false;
+		try {
+			Timestamp at = new Timestamp(t);
+			loader.intervalPs.setString(1, type);
+			loader.intervalPs.setTimestamp(2, at);
+			loader.intervalPs.setTimestamp(3, at);
+			ResultSet rs = loader.intervalPs.executeQuery();
+			IntervalSnapshot.Interval interval = null;
+			if (rs.next()) {
+				Timestamp iend = rs.getTimestamp(3);
+				interval = new IntervalSnapshot.Interval(rs.getInt(1), rs.getTimestamp(2).getTime(),
+						(iend == null) ? Long.MAX_VALUE : iend.getTime());
+			}
+			rs.close();
+			loader.conn.commit();
+			ok = true;
+			return interval;
+		} finally {
+			release(loader, ok);
+		}
+	}
+
+	/**
+	 * An idle load connection, opening one if fewer than connections are
+	 * open, or waiting for one otherwise.
+	 */
+	private Loader borrow() throws SQLException {
+		synchronized (idle) {
+			while (idle.isEmpty() && opened >= connections) {
+				try {
+					idle.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("interrupted waiting for a tote cache connection");
+				}
+			}
+			if (!idle.isEmpty()) {
+				return idle.pop();
+			}
+			opened++;
+		}
+		try {
+			return new Loader();
+		} catch (SQLException e) {
+			synchronized (idle) {
+				opened--;
+				idle.notify();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Give a connection back, closing it if it failed or there are more
+	 * open than connections now allows.
+	 */
+	private void release(Loader loader, boolean ok) {
+		synchronized (idle) {
+			if (ok && opened <= connections) {
+				idle.push(loader);
+				idle.notify();
+				return;
+			}
+			opened--;
+			idle.notify();
+		}
+		loader.close();
+	}
+
+	/**
+	 * Close the idle load connections, at drain. A later load opens one
+	 * again.
+	 */
+	void shutdown() {
+		List<Loader> closing;
+		synchronized (idle) {
+			closing = new ArrayList<Loader>(idle);
+			opened -= idle.size();
+			idle.clear();
+		}
+		for (Loader loader : closing) {
+			loader.close();
+		}
+	}
+}
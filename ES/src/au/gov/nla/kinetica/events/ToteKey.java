@@ -0,0 +1,38 @@
+package au.gov.nla.kinetica.events;
+
+/**
+ * Identifies one tote in the accumulator table: an interval, a username
+ * and a service.
+ */
+final class ToteKey {
+	final int interval;
+	final String user;
+	final String service;
+	private final int hash;
+
+	ToteKey(int interval, String user, String service) {
+		this.interval = interval;
+		this.user = user;
+		this.service = service;
+		this.hash = 31 * (31 * interval + user.hashCode()) + service.hashCode();
+	}
+
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ToteKey)) {
+			return false;
+		}
+		ToteKey k = (ToteKey) o;
+		return interval == k.interval && user.equals(k.user) && service.equals(k.service);
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	public String toString() {
+		return interval + "::" + user + "::" + service;
+	}
+}
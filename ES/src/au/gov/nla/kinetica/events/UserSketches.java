@@ -0,0 +1,428 @@
+package au.gov.nla.kinetica.events;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Distinct users per service and interval, with UserSketches=true in
+ * RDC.properties, kept as HyperLogLog sketches rather than counted from the
+ * event table.
+ *
+ * Every event the EventLogger accumulates is added to the sketch for its
+ * service, and for each of its ServiceRollups, in each of its intervals.
+ * Every SketchFlushInterval ms the sketches of intervals that ended more
+ * than SketchCloseLag ms ago are merged into their user_sketch row and
+ * dropped from memory, and once every SketchCheckpoint ms the sketches of
+ * open intervals are merged in as well, so a crash loses at most that much.
+ * Whatever is left is merged in at shutdown.
+ *
+ *   create table user_sketch (interval number, service varchar2(255),
+ *       sketch blob, last_status_change date,
+ *       primary key (interval, service))
+ *
+ * A row is only ever merged into, under a row lock, so any number of hosts
+ * may write the same row, and an event that is written twice, e.g. a batch
+ * retried from the spool, is only counted once. distinctUsers merges the
+ * rows for any services and intervals with what this process has not
+ * written yet, reading a few KB per row instead of the events. Both use
+ * one connection, opened on first use and kept until drain.
+ */
+final class UserSketches {
+	static final String PROPERTY = "UserSketches";
+	private static final long DEFAULT_FLUSH_INTERVAL = 60000;
+	private static final long DEFAULT_CLOSE_LAG = 5 * 60 * 1000;
+	private static final long DEFAULT_CHECKPOINT = 15 * 60 * 1000;
+
+	private static final String SKETCH_LOCK = "select sketch from user_sketch "
+			+ "where interval = ? and service = ? for update";
+	private static final String SKETCH_UPDATE = "update user_sketch set sketch = ?, last_status_change = ? "
+			+ "where interval = ? and service = ?";
+	private static final String SKETCH_INSERT = "insert into user_sketch (interval, service, sketch, "
+			+ "last_status_change) values (?, ?, ?, ?)";
+	private static final String INTERVAL_RANGE = "select id from interval "
+			+ "where type = ? and istart >= ? and istart < ?";
+	private static final String SKETCH_SELECT = "select sketch from user_sketch where service = ? and interval in "
+			+ "(select id from interval where type = ? and istart >= ? and istart < ?)";
+	private static final String INTERVAL_END = "select iend from interval where id = ?";
+
+	private static Logger debugLog = Logger.getLogger(UserSketches.class);
+	private static volatile boolean enabled;
+	private static ScheduledExecutorService scheduler;
+	private static volatile long closeLag = DEFAULT_CLOSE_LAG;
+	private static volatile long checkpoint = DEFAULT_CHECKPOINT;
+	private static long lastCheckpoint = System.currentTimeMillis();
+	private static int timeout;
+
+	// for flush and distinctUsers, opened on first use and kept, guarded by
+	// connLock
+	private static final Object connLock = new Object();
+	private static Connection sketchConn;
+	private static PreparedStatement rangePs;
+	private static PreparedStatement selectPs;
+
+	// interval::service
+	private static final Map<String, Sketch> sketches = new ConcurrentHashMap<String, Sketch>();
+
+	/**
+	 * The users of one service in one interval, since the sketch was last
+	 * merged into the db.
+	 */
+	private static final class Sketch {
+		final int interval;
+		final String service;
+		final HyperLogLog hll = new HyperLogLog();
+		// the interval's end, 0 until it is known
+		long end;
+		boolean dirty;
+		// taken out of the map, anything more goes to a new sketch
+		boolean closed;
+
+		Sketch(int interval, String service) {
+			this.interval = interval;
+			this.service = service;
+		}
+
+		synchronized boolean add(long hash) {
+			if (closed) {
+				return false;
+			}
+			hll.addHash(hash);
+			dirty = true;
+			return true;
+		}
+	}
+
+	private UserSketches() {
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start sketching, and merging the sketches into the db in the
+	 * background, if UserSketches is on.
+	 */
+	static synchronized void start(Properties props, int queryTimeout) {
+		if (scheduler != null || !"true".equalsIgnoreCase(props.getProperty(PROPERTY, "false").trim())) {
+			return;
+		}
+		timeout = queryTimeout;
+		long interval = Long.parseLong(props.getProperty("SketchFlushInterval", "" + DEFAULT_FLUSH_INTERVAL).trim());
+		closeLag = Long.parseLong(props.getProperty("SketchCloseLag", "" + DEFAULT_CLOSE_LAG).trim());
+		checkpoint = Long.parseLong(props.getProperty("SketchCheckpoint", "" + DEFAULT_CHECKPOINT).trim());
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "UserSketches");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					long now = System.currentTimeMillis();
+					boolean all = now - lastCheckpoint >= checkpoint;
+					flush(all);
+					if (all) {
+						lastCheckpoint = now;
+					}
+				} catch (Exception e) {
+					debugLog.warn("[UserSketches] unable to save sketches, will retry: " + e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		enabled = true;
+		debugLog.info("[UserSketches] counting distinct users, saving closed intervals every " + interval + "ms");
+	}
+
+	/**
+	 * Count user towards service, and its rollups, in each of intervals.
+	 */
+	static void add(List<Integer> intervals, String user, String service) {
+		if (!enabled || user == null) {
+			return;
+		}
+		long hash = HyperLogLog.hash(user);
+		List<String> rollups = ServiceRollups.of(service);
+		for (int iid : intervals) {
+			add(iid, service, hash);
+			for (String rollup : rollups) {
+				add(iid, rollup, hash);
+			}
+		}
+	}
+
+	private static void add(int iid, String service, long hash) {
+		String key = iid + "::" + service;
+		// a sketch closed by flush is already out of the map, so the next
+		// try gets a new one
+		while (!sketches.computeIfAbsent(key, k -> new Sketch(iid, service)).add(hash)) {
+		}
+	}
+
+	/**
+	 * Merge every sketch with something new into the db, keeping only those
+	 * of open intervals. Called at shutdown.
+	 */
+	static void flush() {
+		if (!enabled) {
+			return;
+		}
+		try {
+			flush(true);
+		} catch (SQLException e) {
+			debugLog.error("[UserSketches] unable to save sketches at shutdown, " + sketches.size()
+					+ " lost: " + e);
+		}
+	}
+
+	/**
+	 * Close the sketch connection, at drain.
+	 */
+	static void close() {
+		synchronized (connLock) {
+			closeConnection();
+		}
+	}
+
+	// with connLock held
+	private static Connection connection() throws SQLException {
+		if (sketchConn == null) {
+			Connection c = EventLogger.openConnection();
+			try {
+				rangePs = c.prepareStatement(INTERVAL_RANGE);
+				rangePs.setQueryTimeout(timeout);
+				selectPs = c.prepareStatement(SKETCH_SELECT);
+				selectPs.setQueryTimeout(timeout);
+			} catch (SQLException e) {
+				c.close();
+				throw e;
+			}
+			sketchConn = c;
+		}
+		return sketchConn;
+	}
+
+	// with connLock held
+	private static void closeConnection() {
+		if (sketchConn != null) {
+			try {
+				sketchConn.close();
+			} catch (SQLException e) {
+				debugLog.warn("[UserSketches] problem closing the sketch connection: " + e);
+			}
+		}
+		sketchConn = null;
+		rangePs = null;
+		selectPs = null;
+	}
+
+	/**
+	 * Merge the sketches of closed intervals into the db and drop them, and
+	 * with all, the sketches of open intervals too.
+	 */
+	private static synchronized void flush(boolean all) throws SQLException {
+		if (sketches.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		int saved = 0;
+		int closed = 0;
+		synchronized (connLock) {
+			Connection conn = connection();
+			for (Sketch sketch : sketches.values()) {
+				boolean close;
+				try {
+					close = now - endOf(conn, sketch) >= closeLag;
+				} catch (SQLException e) {
+					closeConnection();
+					throw e;
+				}
+				HyperLogLog hll;
+				synchronized (sketch) {
+					if (!(close || (all && sketch.dirty))) {
+						continue;
+					}
+					if (close) {
+						sketch.closed = true;
+						sketches.remove(sketch.interval + "::" + sketch.service, sketch);
+					}
+					if (!sketch.dirty) {
+						continue;
+					}
+					hll = sketch.hll.copy();
+					sketch.dirty = false;
+				}
+				try {
+					save(conn, sketch.interval, sketch.service, hll);
+				} catch (SQLException e) {
+					conn.rollback();
+					// nothing is lost, the next flush tries again on a new
+					// connection
+					restore(sketch, hll);
+					closeConnection();
+					throw e;
+				}
+				saved++;
+				closed += close ? 1 : 0;
+			}
+		}
+		if (saved > 0) {
+			debugLog.info("[UserSketches] saved " + saved + " sketches, " + closed + " of closed intervals, in "
+					+ (System.currentTimeMillis() - now) + "ms");
+		}
+	}
+
+	private static void restore(Sketch sketch, HyperLogLog hll) {
+		synchronized (sketch) {
+			if (!sketch.closed) {
+				sketch.dirty = true;
+				return;
+			}
+		}
+		int iid = sketch.interval;
+		String service = sketch.service;
+		Sketch s = sketches.computeIfAbsent(iid + "::" + service, k -> new Sketch(iid, service));
+		synchronized (s) {
+			s.hll.merge(hll);
+			s.dirty = true;
+		}
+	}
+
+	/**
+	 * When the sketch's interval ends, from the snapshot or else the db.
+	 */
+	private static long endOf(Connection conn, Sketch sketch) throws SQLException {
+		if (sketch.end == 0) {
+			IntervalSnapshot.Interval i = IntervalProvisioner.interval(sketch.interval);
+			if (i != null) {
+				sketch.end = i.end;
+			} else {
+				PreparedStatement ps = conn.prepareStatement(INTERVAL_END);
+				try {
+					ps.setQueryTimeout(timeout);
+					ps.setInt(1, sketch.interval);
+					ResultSet rs = ps.executeQuery();
+					Timestamp iend = rs.next() ? rs.getTimestamp(1) : null;
+					rs.close();
+					sketch.end = (iend == null) ? Long.MAX_VALUE : iend.getTime();
+				} finally {
+					ps.close();
+				}
+			}
+		}
+		return sketch.end;
+	}
+
+	/**
+	 * Merge hll into its row, creating the row if there is none.
+	 */
+	private static void save(Connection conn, int iid, String service, HyperLogLog hll) throws SQLException {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		PreparedStatement lock = conn.prepareStatement(SKETCH_LOCK);
+		try {
+			lock.setQueryTimeout(timeout);
+			lock.setInt(1, iid);
+			lock.setString(2, service);
+			ResultSet rs = lock.executeQuery();
+			boolean exists = rs.next();
+			if (exists) {
+				hll.merge(HyperLogLog.fromBytes(rs.getBytes(1)));
+			}
+			rs.close();
+
+			PreparedStatement ps = conn.prepareStatement(exists ? SKETCH_UPDATE : SKETCH_INSERT);
+			try {
+				ps.setQueryTimeout(timeout);
+				if (exists) {
+					ps.setBytes(1, hll.toBytes());
+					ps.setTimestamp(2, now);
+					ps.setInt(3, iid);
+					ps.setString(4, service);
+				} else {
+					ps.setInt(1, iid);
+					ps.setString(2, service);
+					ps.setBytes(3, hll.toBytes());
+					ps.setTimestamp(4, now);
+				}
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+			conn.commit();
+		} finally {
+			lock.close();
+		}
+	}
+
+	/**
+	 * The estimated number of distinct users of any of services in the
+	 * intervals of the given type starting from from up to to, counting
+	 * what this process has not saved yet. Other processes' events are
+	 * counted once they have saved them.
+	 */
+	static long distinctUsers(Collection<String> services, String type, Date from, Date to) throws SQLException {
+		HyperLogLog union = new HyperLogLog();
+		Set<Integer> intervals = new HashSet<Integer>();
+		synchronized (connLock) {
+			try {
+				Connection conn = connection();
+				rangePs.setString(1, type);
+				rangePs.setTimestamp(2, new Timestamp(from.getTime()));
+				rangePs.setTimestamp(3, new Timestamp(to.getTime()));
+				ResultSet rs = rangePs.executeQuery();
+				while (rs.next()) {
+					intervals.add(rs.getInt(1));
+				}
+				rs.close();
+
+				for (String service : services) {
+					selectPs.setString(1, service);
+					selectPs.setString(2, type);
+					selectPs.setTimestamp(3, new Timestamp(from.getTime()));
+					selectPs.setTimestamp(4, new Timestamp(to.getTime()));
+					rs = selectPs.executeQuery();
+					while (rs.next()) {
+						union.merge(HyperLogLog.fromBytes(rs.getBytes(1)));
+					}
+					rs.close();
+				}
+				conn.commit();
+			} catch (SQLException e) {
+				// opened again by the next call
+				closeConnection();
+				throw e;
+			}
+		}
+
+		List<Sketch> unsaved = new ArrayList<Sketch>(sketches.values());
+		for (Sketch sketch : unsaved) {
+			if (intervals.contains(sketch.interval) && services.contains(sketch.service)) {
+				synchronized (sketch) {
+					union.merge(sketch.hll);
+				}
+			}
+		}
+		return union.estimate();
+	}
+}
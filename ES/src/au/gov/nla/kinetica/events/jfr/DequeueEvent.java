@@ -0,0 +1,49 @@
+package au.gov.nla.kinetica.events.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Events taken off the EventSenderThread queue by the consumer. Its
+ * duration is the time spent lingering for a batch to fill.
+ */
+@Name("au.gov.nla.kinetica.events.Dequeue")
+@Label("Event Dequeue")
+@Category({ "Kinetica", "Events", "Queue" })
+@Description("Events taken off the EventSenderThread queue by the consumer")
+@StackTrace(false)
+public class DequeueEvent extends jdk.jfr.Event {
+	@Label("Batch Size")
+	public int batchSize;
+
+	@Label("Queue Depth")
+	@Description("Events still queued")
+	public int queueDepth;
+
+	// handed out while the event type is disabled, so nothing is allocated
+	private static final DequeueEvent DISABLED = new DequeueEvent();
+
+	public static DequeueEvent start() {
+		if (!DISABLED.isEnabled()) {
+			return DISABLED;
+		}
+		DequeueEvent e = new DequeueEvent();
+		e.begin();
+		return e;
+	}
+
+	public void done(int batchSize, int queueDepth) {
+		if (this == DISABLED) {
+			return;
+		}
+		end();
+		if (shouldCommit()) {
+			this.batchSize = batchSize;
+			this.queueDepth = queueDepth;
+			commit();
+		}
+	}
+}
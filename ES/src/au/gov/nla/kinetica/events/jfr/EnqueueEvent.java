@@ -0,0 +1,52 @@
+package au.gov.nla.kinetica.events.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An event put on the EventSenderThread queue. Its duration includes any
+ * wait for a free slot.
+ */
+@Name("au.gov.nla.kinetica.events.Enqueue")
+@Label("Event Enqueue")
+@Category({ "Kinetica", "Events", "Queue" })
+@Description("An event taken onto the EventSenderThread queue")
+@StackTrace(false)
+public class EnqueueEvent extends jdk.jfr.Event {
+	@Label("Service")
+	public String service;
+
+	@Label("Priority")
+	public String priority;
+
+	@Label("Queue Depth")
+	public int queueDepth;
+
+	// handed out while the event type is disabled, so nothing is allocated
+	private static final EnqueueEvent DISABLED = new EnqueueEvent();
+
+	public static EnqueueEvent start() {
+		if (!DISABLED.isEnabled()) {
+			return DISABLED;
+		}
+		EnqueueEvent e = new EnqueueEvent();
+		e.begin();
+		return e;
+	}
+
+	public void done(String service, String priority, int queueDepth) {
+		if (this == DISABLED) {
+			return;
+		}
+		end();
+		if (shouldCommit()) {
+			this.service = service;
+			this.priority = priority;
+			this.queueDepth = queueDepth;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package au.gov.nla.kinetica.events.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A batch of events written by the consumer, to the db or the collector,
+ * or to the spool when that failed or the circuit was open.
+ */
+@Name("au.gov.nla.kinetica.events.Flush")
+@Label("Event Batch Flush")
+@Category({ "Kinetica", "Events" })
+@Description("A batch of events written by the EventSenderThread consumer")
+public class FlushEvent extends jdk.jfr.Event {
+	@Label("Batch Size")
+	public int batchSize;
+
+	@Label("Destination")
+	@Description("db, collector or spool")
+	public String destination;
+
+	@Label("Written")
+	@Description("False if the batch went to the spool")
+	public boolean written;
+
+	// handed out while the event type is disabled, so nothing is allocated
+	private static final FlushEvent DISABLED = new FlushEvent();
+
+	public static FlushEvent start() {
+		if (!DISABLED.isEnabled()) {
+			return DISABLED;
+		}
+		FlushEvent e = new FlushEvent();
+		e.begin();
+		return e;
+	}
+
+	public void done(int batchSize, String destination, boolean written) {
+		if (this == DISABLED) {
+			return;
+		}
+		end();
+		if (shouldCommit()) {
+			this.batchSize = batchSize;
+			this.destination = destination;
+			this.written = written;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package au.gov.nla.kinetica.events.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An event that did not take the normal path through the queue: dropped or
+ * spooled because the queue was full, spooled while the db was down or at
+ * shutdown, or a producer blocked waiting for room.
+ */
+@Name("au.gov.nla.kinetica.events.Overflow")
+@Label("Event Overflow")
+@Category({ "Kinetica", "Events", "Queue" })
+@Description("An event dropped, spooled or held up because it could not be queued or written")
+public class OverflowEvent extends jdk.jfr.Event {
+	@Label("Action")
+	@Description("block, drop or spool")
+	public String action;
+
+	@Label("Reason")
+	@Description("queue full, circuit open or shutdown")
+	public String reason;
+
+	@Label("Service")
+	public String service;
+
+	@Label("Queue Depth")
+	public int queueDepth;
+
+	// handed out while the event type is disabled, so nothing is allocated
+	private static final OverflowEvent DISABLED = new OverflowEvent();
+
+	public static OverflowEvent start() {
+		if (!DISABLED.isEnabled()) {
+			return DISABLED;
+		}
+		OverflowEvent e = new OverflowEvent();
+		e.begin();
+		return e;
+	}
+
+	public void done(String action, String reason, String service, int queueDepth) {
+		if (this == DISABLED) {
+			return;
+		}
+		end();
+		if (shouldCommit()) {
+			this.action = action;
+			this.reason = reason;
+			this.service = service;
+			this.queueDepth = queueDepth;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package au.gov.nla.kinetica.events.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An EventSender send, from the call until the event is queued, counted,
+ * sampled out or rejected.
+ */
+@Name("au.gov.nla.kinetica.events.Send")
+@Label("Event Send")
+@Category({ "Kinetica", "Events" })
+@Description("EventSender.send, including any wait for room in the queue")
+@StackTrace(false)
+public class SendEvent extends jdk.jfr.Event {
+	@Label("Service")
+	public String service;
+
+	@Label("Accumulate Number")
+	public int accumNum;
+
+	@Label("Discarded")
+	@Description("Counted towards totes only")
+	public boolean discard;
+
+	@Label("Queue Depth")
+	public int queueDepth;
+
+	// handed out while the event type is disabled, so nothing is allocated
+	private static final SendEvent DISABLED = new SendEvent();
+
+	public static SendEvent start() {
+		if (!DISABLED.isEnabled()) {
+			return DISABLED;
+		}
+		SendEvent e = new SendEvent();
+		e.begin();
+		return e;
+	}
+
+	public void done(String service, int accumNum, boolean discard, int queueDepth) {
+		if (this == DISABLED) {
+			return;
+		}
+		end();
+		if (shouldCommit()) {
+			this.service = service;
+			this.accumNum = accumNum;
+			this.discard = discard;
+			this.queueDepth = queueDepth;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package au.gov.nla.kinetica.events.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One round trip to the events db made by EventLogger.
+ */
+@Name("au.gov.nla.kinetica.events.Statement")
+@Label("Events DB Statement")
+@Category({ "Kinetica", "Events", "DB" })
+@Description("A statement executed, or a commit, by EventLogger")
+@StackTrace(false)
+public class StatementEvent extends jdk.jfr.Event {
+	@Label("Statement")
+	@Description("Which EventLogger statement, e.g. event insert or commit")
+	public String statement;
+
+	@Label("Rows")
+	@Description("Rows sent, for a batched statement")
+	public int rows;
+
+	// handed out while the event type is disabled, so nothing is allocated
+	private static final StatementEvent DISABLED = new StatementEvent();
+
+	public static StatementEvent start() {
+		if (!DISABLED.isEnabled()) {
+			return DISABLED;
+		}
+		StatementEvent e = new StatementEvent();
+		e.begin();
+		return e;
+	}
+
+	public void done(String statement, int rows) {
+		if (this == DISABLED) {
+			return;
+		}
+		end();
+		if (shouldCommit()) {
+			this.statement = statement;
+			this.rows = rows;
+			commit();
+		}
+	}
+}